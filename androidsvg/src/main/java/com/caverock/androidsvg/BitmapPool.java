@@ -0,0 +1,176 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bitmaps for the renderer to draw into, so that compiling or rendering documents again and
+ * again, for example every frame of an animation or a scroll, doesn't allocate new bitmaps
+ * each time. Set a pool with {@link RenderOptions#bitmapPool(BitmapPool)}. Without one, the
+ * renderer allocates the bitmaps it needs and recycles them when it has finished with them.
+ * <p>
+ * A display list compiled with a pool takes the bitmaps for its pattern tiles from the pool,
+ * and gives them back when {@link SVGDisplayList#release()} is called.
+ * <p>
+ * Bitmaps are grouped by size, with their widths and heights rounded up to a multiple of 64
+ * pixels, so that one can be reused for any similar size. The pool keeps idle bitmaps up to
+ * the given number of bytes, and recycles the ones that have been idle the longest to stay
+ * within it. A pool may be shared by renderers on different threads.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class BitmapPool {
+    private static final int BUCKET_SIZE = 64;
+
+    private final long maxBytes;
+    private long bytes = 0;
+    // Idle bitmaps, keyed on their size. The least recently used size comes first.
+    private final LinkedHashMap<Long, ArrayList<Bitmap>> buckets = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param maxBytes the most memory the idle bitmaps in the pool may use, in bytes.
+     * @throws IllegalArgumentException if maxBytes is negative.
+     */
+    public BitmapPool(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+
+    /**
+     * Returns the most memory the idle bitmaps in the pool may use.
+     *
+     * @return the capacity of the pool, in bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+
+    /**
+     * Returns the memory used by the bitmaps that are in the pool now.
+     *
+     * @return the size of the pool, in bytes.
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+
+    /**
+     * Recycles all of the bitmaps in the pool. Bitmaps that renderers are using at the time
+     * are returned to the pool as usual when they have finished.
+     */
+    public synchronized void clear() {
+        for (ArrayList<Bitmap> bucket : buckets.values()) {
+            for (Bitmap bitmap : bucket) {
+                bitmap.recycle();
+            }
+        }
+        buckets.clear();
+        bytes = 0;
+    }
+
+
+    /*
+     * Returns a transparent ARGB_8888 bitmap that is at least the given size. Give it back with
+     * release() when finished with it.
+     */
+    Bitmap acquire(int width, int height) {
+        return acquireExact(roundUp(width), roundUp(height));
+    }
+
+
+    /*
+     * Returns a transparent ARGB_8888 bitmap of exactly the given size, for when the whole of
+     * the bitmap is drawn. Give it back with release() when finished with it.
+     */
+    synchronized Bitmap acquireExact(int width, int height) {
+        ArrayList<Bitmap> bucket = buckets.get(key(width, height));
+        if (bucket != null && !bucket.isEmpty()) {
+            Bitmap bitmap = bucket.remove(bucket.size() - 1);
+            bytes -= byteCount(bitmap);
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+
+    /*
+     * Returns a bitmap from acquire() or acquireExact() to the pool.
+     */
+    synchronized void release(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        long size = byteCount(bitmap);
+        if (size > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        Long key = key(bitmap.getWidth(), bitmap.getHeight());
+        ArrayList<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        bytes += size;
+
+        // Recycle bitmaps of the least recently used sizes until the pool is within its capacity
+        Iterator<Map.Entry<Long, ArrayList<Bitmap>>> it = buckets.entrySet().iterator();
+        while (bytes > maxBytes) {
+            ArrayList<Bitmap> eldest = it.next().getValue();
+            while (bytes > maxBytes && !eldest.isEmpty()) {
+                Bitmap evicted = eldest.remove(0);
+                bytes -= byteCount(evicted);
+                evicted.recycle();
+            }
+            if (eldest.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+
+    private static int roundUp(int size) {
+        return Math.max(1, (size + BUCKET_SIZE - 1) / BUCKET_SIZE) * BUCKET_SIZE;
+    }
+
+
+    private static Long key(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+
+    // Pool bitmaps are always ARGB_8888. Bitmap.getByteCount() needs API 12.
+    private static long byteCount(Bitmap bitmap) {
+        return 4L * bitmap.getWidth() * bitmap.getHeight();
+    }
+}
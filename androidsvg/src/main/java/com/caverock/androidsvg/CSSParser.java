@@ -17,8 +17,13 @@
 package com.caverock.androidsvg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.caverock.androidsvg.tag.Group;
 import org.xml.sax.SAXException;
@@ -39,6 +44,13 @@ class CSSParser
    private static final String  ID = "id";
    private static final String  CLASS = "class";
 
+   // Kinds of key in the ancestor Bloom filter
+   private static final int  KEY_TAG = 1;
+   private static final int  KEY_ID = 2;
+   private static final int  KEY_CLASS = 3;
+
+   private static final Map<Class<?>, String>  tagNames = new ConcurrentHashMap<>();
+
    private MediaType  rendererMediaType = null;
 
    private boolean  inMediaRule = false;
@@ -59,14 +71,14 @@ class CSSParser
       tv
    }
 
-   private enum Combinator
+   enum Combinator
    {
       DESCENDANT,  // E F
       CHILD,       // E > F
       FOLLOWS      // E + F
    }
 
-   private enum AttribOp
+   enum AttribOp
    {
       EXISTS,     // *[foo]
       EQUALS,     // *[foo=bar]
@@ -74,7 +86,7 @@ class CSSParser
       DASHMATCH,  // *[foo|=bar]
    }
 
-   private static class Attrib
+   static class Attrib
    {
       final public String    name;
       final        AttribOp  operation;
@@ -88,7 +100,7 @@ class CSSParser
       }
    }
 
-   private static class SimpleSelector
+   static class SimpleSelector
    {
       Combinator    combinator = null;
       String        tag = null;       // null means "*"
@@ -148,7 +160,18 @@ class CSSParser
    {
       private List<Rule>  rules = null;
 
+      Ruleset()
+      {
+      }
+
+      // Create a ruleset holding the given rules, in the given order
+      Ruleset(List<Rule> rules)
+      {
+         this.rules = rules;
+      }
+
       // Add a rule to the ruleset. The position at which it is inserted is determined by its specificity value.
+      // This is O(n) per rule, so use a RulesetBuilder to add many rules.
       void  add(Rule rule)
       {
          if (this.rules == null)
@@ -198,6 +221,106 @@ class CSSParser
    }
 
 
+   /*
+    * Builds a Ruleset in O(n log n) time, with the same result as calling Ruleset.add() and
+    * Ruleset.addAll() in the same order.
+    *
+    * Rules passed to add() are collected and then stable sorted by specificity. That is the
+    * same as inserting each one before the first rule of higher specificity, as long as the
+    * ruleset is sorted. Rules appended by addAll() may not be in order with the ones already
+    * there, though. A rule added after that goes before the first rule of higher specificity
+    * anywhere in the list. So each batch of added rules is sorted by that insertion point
+    * first, and by specificity second, and then merged into the list.
+    */
+   static class  RulesetBuilder
+   {
+      private List<Rule>  rules = new ArrayList<>();
+      private final List<Rule>  pending = new ArrayList<>();
+
+      void  add(Rule rule)
+      {
+         pending.add(rule);
+      }
+
+      void  addAll(Ruleset ruleset)
+      {
+         if (ruleset.rules == null)
+            return;
+         insertPending();
+         rules.addAll(ruleset.rules);
+      }
+
+      Ruleset  build()
+      {
+         insertPending();
+         Ruleset  result = new Ruleset(rules.isEmpty() ? null : rules);
+         rules = new ArrayList<>();
+         return result;
+      }
+
+
+      private void  insertPending()
+      {
+         if (pending.isEmpty())
+            return;
+
+         // maxSpecificity[i] is the highest specificity of rules 0..i. It never decreases,
+         // so the first rule with a higher specificity than s can be found by binary search.
+         int    numRules = rules.size();
+         int[]  maxSpecificity = new int[numRules];
+         for (int i = 0; i < numRules; i++) {
+            int  spec = rules.get(i).selector.specificity;
+            maxSpecificity[i] = (i > 0) ? Math.max(maxSpecificity[i - 1], spec) : spec;
+         }
+
+         int       numPending = pending.size();
+         final long[]  keys = new long[numPending];
+         for (int i = 0; i < numPending; i++)
+         {
+            int  spec = pending.get(i).selector.specificity;
+            int  insertAt = firstGreater(maxSpecificity, spec);
+            // Sort by insertion point, then specificity, then the order the rules were added in
+            keys[i] = ((long) insertAt << 32) | (spec & 0xffffffffL);
+         }
+         Integer[]  order = new Integer[numPending];
+         for (int i = 0; i < numPending; i++)
+            order[i] = i;
+         Arrays.sort(order, new Comparator<Integer>() {  // Arrays.sort() on objects is stable
+            @Override
+            public int compare(Integer a, Integer b) {
+               return (keys[a] < keys[b]) ? -1 : (keys[a] > keys[b]) ? 1 : 0;
+            }
+         });
+
+         List<Rule>  merged = new ArrayList<>(numRules + numPending);
+         int  next = 0;
+         for (int i = 0; i <= numRules; i++)
+         {
+            while (next < numPending && (int) (keys[order[next]] >>> 32) == i)
+               merged.add(pending.get(order[next++]));
+            if (i < numRules)
+               merged.add(rules.get(i));
+         }
+         rules = merged;
+         pending.clear();
+      }
+
+
+      private static int  firstGreater(int[] maxSpecificity, int spec)
+      {
+         int  lo = 0, hi = maxSpecificity.length;
+         while (lo < hi) {
+            int  mid = (lo + hi) >>> 1;
+            if (maxSpecificity[mid] > spec)
+               hi = mid;
+            else
+               lo = mid + 1;
+         }
+         return lo;
+      }
+   }
+
+
    static class  Rule
    {
       Selector   selector = null;
@@ -217,11 +340,135 @@ class CSSParser
    }
 
 
-   private static class Selector
+   /*
+    * An index over a list of rules, so that an element only has to be tested against the rules
+    * that could match it. Each rule is filed under one key taken from the last part of its
+    * selector: an id if it has one, otherwise a class, otherwise a tag name. Rules with none
+    * of these go in the universal bucket. The candidates for an element are returned in the
+    * same order as the original list, so the cascade is unaffected.
+    */
+   static class  RuleIndex
+   {
+      private final List<Rule>  rules;
+
+      // Positions in the rules list, in ascending order
+      private final Map<String, int[]>  idRules;
+      private final Map<String, int[]>  classRules;
+      private final Map<String, int[]>  tagRules;
+      private final int[]  universalRules;
+
+      private static final int[]  NO_RULES = new int[0];
+
+
+      RuleIndex(List<Rule> rules)
+      {
+         this.rules = rules;
+
+         Map<String, List<Integer>>  ids = new HashMap<>();
+         Map<String, List<Integer>>  classes = new HashMap<>();
+         Map<String, List<Integer>>  tags = new HashMap<>();
+         List<Integer>  universal = new ArrayList<>();
+
+         for (int i = 0; i < rules.size(); i++)
+         {
+            Selector  selector = rules.get(i).selector;
+            SimpleSelector  sel = selector.get(selector.size() - 1);
+            String  id = null;
+            String  className = null;
+            if (sel.attribs != null)
+            {
+               for (Attrib attr: sel.attribs)
+               {
+                  if (attr.value == null)
+                     continue;
+                  if (attr.name.equals(ID)) {
+                     id = attr.value;
+                     break;
+                  } else if (attr.name.equals(CLASS) && className == null) {
+                     className = attr.value;
+                  }
+               }
+            }
+            if (id != null)
+               bucket(ids, id).add(i);
+            else if (className != null)
+               bucket(classes, className).add(i);
+            else if (sel.tag != null)
+               bucket(tags, sel.tag.equalsIgnoreCase("G") ? "g" : sel.tag).add(i);
+            else
+               universal.add(i);
+         }
+
+         this.idRules = toArrays(ids);
+         this.classRules = toArrays(classes);
+         this.tagRules = toArrays(tags);
+         this.universalRules = toIntArray(universal);
+      }
+
+
+      /*
+       * Add the rules that might match obj to result, in cascade order. Every rule that
+       * matches obj is included, but the caller still has to check each one with ruleMatch().
+       */
+      void  getCandidates(MatchContext ctx, SvgElementBase obj, List<Rule> result)
+      {
+         ctx.candidateCount = 0;
+         ctx.addCandidates(universalRules);
+         if (obj.id != null)
+            ctx.addCandidates(get(idRules, obj.id));
+         ctx.addCandidates(get(tagRules, tagName(obj)));
+         if (obj instanceof Group)
+            ctx.addCandidates(get(tagRules, "g"));
+         if (obj.classNames != null)
+         {
+            for (int i = 0; i < obj.classNames.size(); i++)
+            {
+               String  className = obj.classNames.get(i);
+               if (obj.classNames.indexOf(className) == i)  // Skip duplicate class names
+                  ctx.addCandidates(get(classRules, className));
+            }
+         }
+
+         for (int i = 0; i < ctx.candidateCount; i++)
+            result.add(rules.get(ctx.candidates[i]));
+      }
+
+
+      private static int[]  get(Map<String, int[]> map, String key)
+      {
+         int[]  positions = map.get(key);
+         return (positions != null) ? positions : NO_RULES;
+      }
+
+
+      private static List<Integer>  bucket(Map<String, List<Integer>> map, String key)
+      {
+         List<Integer>  positions = map.get(key);
+         if (positions == null) {
+            positions = new ArrayList<>();
+            map.put(key, positions);
+         }
+         return positions;
+      }
+
+
+      private static Map<String, int[]>  toArrays(Map<String, List<Integer>> map)
+      {
+         Map<String, int[]>  result = new HashMap<>(map.size() * 2);
+         for (Map.Entry<String, List<Integer>> entry: map.entrySet())
+            result.put(entry.getKey(), toIntArray(entry.getValue()));
+         return result;
+      }
+   }
+
+
+   static class Selector
    {
       List<SimpleSelector>  selector = null;
       int                   specificity = 0;
 
+      private volatile int[]  ancestorKeys = null;
+
       void  add(SimpleSelector part)
       {
          if (this.selector == null)
@@ -244,6 +491,43 @@ class CSSParser
          return (this.selector == null) || this.selector.isEmpty();
       }
 
+      // Keys for the tags, ids and classes that the element's ancestors must have for this selector to match
+      int[]  getAncestorKeys()
+      {
+         int[]  keys = this.ancestorKeys;
+         if (keys == null) {
+            keys = buildAncestorKeys();
+            this.ancestorKeys = keys;
+         }
+         return keys;
+      }
+
+      private int[]  buildAncestorKeys()
+      {
+         List<Integer>  keys = new ArrayList<>();
+         for (int i = 0; i < size() - 1; i++)
+         {
+            // A part refers to an ancestor if the part after it is a descendant or child of it.
+            // Otherwise it refers to a sibling of some element in the chain.
+            if (get(i + 1).combinator == Combinator.FOLLOWS)
+               continue;
+            SimpleSelector  sel = get(i);
+            if (sel.tag != null)
+               keys.add(ancestorKey(KEY_TAG, sel.tag.equalsIgnoreCase("G") ? "g" : sel.tag));
+            if (sel.attribs != null) {
+               for (Attrib attr: sel.attribs) {
+                  if (attr.value == null)
+                     continue;
+                  if (attr.name.equals(ID))
+                     keys.add(ancestorKey(KEY_ID, attr.value));
+                  else if (attr.name.equals(CLASS))
+                     keys.add(ancestorKey(KEY_CLASS, attr.value));
+               }
+            }
+         }
+         return toIntArray(keys);
+      }
+
       // Methods for accumulating a specificity value as SimpleSelector entries are added.
       void  addedIdAttribute()
       {
@@ -572,7 +856,7 @@ class CSSParser
    }
 
 
-   private void  parseAtRule(Ruleset ruleset, CSSTextScanner scan) throws SAXException
+   private void  parseAtRule(RulesetBuilder ruleset, CSSTextScanner scan) throws SAXException
    {
       String  atKeyword = scan.nextIdentifier();
       scan.skipWhitespace();
@@ -630,7 +914,7 @@ class CSSParser
 
    private Ruleset  parseRuleset(CSSTextScanner scan) throws SAXException
    {
-      Ruleset  ruleset = new Ruleset();
+      RulesetBuilder  ruleset = new RulesetBuilder();
       while (!scan.empty())
       {
          if (scan.consume("<!--"))
@@ -648,11 +932,11 @@ class CSSParser
          // Nothing recognisable found. Could be end of rule set. Return.
          break;
       }
-      return ruleset;
+      return ruleset.build();
    }
 
 
-   private boolean  parseRule(Ruleset ruleset, CSSTextScanner scan) throws SAXException
+   private boolean  parseRule(RulesetBuilder ruleset, CSSTextScanner scan) throws SAXException
    {
       List<Selector>  selectors = parseSelectorGroup(scan);
       if (selectors != null && !selectors.isEmpty())
@@ -764,35 +1048,35 @@ class CSSParser
 
    /*
     * Used by renderer to check if a CSS rule matches the current element.
+    * The context is updated to hold the ancestors of obj, so keeping one context for a series
+    * of calls avoids building the ancestor list again for each one.
     */
-   static boolean  ruleMatch(Selector selector, SvgElementBase obj)
+   static boolean  ruleMatch(MatchContext ctx, Selector selector, SvgElementBase obj)
    {
-      // Build the list of ancestor objects
-      List<SvgContainer> ancestors = new ArrayList<>();
-      SvgContainer  parent = obj.parent;
-      while (parent != null) {
-         ancestors.add(0, parent);
-         parent = ((SvgObject) parent).parent;
-      }
+      ctx.setElement(obj);
 
-      int  ancestorsPos = ancestors.size() - 1;
+      int  ancestorsPos = ctx.depth - 1;
 
       // Check the most common case first as a shortcut.
       if (selector.size() == 1)
-         return selectorMatch(selector.get(0), ancestors, ancestorsPos, obj);
+         return selectorMatch(selector.get(0), ctx, ancestorsPos, obj);
+
+      // Quick rejection of rules that need an ancestor that isn't there
+      if (!ctx.mayHaveAncestors(selector.getAncestorKeys()))
+         return false;
 
       // We start at the last part of the selector and loop back through the parts
       // Get the next selector part
-      return ruleMatch(selector, selector.size() - 1, ancestors, ancestorsPos, obj);
+      return ruleMatch(selector, selector.size() - 1, ctx, ancestorsPos, obj);
    }
 
 
-   private static boolean  ruleMatch(Selector selector, int selPartPos, List<SvgContainer> ancestors, int ancestorsPos, SvgElementBase obj)
+   private static boolean  ruleMatch(Selector selector, int selPartPos, MatchContext ctx, int ancestorsPos, SvgElementBase obj)
    {
       // We start at the last part of the selector and loop back through the parts
       // Get the next selector part
       SimpleSelector  sel = selector.get(selPartPos);
-      if (!selectorMatch(sel, ancestors, ancestorsPos, obj))
+      if (!selectorMatch(sel, ctx, ancestorsPos, obj))
          return false;
 
       // Selector part matched, check its combinator
@@ -802,7 +1086,7 @@ class CSSParser
             return true;
          // Search up the ancestors list for a node that matches the next selector
          while (ancestorsPos >= 0) {
-            if (ruleMatchOnAncestors(selector, selPartPos - 1, ancestors, ancestorsPos))
+            if (ruleMatchOnAncestors(selector, selPartPos - 1, ctx, ancestorsPos))
                return true;
             ancestorsPos--;
          }
@@ -810,25 +1094,25 @@ class CSSParser
       }
       else if (sel.combinator == Combinator.CHILD)
       {
-         return ruleMatchOnAncestors(selector, selPartPos - 1, ancestors, ancestorsPos);
+         return ruleMatchOnAncestors(selector, selPartPos - 1, ctx, ancestorsPos);
       }
       else //if (sel.combinator == Combinator.FOLLOWS)
       {
-         int  childPos = getChildPosition(ancestors, ancestorsPos, obj);
+         int  childPos = getChildPosition(ctx, ancestorsPos, obj);
          if (childPos <= 0)
             return false;
          SvgElementBase  prevSibling = (SvgElementBase) obj.parent.getChildren().get(childPos - 1);
-         return ruleMatch(selector, selPartPos - 1, ancestors, ancestorsPos, prevSibling);
+         return ruleMatch(selector, selPartPos - 1, ctx, ancestorsPos, prevSibling);
       }
    }
 
 
-   private static boolean  ruleMatchOnAncestors(Selector selector, int selPartPos, List<SvgContainer> ancestors, int ancestorsPos)
+   private static boolean  ruleMatchOnAncestors(Selector selector, int selPartPos, MatchContext ctx, int ancestorsPos)
    {
       SimpleSelector  sel = selector.get(selPartPos);
-      SvgElementBase  obj = (SvgElementBase) ancestors.get(ancestorsPos);
+      SvgElementBase  obj = (SvgElementBase) ctx.ancestors[ancestorsPos];
 
-      if (!selectorMatch(sel, ancestors, ancestorsPos, obj))
+      if (!selectorMatch(sel, ctx, ancestorsPos, obj))
          return false;
 
       // Selector part matched, check its combinator
@@ -838,44 +1122,37 @@ class CSSParser
             return true;
          // Search up the ancestors list for a node that matches the next selector
          while (ancestorsPos > 0) {
-            if (ruleMatchOnAncestors(selector, selPartPos - 1, ancestors, --ancestorsPos))
+            if (ruleMatchOnAncestors(selector, selPartPos - 1, ctx, --ancestorsPos))
                return true;
          }
          return false;
       }
       else if (sel.combinator == Combinator.CHILD)
       {
-         return ruleMatchOnAncestors(selector, selPartPos - 1, ancestors, ancestorsPos - 1);
+         return ruleMatchOnAncestors(selector, selPartPos - 1, ctx, ancestorsPos - 1);
       }
       else //if (sel.combinator == Combinator.FOLLOWS)
       {
-         int  childPos = getChildPosition(ancestors, ancestorsPos, obj);
+         int  childPos = getChildPosition(ctx, ancestorsPos, obj);
          if (childPos <= 0)
             return false;
          SvgElementBase  prevSibling = (SvgElementBase) obj.parent.getChildren().get(childPos - 1);
-         return ruleMatch(selector, selPartPos - 1, ancestors, ancestorsPos, prevSibling);
+         return ruleMatch(selector, selPartPos - 1, ctx, ancestorsPos, prevSibling);
       }
    }
 
 
-   private static int getChildPosition(List<SvgContainer> ancestors, int ancestorsPos, SvgElementBase obj)
+   private static int getChildPosition(MatchContext ctx, int ancestorsPos, SvgElementBase obj)
    {
       if (ancestorsPos < 0)  // Has no parent, so can't have a sibling
          return -1;
-      if (ancestors.get(ancestorsPos) != obj.parent)  // parent doesn't match, so obj must be an indirect reference (eg. from a <use>)
+      if (ctx.ancestors[ancestorsPos] != obj.parent)  // parent doesn't match, so obj must be an indirect reference (eg. from a <use>)
          return -1;
-      int  childPos = 0;
-      for (SvgObject child: obj.parent.getChildren())
-      {
-         if (child == obj)
-            return childPos;
-         childPos++;
-      }
-      return -1;
+      return ctx.childPosition(ancestorsPos, obj);
    }
 
 
-   private static boolean selectorMatch(SimpleSelector sel, List<SvgContainer> ancestors, int ancestorsPos, SvgElementBase obj)
+   private static boolean selectorMatch(SimpleSelector sel, MatchContext ctx, int ancestorsPos, SvgElementBase obj)
    {
       // Check tag name. tag==null means tag is "*" which matches everything.
       if (sel.tag != null) {
@@ -886,7 +1163,7 @@ class CSSParser
                return false;
          }
          // all other element classes should match their tag names
-         else if (!sel.tag.equals(obj.getClass().getSimpleName().toLowerCase(Locale.US)))
+         else if (!sel.tag.equals(tagName(obj)))
          {
             return false;
          }
@@ -896,8 +1173,9 @@ class CSSParser
       // Check the attributes
       if (sel.attribs != null)
       {
-         for (Attrib attr: sel.attribs)
+         for (int i = 0; i < sel.attribs.size(); i++)
          {
+            Attrib  attr = sel.attribs.get(i);
             switch (attr.name) {
                case ID:
                   if (!attr.value.equals(obj.id))
@@ -918,9 +1196,9 @@ class CSSParser
 
       // Check the pseudo classes
       if (sel.pseudos != null) {
-         for (String pseudo: sel.pseudos) {
-            if (pseudo.equals("first-child")) {
-               if (getChildPosition(ancestors, ancestorsPos, obj) != 0)
+         for (int i = 0; i < sel.pseudos.size(); i++) {
+            if (sel.pseudos.get(i).equals("first-child")) {
+               if (getChildPosition(ctx, ancestorsPos, obj) != 0)
                   return false;
             } else {
                return false;
@@ -933,4 +1211,220 @@ class CSSParser
    }
 
 
+   // The tag name that a selector has to have to match an element of this class
+   private static String  tagName(SvgElementBase obj)
+   {
+      String  name = tagNames.get(obj.getClass());
+      if (name == null) {
+         name = obj.getClass().getSimpleName().toLowerCase(Locale.US);
+         tagNames.put(obj.getClass(), name);
+      }
+      return name;
+   }
+
+
+   private static int[]  toIntArray(List<Integer> list)
+   {
+      int[]  result = new int[list.size()];
+      for (int i = 0; i < result.length; i++)
+         result[i] = list.get(i);
+      return result;
+   }
+
+
+   // Hash of a key for the ancestor Bloom filter
+   private static int  ancestorKey(int kind, String value)
+   {
+      return (value.hashCode() * 31 + kind) * 0x9E3779B1;
+   }
+
+
+   /*
+    * The ancestors of the element that is being matched, and a Bloom filter of their tags, ids
+    * and classes. Instead of being rebuilt for each element, the ancestor list is adjusted
+    * to the position of the next element. When elements are matched in document order, as the
+    * renderer does, that is usually a matter of pushing or popping one container.
+    */
+   static class  MatchContext
+   {
+      private static final int  BLOOM_SIZE = 256;   // Must be a power of two
+
+      private SvgContainer[]  ancestors = new SvgContainer[16];
+      private int  depth = 0;
+
+      // For each ancestor, the position of the child that was last looked up in it
+      private int[]  childHints = new int[16];
+
+      // Counting Bloom filter of the ancestor keys, so that entries can be removed again
+      private final int[]  bloom = new int[BLOOM_SIZE];
+
+      // Scratch space for RuleIndex.getCandidates()
+      private int[]  candidates = new int[16];
+      private int[]  mergeBuffer = new int[16];
+      private int  candidateCount = 0;
+
+
+      /*
+       * Update the ancestor list to be that of obj.
+       */
+      void  setElement(SvgElementBase obj)
+      {
+         SvgContainer  parent = obj.parent;
+         if (depth > 0 && ancestors[depth - 1] == parent)
+            return;   // Sibling of the previous element
+         if (parent == null) {
+            truncate(0);
+            return;
+         }
+         // Look for the parent or the grandparent in the current ancestor list
+         SvgContainer  grandParent = ((SvgObject) parent).parent;
+         for (int i = depth - 1; i >= 0; i--)
+         {
+            if (ancestors[i] == parent) {
+               truncate(i + 1);
+               return;
+            }
+            if (ancestors[i] == grandParent) {
+               truncate(i + 1);
+               push(parent);
+               return;
+            }
+         }
+         // Somewhere else in the tree. For example, the target of a <use>.
+         truncate(0);
+         int  count = 0;
+         for (SvgContainer p = parent; p != null; p = ((SvgObject) p).parent)
+            count++;
+         ensureCapacity(count);
+         depth = count;
+         for (SvgContainer p = parent; p != null; p = ((SvgObject) p).parent) {
+            ancestors[--count] = p;
+            childHints[count] = -1;
+            updateBloom((SvgObject) p, 1);
+         }
+      }
+
+
+      private void  push(SvgContainer container)
+      {
+         ensureCapacity(depth + 1);
+         ancestors[depth] = container;
+         childHints[depth] = -1;
+         depth++;
+         updateBloom((SvgObject) container, 1);
+      }
+
+
+      private void  truncate(int newDepth)
+      {
+         while (depth > newDepth) {
+            depth--;
+            updateBloom((SvgObject) ancestors[depth], -1);
+            ancestors[depth] = null;
+         }
+      }
+
+
+      private void  ensureCapacity(int size)
+      {
+         if (size > ancestors.length) {
+            int  newSize = Math.max(size, ancestors.length * 2);
+            ancestors = Arrays.copyOf(ancestors, newSize);
+            childHints = Arrays.copyOf(childHints, newSize);
+         }
+      }
+
+
+      private void  updateBloom(SvgObject obj, int delta)
+      {
+         if (!(obj instanceof SvgElementBase))
+            return;
+         SvgElementBase  elem = (SvgElementBase) obj;
+         updateBloom(ancestorKey(KEY_TAG, tagName(elem)), delta);
+         if (elem instanceof Group)
+            updateBloom(ancestorKey(KEY_TAG, "g"), delta);
+         if (elem.id != null)
+            updateBloom(ancestorKey(KEY_ID, elem.id), delta);
+         if (elem.classNames != null) {
+            for (int i = 0; i < elem.classNames.size(); i++)
+               updateBloom(ancestorKey(KEY_CLASS, elem.classNames.get(i)), delta);
+         }
+      }
+
+
+      private void  updateBloom(int key, int delta)
+      {
+         bloom[key & (BLOOM_SIZE - 1)] += delta;
+         bloom[(key >>> 16) & (BLOOM_SIZE - 1)] += delta;
+      }
+
+
+      /*
+       * Returns false if at least one of the keys definitely doesn't belong to an ancestor.
+       */
+      boolean  mayHaveAncestors(int[] keys)
+      {
+         for (int key: keys) {
+            if (bloom[key & (BLOOM_SIZE - 1)] == 0 || bloom[(key >>> 16) & (BLOOM_SIZE - 1)] == 0)
+               return false;
+         }
+         return true;
+      }
+
+
+      // Merge an ascending list of rule positions into the candidates, keeping them in order.
+      // A rule is only ever in one bucket of the index, so there are no duplicates.
+      private void  addCandidates(int[] positions)
+      {
+         if (positions.length == 0)
+            return;
+         int  total = candidateCount + positions.length;
+         if (total > mergeBuffer.length) {
+            int  newSize = Math.max(total, mergeBuffer.length * 2);
+            mergeBuffer = new int[newSize];
+            candidates = Arrays.copyOf(candidates, newSize);
+         }
+         int  i = 0, j = 0, k = 0;
+         while (i < candidateCount && j < positions.length)
+            mergeBuffer[k++] = (candidates[i] < positions[j]) ? candidates[i++] : positions[j++];
+         while (i < candidateCount)
+            mergeBuffer[k++] = candidates[i++];
+         while (j < positions.length)
+            mergeBuffer[k++] = positions[j++];
+
+         int[]  merged = mergeBuffer;
+         mergeBuffer = candidates;
+         candidates = merged;
+         candidateCount = total;
+      }
+
+
+      /*
+       * The position of obj among the children of the ancestor at ancestorsPos.
+       */
+      int  childPosition(int ancestorsPos, SvgElementBase obj)
+      {
+         List<SvgObject>  children = ancestors[ancestorsPos].getChildren();
+         int  hint = childHints[ancestorsPos];
+         // Elements are usually matched in order, so check the last position and the one after it first
+         if (hint >= 0) {
+            if (hint < children.size() && children.get(hint) == obj)
+               return hint;
+            if (hint + 1 < children.size() && children.get(hint + 1) == obj) {
+               childHints[ancestorsPos] = hint + 1;
+               return hint + 1;
+            }
+         }
+         for (int i = 0; i < children.size(); i++)
+         {
+            if (children.get(i) == obj) {
+               childHints[ancestorsPos] = i;
+               return i;
+            }
+         }
+         return -1;
+      }
+   }
+
+
 }
@@ -0,0 +1,69 @@
+package com.caverock.androidsvg;
+
+import android.graphics.Path;
+import android.graphics.RectF;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The combined Path of the children of a {@code <clipPath>}, as the renderer last built it.
+ * <p>
+ * Building it means resolving the styles of the clip path and each of its children, so the
+ * renderer keeps the result and reuses it for every element that references the clip path,
+ * for as long as the render options, DPI and viewport it was built with stay the same. The
+ * viewport is the one that percentages are relative to, in user units, so it reflects any
+ * viewBox. The clip path element is held weakly, so the cache doesn't keep documents alive.
+ * Entries are never modified once they are in the cache, so they can be shared by renderers
+ * on any number of threads.
+ */
+class ClipPathCache {
+    private static final Map<Object, ClipPathCache> cache = new WeakHashMap<>();
+
+    // The render options the path was built with. May be null.
+    private final Object options;
+    private final float dpi;
+    // The viewport in user units
+    private final float viewPortX;
+    private final float viewPortY;
+    private final float viewPortWidth;
+    private final float viewPortHeight;
+
+    final Path path;
+    // The rectangle the path consists of, or null if it isn't a single axis-aligned rectangle
+    final RectF rect;
+
+
+    ClipPathCache(Object options, float dpi, Box viewPort, Path path, RectF rect) {
+        this.options = options;
+        this.dpi = dpi;
+        this.viewPortX = viewPort.minX;
+        this.viewPortY = viewPort.minY;
+        this.viewPortWidth = viewPort.width;
+        this.viewPortHeight = viewPort.height;
+        this.path = path;
+        this.rect = rect;
+    }
+
+
+    private boolean matches(Object options, float dpi, Box viewPort) {
+        return this.options == options && this.dpi == dpi
+                && viewPortX == viewPort.minX && viewPortY == viewPort.minY
+                && viewPortWidth == viewPort.width && viewPortHeight == viewPort.height;
+    }
+
+
+    /*
+     * Returns the path built for the clip path with the given options, DPI and viewport, or
+     * null if there isn't one.
+     */
+    static synchronized ClipPathCache get(Object clipPath, Object options, float dpi, Box viewPort) {
+        ClipPathCache entry = cache.get(clipPath);
+        return (entry != null && entry.matches(options, dpi, viewPort)) ? entry : null;
+    }
+
+
+    static synchronized void put(Object clipPath, ClipPathCache entry) {
+        cache.put(clipPath, entry);
+    }
+}
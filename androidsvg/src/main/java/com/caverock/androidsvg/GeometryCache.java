@@ -0,0 +1,42 @@
+package com.caverock.androidsvg;
+
+import android.graphics.Path;
+
+/**
+ * The android Path (and its bounds) last built for a shape element by the renderer.
+ * <p>
+ * The entry is keyed on the geometry source object (a PathDefinition or points array) and on
+ * up to six resolved length values. Lengths are compared after resolution so that changes to
+ * the viewport, font size or DPI that affect percentage or relative units cause a rebuild.
+ * <p>
+ * An entry is never modified once it has been created, and the renderer replaces the element's
+ * entry as a whole, so renderers on several threads can share it. The Path itself must be
+ * treated as read-only.
+ */
+class GeometryCache {
+    private final Object source;
+    private final float p0, p1, p2, p3, p4, p5;
+
+    final Path path;
+    final Box bounds;
+
+
+    GeometryCache(Object source, float p0, float p1, float p2, float p3, float p4, float p5, Path path, Box bounds) {
+        this.source = source;
+        this.p0 = p0;
+        this.p1 = p1;
+        this.p2 = p2;
+        this.p3 = p3;
+        this.p4 = p4;
+        this.p5 = p5;
+        this.path = path;
+        this.bounds = bounds;
+    }
+
+
+    boolean matches(Object source, float p0, float p1, float p2, float p3, float p4, float p5) {
+        return this.source == source
+                && this.p0 == p0 && this.p1 == p1 && this.p2 == p2
+                && this.p3 == p3 && this.p4 == p4 && this.p5 == p5;
+    }
+}
@@ -0,0 +1,175 @@
+package com.caverock.androidsvg;
+
+import com.caverock.androidsvg.tag.Path;
+import com.caverock.androidsvg.tag.PolyLine;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses the geometry attributes that SVGParser recorded during its SAX pass, spread over the
+ * threads of an Executor.
+ * <p>
+ * Path data, polyline points and transform lists are the bulk of the parse time for large
+ * map-like documents, and each one can be parsed independently once the tree has been built.
+ * The recorded attributes are split into fixed size chunks that worker tasks claim in turn.
+ * The calling thread claims chunks as well, and only waits for chunks that another thread has
+ * already started. So the stage completes even if the executor never runs our tasks, or if
+ * the parse is itself running on one of the executor's threads.
+ * <p>
+ * Each attribute is parsed with the same method the parser uses, so the resulting tree is
+ * identical to one from a sequential parse. If any attribute is invalid, the error for the one
+ * that comes first in the document is thrown. An Error on a worker thread is rethrown on the
+ * calling thread in the same way. If the XML pass itself fails, the attributes recorded before
+ * that point are checked too, so that the error reported is the same one a sequential parse
+ * would have stopped at.
+ */
+class GeometryParseStage {
+    private static final int CHUNK_SIZE = 128;
+
+    private static final byte PATH = 0;
+    private static final byte POINTS = 1;
+    private static final byte TRANSFORM = 2;
+
+    private final List<Item> items = new ArrayList<>();
+
+
+    private static class Item {
+        final byte type;
+        final Object target;
+        final String value;
+        final String tag;
+
+        Item(byte type, Object target, String value, String tag) {
+            this.type = type;
+            this.target = target;
+            this.value = value;
+            this.tag = tag;
+        }
+    }
+
+
+    void addPath(Path obj, String d) {
+        items.add(new Item(PATH, obj, d, null));
+    }
+
+
+    void addPoints(PolyLine obj, String points, String tag) {
+        items.add(new Item(POINTS, obj, points, tag));
+    }
+
+
+    void addTransform(HasTransform obj, String transform) {
+        items.add(new Item(TRANSFORM, obj, transform, null));
+    }
+
+
+    /*
+     * Parse all the recorded attributes and store the results in their elements.
+     */
+    void run(Executor executor) throws SAXException {
+        final int numChunks = (items.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final Throwable[] errors = new Throwable[numChunks];
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final int[] chunksDone = {0};
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < numChunks) {
+                    try {
+                        parseChunk(chunk);
+                    } catch (Throwable t) {
+                        // Includes Errors. If they escaped, the chunk would never be counted as done.
+                        errors[chunk] = t;
+                    } finally {
+                        synchronized (chunksDone) {
+                            chunksDone[0]++;
+                            chunksDone.notifyAll();
+                        }
+                    }
+                }
+            }
+        };
+
+        if (numChunks > 1 && executor != null) {
+            int numWorkers = Math.min(numChunks, Runtime.getRuntime().availableProcessors()) - 1;
+            try {
+                for (int i = 0; i < numWorkers; i++) {
+                    executor.execute(worker);
+                }
+            } catch (RejectedExecutionException e) {
+                // Fine. This thread will do the remaining work itself.
+            }
+        }
+        worker.run();
+
+        synchronized (chunksDone) {
+            boolean interrupted = false;
+            while (chunksDone[0] < numChunks) {
+                try {
+                    chunksDone.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        items.clear();
+
+        // Chunks are in document order, so the first failed chunk holds the first error
+        for (Throwable t : errors) {
+            if (t instanceof SAXException) {
+                throw (SAXException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw (RuntimeException) t;
+            }
+        }
+    }
+
+
+    /*
+     * Called when the XML pass stopped with an error. The recorded attributes all come before
+     * the point where it stopped, so if any of them is invalid, its error is returned instead.
+     */
+    SAXException firstError(SAXException passError) {
+        try {
+            for (int chunk = 0; chunk * CHUNK_SIZE < items.size(); chunk++) {
+                parseChunk(chunk);
+            }
+            return passError;
+        } catch (SAXException e) {
+            return e;
+        } finally {
+            items.clear();
+        }
+    }
+
+
+    private void parseChunk(int chunk) throws SAXException {
+        int end = Math.min(items.size(), (chunk + 1) * CHUNK_SIZE);
+        for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+            Item item = items.get(i);
+            switch (item.type) {
+            case PATH:
+                ((Path) item.target).d = SVGParser.parsePath(item.value);
+                break;
+            case POINTS:
+                ((PolyLine) item.target).points = SVGParser.parsePoints(item.value, item.tag);
+                break;
+            default:
+                ((HasTransform) item.target).setTransform(SVGParser.parseTransformList(item.value));
+                break;
+            }
+        }
+    }
+}
@@ -15,6 +15,11 @@ class GradientElement extends SvgElementBase implements SvgContainer {
     GradientSpread spreadMethod;
     String href;
 
+    // Set once the fields inherited through href have been copied into this element
+    volatile boolean hrefResolved;
+    // Stop colours from the last render. Only used by the renderer.
+    volatile GradientStops stops;
+
     @Override
     public List<SvgObject> getChildren() {
         return children;
@@ -0,0 +1,24 @@
+package com.caverock.androidsvg;
+
+/**
+ * The colours and offsets of a gradient's stops, as the renderer passes them to the shader.
+ * <p>
+ * The stop colours are computed styles, so working them out means resolving the style of the
+ * gradient and each of its stops. The result only depends on the document and on the render
+ * options, so it is kept on the gradient element and reused until the options change. The
+ * arrays are never modified once they have been stored, so they can be shared by renderers on
+ * any number of threads.
+ */
+class GradientStops {
+    // The render options the stops were computed with. May be null.
+    final Object options;
+    final int[] colours;
+    final float[] positions;
+
+
+    GradientStops(Object options, int[] colours, float[] positions) {
+        this.options = options;
+        this.colours = colours;
+        this.positions = positions;
+    }
+}
@@ -9,6 +9,9 @@ import android.graphics.Matrix;
 public abstract class GraphicsElement extends SvgConditionalElement implements HasTransform {
     public Matrix transform;
 
+    // Path built from this element's geometry during the last render. Only used for basic shapes and paths.
+    volatile GeometryCache geometryCache;
+
     @Override
     public void setTransform(Matrix transform) {
         this.transform = transform;
@@ -1,11 +1,19 @@
 package com.caverock.androidsvg;
 
+import java.nio.charset.Charset;
+
 public class PathDefinition implements PathInterface {
     private byte[] commands = null;
     private int commandsLength = 0;
     private float[] coords = null;
     private int coordsLength = 0;
 
+    // The unparsed path data, one byte per character, when parsing has been deferred until
+    // first use (see SVG.setLazyPathParsing()). Cleared once the data has been parsed.
+    private volatile byte[] deferredData = null;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
     private static final byte MOVETO = 0;
     private static final byte LINETO = 1;
     private static final byte CUBICTO = 2;
@@ -20,11 +28,77 @@ public class PathDefinition implements PathInterface {
     }
 
 
+    // A path whose data will be parsed the first time its contents are needed
+    PathDefinition(String pathData) {
+        this.deferredData = pathData.getBytes(LATIN1);
+    }
+
+
+    // Used when loading a compiled document (see SVGBinaryFormat)
+    PathDefinition(byte[] commands, float[] coords) {
+        this.commands = commands;
+        this.commandsLength = commands.length;
+        this.coords = coords;
+        this.coordsLength = coords.length;
+    }
+
+
     boolean isEmpty() {
+        ensureParsed();
         return commandsLength == 0;
     }
 
 
+    byte[] getCommands() {
+        ensureParsed();
+        return commands;
+    }
+
+
+    int getCommandsLength() {
+        ensureParsed();
+        return commandsLength;
+    }
+
+
+    float[] getCoords() {
+        ensureParsed();
+        return coords;
+    }
+
+
+    int getCoordsLength() {
+        ensureParsed();
+        return coordsLength;
+    }
+
+
+    private void ensureParsed() {
+        if (deferredData != null) {
+            parseDeferredData();
+        }
+    }
+
+
+    /*
+     * Parse the deferred path data. Renders on different threads may get here at the same time,
+     * so parsing is done under a lock and only by the first of them. Clearing the volatile
+     * deferredData field afterwards publishes the parsed arrays to threads that don't take the lock.
+     */
+    private synchronized void parseDeferredData() {
+        byte[] data = deferredData;
+        if (data == null) {
+            return;
+        }
+        PathDefinition parsed = SVGParser.parsePath(new String(data, LATIN1));
+        this.commands = parsed.commands;
+        this.commandsLength = parsed.commandsLength;
+        this.coords = parsed.coords;
+        this.coordsLength = parsed.coordsLength;
+        deferredData = null;
+    }
+
+
     private void addCommand(byte value) {
         if (commandsLength == commands.length) {
             byte[] newCommands = new byte[commands.length * 2];
@@ -106,6 +180,7 @@ public class PathDefinition implements PathInterface {
 
 
     void enumeratePath(PathInterface handler) {
+        ensureParsed();
         int coordsPos = 0;
 
         for (int commandPos = 0; commandPos < commandsLength; commandPos++) {
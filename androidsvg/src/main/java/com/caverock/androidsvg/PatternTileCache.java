@@ -0,0 +1,166 @@
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pattern tiles that have already been rendered to bitmaps, so that filling a shape with a
+ * pattern doesn't have to render the pattern's children again for every tile.
+ * <p>
+ * A tile is keyed on the pattern element and on everything that changes what the tile looks
+ * like: its size in pixels, its size in user units, the scale of its content, the viewport
+ * that percentages are relative to, the DPI that real-world units are converted with, and the
+ * render options. The pattern and the render options are held weakly, so the cache doesn't
+ * keep documents alive. Once either of them has been garbage collected, its tiles are removed
+ * the next time the cache is used. The position of the tile is not part of the key, as the
+ * shader that draws the bitmap takes care of that.
+ * <p>
+ * The cache holds the most recently used tiles, up to a fixed number of bytes. Bitmaps are
+ * never modified once they are in the cache, and are not recycled when they are evicted, as
+ * another thread may still be drawing with them.
+ */
+class PatternTileCache {
+    // The largest tile that is rendered to a bitmap. Larger ones are drawn as vectors.
+    static final int MAX_TILE_PIXELS = 512 * 512;
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final LinkedHashMap<Key, Bitmap> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private static long bytes = 0;
+
+
+    // A weak reference from a key to its pattern or render options
+    private static class KeyReference extends WeakReference<Object> {
+        final Key key;
+
+        KeyReference(Object referent, Key key) {
+            super(referent, collected);
+            this.key = key;
+        }
+    }
+
+
+    static class Key {
+        private final KeyReference pattern;
+        private final KeyReference options;    // null if there are no render options
+        private final boolean highFidelity;
+        private final float dpi;
+        private final int width;
+        private final int height;
+        private final float[] values;
+        private final int hash;
+
+        /*
+         * @param pattern      the pattern element.
+         * @param options      the render options in use, or null.
+         * @param highFidelity whether the render options ask for high fidelity rendering.
+         * @param dpi          the DPI that real-world units are converted with.
+         * @param width        the width of the bitmap in pixels.
+         * @param height       the height of the bitmap in pixels.
+         * @param values       anything else that affects the tile's content, such as sizes in user units.
+         */
+        Key(Object pattern, Object options, boolean highFidelity, float dpi, int width, int height, float... values) {
+            this.pattern = new KeyReference(pattern, this);
+            this.options = (options != null) ? new KeyReference(options, this) : null;
+            this.highFidelity = highFidelity;
+            this.dpi = dpi;
+            this.width = width;
+            this.height = height;
+            this.values = values;
+            int h = System.identityHashCode(pattern);
+            h = h * 31 + System.identityHashCode(options);
+            h = h * 31 + (highFidelity ? 1 : 0);
+            h = h * 31 + Float.floatToIntBits(dpi);
+            h = h * 31 + width;
+            h = h * 31 + height;
+            this.hash = h * 31 + Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            Object p = pattern.get();
+            return hash == other.hash && p != null && p == other.pattern.get() && sameOptions(other)
+                    && highFidelity == other.highFidelity && dpi == other.dpi
+                    && width == other.width && height == other.height && Arrays.equals(values, other.values);
+        }
+
+        private boolean sameOptions(Key other) {
+            if (options == null || other.options == null) {
+                return options == other.options;
+            }
+            Object o = options.get();
+            return o != null && o == other.options.get();
+        }
+    }
+
+
+    static synchronized Bitmap get(Key key) {
+        purge();
+        return cache.get(key);
+    }
+
+
+    static synchronized void put(Key key, Bitmap tile) {
+        purge();
+        Bitmap old = cache.put(key, tile);
+        if (old != null) {
+            bytes -= byteCount(old);
+        }
+        bytes += byteCount(tile);
+
+        // Evict the least recently used tiles, but always keep the one just added
+        Iterator<Map.Entry<Key, Bitmap>> it = cache.entrySet().iterator();
+        while (bytes > MAX_BYTES && cache.size() > 1) {
+            Map.Entry<Key, Bitmap> eldest = it.next();
+            bytes -= byteCount(eldest.getValue());
+            it.remove();
+        }
+    }
+
+
+    static synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+
+    static synchronized int size() {
+        purge();
+        return cache.size();
+    }
+
+
+    // Remove the tiles whose pattern or render options have been garbage collected
+    private static void purge() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            // The map finds a key by identity before calling equals(), which is false once a referent is gone
+            Bitmap tile = cache.remove(((KeyReference) ref).key);
+            if (tile != null) {
+                bytes -= byteCount(tile);
+            }
+        }
+    }
+
+
+    // Tiles are always ARGB_8888. Bitmap.getByteCount() needs API 12.
+    private static long byteCount(Bitmap bitmap) {
+        return 4L * bitmap.getWidth() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import com.caverock.androidsvg.CSSParser.MediaType;
+import com.caverock.androidsvg.CSSParser.Rule;
+import com.caverock.androidsvg.CSSParser.Ruleset;
+
+import org.xml.sax.SAXException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Style changes that are applied when a document is rendered, without altering the parsed
+ * document itself. For example, to draw the same icon in the colours of different themes.
+ * <p>
+ * The options are applied to each element in this order, each one taking precedence over
+ * the ones before it:
+ * <ol>
+ *   <li>The {@link #currentColor(int) currentColor} value, which replaces the initial value
+ *       of the {@code color} property. Elements that set their own {@code color} keep it.</li>
+ *   <li>The element's presentation attributes and the document's own stylesheets.</li>
+ *   <li>The rules from {@link #css(String)}, as if they were in a stylesheet that comes after
+ *       all of the document's rules.</li>
+ *   <li>The element's {@code style} attribute.</li>
+ *   <li>The fill and stroke overrides for the element's id and for each of its classes,
+ *       with id overrides taking precedence.</li>
+ * </ol>
+ * <p>
+ * The options are converted into the form the renderer uses the first time they are used,
+ * and that is kept until the options are next changed. Rendering the same document again
+ * with a different RenderOptions is therefore only the cost of the render. An instance
+ * may be used by more than one thread, as long as it is not being changed at the same time.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class RenderOptions {
+    private Ruleset css = null;
+    private Integer currentColor = null;
+    private boolean highFidelity = false;
+    private BitmapPool bitmapPool = null;
+    private final Map<String, Integer> idFills = new HashMap<>();
+    private final Map<String, Integer> idStrokes = new HashMap<>();
+    private final Map<String, Integer> classFills = new HashMap<>();
+    private final Map<String, Integer> classStrokes = new HashMap<>();
+
+    // The options as the renderer uses them. Built when first needed.
+    private volatile Compiled compiled = null;
+
+
+    /*
+     * The options, converted to the rules and styles that SVGAndroidRenderer applies.
+     */
+    static class Compiled {
+        final Style defaultStyle;              // null if currentColor hasn't been set
+        final List<Rule> cssRules;             // null if there is no CSS
+        final CSSParser.RuleIndex cssIndex;
+        final Map<String, Style> idStyles;
+        final Map<String, Style> classStyles;
+        final boolean highFidelity;
+
+        Compiled(RenderOptions options) {
+            if (options.currentColor != null) {
+                defaultStyle = new Style();
+                defaultStyle.color = new Colour(options.currentColor);
+                defaultStyle.specifiedFlags = SVG.SPECIFIED_COLOR;
+            } else {
+                defaultStyle = null;
+            }
+            if (options.css != null && !options.css.isEmpty()) {
+                cssRules = options.css.getRules();
+                cssIndex = new CSSParser.RuleIndex(cssRules);
+            } else {
+                cssRules = null;
+                cssIndex = null;
+            }
+            idStyles = toStyles(options.idFills, options.idStrokes);
+            classStyles = toStyles(options.classFills, options.classStrokes);
+            highFidelity = options.highFidelity;
+        }
+
+        private static Map<String, Style> toStyles(Map<String, Integer> fills, Map<String, Integer> strokes) {
+            Map<String, Style> styles = new HashMap<>();
+            for (Map.Entry<String, Integer> entry : fills.entrySet()) {
+                Style style = styleFor(styles, entry.getKey());
+                style.fill = new Colour(entry.getValue());
+                style.specifiedFlags |= SVG.SPECIFIED_FILL;
+            }
+            for (Map.Entry<String, Integer> entry : strokes.entrySet()) {
+                Style style = styleFor(styles, entry.getKey());
+                style.stroke = new Colour(entry.getValue());
+                style.specifiedFlags |= SVG.SPECIFIED_STROKE;
+            }
+            return styles.isEmpty() ? null : styles;
+        }
+
+        private static Style styleFor(Map<String, Style> styles, String key) {
+            Style style = styles.get(key);
+            if (style == null) {
+                style = new Style();
+                styles.put(key, style);
+            }
+            return style;
+        }
+    }
+
+
+    /**
+     * Sets a CSS stylesheet to be applied to the document, in addition to any stylesheets the
+     * document contains. Replaces any stylesheet set by a previous call.
+     *
+     * @param css the stylesheet, or null to remove it.
+     * @return this same RenderOptions instance
+     * @throws SVGParseException if the stylesheet can't be parsed.
+     */
+    public RenderOptions css(String css) throws SVGParseException {
+        Ruleset rules = null;
+        if (css != null) {
+            try {
+                rules = StylesheetCache.get(css, MediaType.screen);
+            } catch (SAXException e) {
+                throw new SVGParseException(e.getMessage());
+            }
+        }
+        this.css = rules;
+        this.compiled = null;
+        return this;
+    }
+
+
+    /**
+     * Sets the colour that {@code currentColor} refers to, unless the document sets the
+     * {@code color} property itself.
+     *
+     * @param argb the colour, as an ARGB value such as {@code 0xff336699}.
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions currentColor(int argb) {
+        this.currentColor = argb;
+        this.compiled = null;
+        return this;
+    }
+
+
+    /**
+     * Fills the element with the given id in the given colour, whatever fill the document
+     * gives it. Its descendants inherit the fill in the usual way.
+     *
+     * @param id   the id of the element.
+     * @param argb the colour, as an ARGB value.
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions fillForId(String id, int argb) {
+        return put(idFills, id, argb);
+    }
+
+
+    /**
+     * Strokes the element with the given id in the given colour, whatever stroke the document
+     * gives it.
+     *
+     * @param id   the id of the element.
+     * @param argb the colour, as an ARGB value.
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions strokeForId(String id, int argb) {
+        return put(idStrokes, id, argb);
+    }
+
+
+    /**
+     * Fills the elements that have the given class in the given colour, whatever fill the
+     * document gives them.
+     *
+     * @param className the class name.
+     * @param argb      the colour, as an ARGB value.
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions fillForClass(String className, int argb) {
+        return put(classFills, className, argb);
+    }
+
+
+    /**
+     * Strokes the elements that have the given class in the given colour, whatever stroke
+     * the document gives them.
+     *
+     * @param className the class name.
+     * @param argb      the colour, as an ARGB value.
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions strokeForClass(String className, int argb) {
+        return put(classStrokes, className, argb);
+    }
+
+
+    /**
+     * Asks for everything to be drawn as vectors at the final resolution. By default, the
+     * renderer draws some things to bitmaps once and reuses them, such as the tiles of a
+     * {@code <pattern>}. Those bitmaps are drawn at the scale of the canvas, so they are
+     * not as sharp if the output is scaled up afterwards, for example when printing.
+     *
+     * @param enable true to draw everything as vectors. The default is false.
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions highFidelity(boolean enable) {
+        this.highFidelity = enable;
+        this.compiled = null;
+        return this;
+    }
+
+
+    /**
+     * Sets a pool for the renderer to take the bitmaps it draws into from. For example, a
+     * display list from {@link SVG#compile(android.graphics.RectF, float, RenderOptions)} takes
+     * the bitmaps for its pattern tiles from the pool, and gives them back when it is released.
+     * With a pool, compiling again doesn't need new bitmaps.
+     *
+     * @param pool the pool, or null for the renderer to allocate its own bitmaps each time.
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions bitmapPool(BitmapPool pool) {
+        // Not part of the compiled options, as it doesn't change what is drawn
+        this.bitmapPool = pool;
+        return this;
+    }
+
+
+    /**
+     * Removes all of the options, so that the document is rendered as it is.
+     *
+     * @return this same RenderOptions instance
+     */
+    public RenderOptions clear() {
+        css = null;
+        currentColor = null;
+        highFidelity = false;
+        bitmapPool = null;
+        idFills.clear();
+        idStrokes.clear();
+        classFills.clear();
+        classStrokes.clear();
+        compiled = null;
+        return this;
+    }
+
+
+    private RenderOptions put(Map<String, Integer> overrides, String key, int argb) {
+        overrides.put(key, argb);
+        compiled = null;
+        return this;
+    }
+
+
+    BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+
+    /*
+     * Returns the options in the form the renderer uses, building it if necessary.
+     */
+    Compiled getCompiled() {
+        Compiled result = compiled;
+        if (result == null) {
+            // Two threads may both build it. The results are the same.
+            result = new Compiled(this);
+            compiled = result;
+        }
+        return result;
+    }
+}
@@ -29,16 +29,26 @@ import com.caverock.androidsvg.CSSParser.Ruleset;
 import com.caverock.androidsvg.tag.View;
 import org.xml.sax.SAXException;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * AndroidSVG is a library for reading, parsing and rendering SVG documents on Android devices.
@@ -98,9 +108,11 @@ public class SVG {
 
     // CSS rules
     private Ruleset cssRules = new Ruleset();
+    // Index over cssRules. Built when first needed, and discarded when rules are added.
+    private volatile CSSParser.RuleIndex cssRuleIndex = null;
 
     // Map from id attribute to element
-    private Map<String, SvgElement> idToElementMap = new HashMap<>();
+    private Map<String, SvgElementBase> idToElementMap = new HashMap<>();
 
 
     SVG() {
@@ -121,6 +133,27 @@ public class SVG {
     }
 
 
+    /**
+     * Read just the root {@code <svg>} element from the given {@code InputStream}.
+     * <p>
+     * Parsing stops as soon as the start tag of the root element has been read, so this is much
+     * faster than {@link #getFromInputStream(InputStream)} for large files.  Use it when you only
+     * need the document's size, for example with {@link #getDocumentWidth()},
+     * {@link #getDocumentHeight()}, {@link #getDocumentViewBox()} or
+     * {@link #getDocumentAspectRatio()}.  The returned document has no content, so rendering it
+     * will not draw anything.
+     *
+     * @param is the input stream from which to read the file.
+     * @return an SVG instance containing only the root element.
+     * @throws SVGParseException if there is an error parsing the document.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static SVG peekDimensions(InputStream is) throws SVGParseException {
+        SVGParser parser = new SVGParser();
+        return parser.parseHeader(is);
+    }
+
+
     /**
      * Read and parse an SVG from the given {@code String}.
      *
@@ -198,6 +231,251 @@ public class SVG {
     }
 
 
+    //===============================================================================
+    // Batch parsing
+
+
+    /**
+     * A document that can be handed to {@link #parseAll(Collection, Executor)}.
+     * <p>
+     * Use one of the static {@code fromX()} methods, or subclass it to read from somewhere else.
+     * The stream is opened on the thread that parses it, and is closed by the parser.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static abstract class Source {
+        /**
+         * Opens a new stream from which the document can be read.
+         *
+         * @return the document data.
+         * @throws IOException if the document could not be opened.
+         */
+        public abstract InputStream openStream() throws IOException;
+
+        public static Source fromString(final String svg) {
+            return new Source() {
+                @Override
+                public InputStream openStream() {
+                    return new ByteArrayInputStream(svg.getBytes());
+                }
+            };
+        }
+
+        public static Source fromAsset(final AssetManager assetManager, final String filename) {
+            return new Source() {
+                @Override
+                public InputStream openStream() throws IOException {
+                    return assetManager.open(filename);
+                }
+            };
+        }
+
+        public static Source fromResource(final Resources resources, final int resourceId) {
+            return new Source() {
+                @Override
+                public InputStream openStream() {
+                    return resources.openRawResource(resourceId);
+                }
+            };
+        }
+    }
+
+
+    /**
+     * Parses a batch of SVG documents in parallel.
+     * <p>
+     * Each document is parsed as a separate task on the given {@code Executor}. Use a thread pool
+     * sized to the number of cores to spread the work over all of them. Every worker thread keeps
+     * its own XML parser instance, so parser setup is only paid once per thread.
+     * <p>
+     * The returned list has one entry for each source, in the same order as the collection's
+     * iterator. A document that fails to load does not affect the others. Calling {@code get()}
+     * on its {@code Future} throws an {@code ExecutionException} whose cause is the
+     * {@link SVGParseException}. I/O errors are reported as an {@code SVGParseException} as well.
+     *
+     * @param sources  the documents to parse.
+     * @param executor the executor on which to run the parse tasks.
+     * @return a list of futures holding the parsed documents, in input order.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static List<Future<SVG>> parseAll(Collection<Source> sources, Executor executor) {
+        List<Future<SVG>> results = new ArrayList<>(sources.size());
+        for (final Source source : sources) {
+            FutureTask<SVG> task = new FutureTask<>(new Callable<SVG>() {
+                @Override
+                public SVG call() throws SVGParseException {
+                    InputStream is;
+                    try {
+                        is = source.openStream();
+                    } catch (IOException e) {
+                        throw new SVGParseException("File error", e);
+                    }
+                    return new SVGParser().parse(is);
+                }
+            });
+            results.add(task);
+            executor.execute(task);
+        }
+        return results;
+    }
+
+
+    /**
+     * Switches the XML parser used by all the {@code getFromX()} and {@code parseAll()} methods
+     * between the standard and the "fast" configuration.
+     * <p>
+     * The fast configuration parses namespaces properly, so it also recognises prefixed SVG
+     * elements such as {@code <svg:rect>}. It skips DTD loading, validation and external
+     * entity resolution. References to entities that are defined in an external DTD are
+     * therefore resolved as empty text. The default is the standard configuration.
+     *
+     * @param enable true to use the fast configuration for documents parsed from now on.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void setFastXMLProfile(boolean enable) {
+        XMLReaderCache.setFastProfile(enable);
+    }
+
+
+    /**
+     * Returns whether the fast XML parser configuration is in use.
+     *
+     * @return true if {@link #setFastXMLProfile(boolean)} has enabled the fast configuration.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static boolean isFastXMLProfile() {
+        return XMLReaderCache.isFastProfile();
+    }
+
+
+    /**
+     * Enables or disables lazy parsing of {@code <path>} data.
+     * <p>
+     * When enabled, the parser keeps the text of each {@code d} attribute and only parses it
+     * the first time the path is rendered or measured. Documents with many paths that are never
+     * drawn, such as unused {@code <defs>}, hidden {@code <switch>} branches or groups with
+     * {@code display:none}, then load faster and use less memory. A path is parsed only once,
+     * even if the document is being rendered on several threads at the same time.
+     * <p>
+     * The setting applies to documents parsed after the call. The default is disabled.
+     *
+     * @param enable true to defer parsing of path data until it is first needed.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void setLazyPathParsing(boolean enable) {
+        SVGParser.setLazyPathParsing(enable);
+    }
+
+
+    /**
+     * Returns whether lazy parsing of {@code <path>} data is enabled.
+     *
+     * @return true if {@link #setLazyPathParsing(boolean)} has enabled lazy parsing.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static boolean isLazyPathParsing() {
+        return SVGParser.isLazyPathParsing();
+    }
+
+
+    /**
+     * Sets an {@code Executor} on which geometry attributes are parsed in parallel.
+     * <p>
+     * When an executor is set, the XML pass only records the {@code d} attributes of paths, the
+     * {@code points} attributes of polylines and polygons, and all {@code transform} attributes.
+     * They are then parsed in parallel on the executor's threads before the {@code getFromX()}
+     * method returns. The thread that called {@code getFromX()} takes part in the work, so it is
+     * safe to use the same executor for {@link #parseAll(Collection, Executor)}. The parsed
+     * document is exactly the same as one that was parsed sequentially.
+     * <p>
+     * This pays off for large documents with a lot of path data. Path data is not recorded when
+     * {@link #setLazyPathParsing(boolean)} is enabled, as it is parsed later in that case.
+     * The setting applies to documents parsed after the call.
+     *
+     * @param executor the executor to use, or null to parse everything on the calling thread (the default).
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void setGeometryParsingExecutor(Executor executor) {
+        SVGParser.setGeometryExecutor(executor);
+    }
+
+
+    //===============================================================================
+    // Compiled documents
+
+
+    /**
+     * Writes this document in a compact binary form that can be loaded again with
+     * {@link #readCompiled(InputStream)} or {@link #readCompiled(ByteBuffer)}.
+     * <p>
+     * Loading a compiled document is much faster than parsing the SVG, because no XML, style
+     * or path data parsing is needed. A typical use is to compile documents at build time, or
+     * on first use, and ship or cache the compiled form. The format is versioned, and documents
+     * written by a different version of the library may be rejected when read.
+     * <p>
+     * The stream is flushed but not closed.
+     *
+     * @param os the stream to write to.
+     * @throws IOException if the stream could not be written.
+     * @throws IllegalArgumentException if there is no current SVG document loaded.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void writeCompiled(OutputStream os) throws IOException {
+        if (this.rootElement == null) {
+            throw new IllegalArgumentException("SVG document is empty");
+        }
+        SVGBinaryFormat.write(this, new DataOutputStream(new BufferedOutputStream(os)));
+    }
+
+
+    /**
+     * Reads a document that was written by {@link #writeCompiled(OutputStream)}.
+     * <p>
+     * The whole stream is read into memory before decoding. For large files, consider mapping
+     * the file and calling {@link #readCompiled(ByteBuffer)} instead.
+     *
+     * @param is the input stream from which to read the compiled document. It is closed afterwards.
+     * @return an SVG instance on which you can call one of the render methods.
+     * @throws SVGParseException if the data could not be read or is not a valid compiled document.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static SVG readCompiled(InputStream is) throws SVGParseException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(is.available(), 1024));
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                bytes.write(buf, 0, n);
+            }
+            return SVGBinaryFormat.read(ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new SVGParseException("File error", e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+        }
+    }
+
+
+    /**
+     * Reads a document that was written by {@link #writeCompiled(OutputStream)} from a buffer.
+     * <p>
+     * The buffer can be a {@code MappedByteBuffer} obtained from {@code FileChannel.map()}, in
+     * which case the document is decoded straight from the mapped file. Reading starts at the
+     * buffer's current position. The buffer's position, limit and byte order are not changed.
+     *
+     * @param buffer the compiled document.
+     * @return an SVG instance on which you can call one of the render methods.
+     * @throws SVGParseException if the buffer does not contain a valid compiled document.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static SVG readCompiled(ByteBuffer buffer) throws SVGParseException {
+        return SVGBinaryFormat.read(buffer);
+    }
+
+
     //===============================================================================
 
 
@@ -239,6 +517,29 @@ public class SVG {
     }
 
 
+    /**
+     * Match the document's CSS rules against every element once, and store the result, so that
+     * the renderer does not have to match them each time the document is rendered.
+     * <p>
+     * This is worthwhile for documents with {@code <style>} elements that are rendered more than
+     * once.  It applies to elements that are only drawn via a {@code <use>} as well.  Call it
+     * after loading the document and before rendering it.  It is not safe to call it while the
+     * document is being rendered on another thread.
+     *
+     * @throws IllegalArgumentException if there is no current SVG document loaded.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void resolveStylesheets() {
+        if (this.rootElement == null) {
+            throw new IllegalArgumentException("SVG document is empty");
+        }
+        if (!hasCSSRules()) {
+            return;
+        }
+        resolveStyles(this.rootElement, getCSSRuleIndex(), new CSSParser.MatchContext(), new ArrayList<CSSParser.Rule>());
+    }
+
+
     //===============================================================================
     // SVG document rendering to a Picture object (indirect rendering)
 
@@ -286,11 +587,27 @@ public class SVG {
      */
     @SuppressWarnings({"WeakerAccess", "unused"})
     public Picture renderToPicture(int widthInPixels, int heightInPixels) {
+        return renderToPicture(widthInPixels, heightInPixels, null);
+    }
+
+
+    /**
+     * Renders this SVG document to a Picture object, with the style changes given in a
+     * {@link RenderOptions}. The document itself is not changed.
+     *
+     * @param widthInPixels  the width of the initial viewport
+     * @param heightInPixels the height of the initial viewport
+     * @param options        the style changes to apply, or null for none.
+     * @return a Picture object suitable for later rendering using {@code Canvas.drawPicture()}
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Picture renderToPicture(int widthInPixels, int heightInPixels, RenderOptions options) {
         Picture picture = new Picture();
         Canvas canvas = picture.beginRecording(widthInPixels, heightInPixels);
         Box viewPort = new Box(0f, 0f, (float) widthInPixels, (float) heightInPixels);
 
         SVGAndroidRenderer renderer = new SVGAndroidRenderer(canvas, this.renderDPI);
+        renderer.setRenderOptions(options);
 
         renderer.renderDocument(this, viewPort, null, null, false);
 
@@ -314,6 +631,22 @@ public class SVG {
      */
     @SuppressWarnings({"WeakerAccess", "unused"})
     public Picture renderViewToPicture(String viewId, int widthInPixels, int heightInPixels) {
+        return renderViewToPicture(viewId, widthInPixels, heightInPixels, null);
+    }
+
+
+    /**
+     * Renders this SVG document to a Picture object using the specified view defined in the document,
+     * with the style changes given in a {@link RenderOptions}. The document itself is not changed.
+     *
+     * @param viewId         the id of a view element in the document that defines which section of the document is to be visible.
+     * @param widthInPixels  the width of the initial viewport
+     * @param heightInPixels the height of the initial viewport
+     * @param options        the style changes to apply, or null for none.
+     * @return a Picture object suitable for later rendering using {@code Canvas.drawPicture()}, or null if the viewId was not found.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Picture renderViewToPicture(String viewId, int widthInPixels, int heightInPixels, RenderOptions options) {
         SvgObject obj = this.getElementById(viewId);
         if (obj == null) {
             return null;
@@ -334,6 +667,7 @@ public class SVG {
         Box viewPort = new Box(0f, 0f, (float) widthInPixels, (float) heightInPixels);
 
         SVGAndroidRenderer renderer = new SVGAndroidRenderer(canvas, this.renderDPI);
+        renderer.setRenderOptions(options);
 
         renderer.renderDocument(this, viewPort, view.viewBox, view.preserveAspectRatio, false);
 
@@ -366,6 +700,22 @@ public class SVG {
      */
     @SuppressWarnings({"WeakerAccess", "unused"})
     public void renderToCanvas(Canvas canvas, RectF viewPort) {
+        renderToCanvas(canvas, viewPort, null);
+    }
+
+
+    /**
+     * Renders this SVG document to a Canvas object, with the style changes given in a
+     * {@link RenderOptions}. The document itself is not changed, so the same document can be
+     * rendered with different options, for example for a light and a dark theme, without
+     * parsing it again.
+     *
+     * @param canvas   the canvas to which the document should be rendered.
+     * @param viewPort the bounds of the area on the canvas you want the SVG rendered, or null for the whole canvas.
+     * @param options  the style changes to apply, or null for none.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void renderToCanvas(Canvas canvas, RectF viewPort, RenderOptions options) {
         Box canvasViewPort;
 
         if (viewPort != null) {
@@ -375,11 +725,93 @@ public class SVG {
         }
 
         SVGAndroidRenderer renderer = new SVGAndroidRenderer(canvas, this.renderDPI);
+        renderer.setRenderOptions(options);
 
         renderer.renderDocument(this, canvasViewPort, null, null, true);
     }
 
 
+    /**
+     * Reads an SVG document from the given {@code InputStream} and renders it to a Canvas while
+     * it is being parsed.  The full width and height of the canvas will be used as the viewport
+     * into which the document will be rendered.
+     *
+     * @param is     the input stream from which to read the file.
+     * @param canvas the canvas to which the document should be rendered.
+     * @throws SVGParseException if there is an error parsing the document.
+     * @see #renderStreamToCanvas(InputStream, Canvas, RectF)
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void renderStreamToCanvas(InputStream is, Canvas canvas) throws SVGParseException {
+        renderStreamToCanvas(is, canvas, null);
+    }
+
+
+    /**
+     * Reads an SVG document from the given {@code InputStream} and renders it to a Canvas while
+     * it is being parsed.
+     * <p>
+     * No {@code SVG} object is kept.  Elements are drawn as soon as they have been parsed and
+     * are then discarded, unless they have an id that other elements might refer to.  This makes
+     * it possible to draw very large documents, such as maps, with far less memory than
+     * {@link #getFromInputStream(InputStream)} followed by {@link #renderToCanvas(Canvas, RectF)}.
+     * <p>
+     * The output is the same as for those two methods, with one exception.  The rules in a
+     * {@code <style>} element only apply to elements that come after it in the document.  If an
+     * element refers to something that has not been parsed yet, such as a gradient defined at
+     * the end of the file, that element and everything after it is kept and drawn once the
+     * whole document has been read.
+     * <p>
+     * If the document is invalid, anything drawn before the error was found remains on the canvas.
+     * The document is rendered at the default DPI of 96.
+     *
+     * @param is       the input stream from which to read the file.
+     * @param canvas   the canvas to which the document should be rendered.
+     * @param viewPort the bounds of the area on the canvas you want the SVG rendered, or null for the whole canvas.
+     * @throws SVGParseException if there is an error parsing the document.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void renderStreamToCanvas(InputStream is, Canvas canvas, RectF viewPort) throws SVGParseException {
+        renderStreamToCanvas(is, canvas, viewPort, null);
+    }
+
+
+    /**
+     * Reads an SVG document from the given {@code InputStream} and renders it to a Canvas while
+     * it is being parsed, with the style changes given in a {@link RenderOptions}.
+     * <p>
+     * The rules from {@link RenderOptions#css(String)} apply to the whole document, as they do
+     * for {@link #renderToCanvas(Canvas, RectF, RenderOptions)}. Otherwise the output is as
+     * described for {@link #renderStreamToCanvas(InputStream, Canvas, RectF)}.
+     *
+     * @param is       the input stream from which to read the file.
+     * @param canvas   the canvas to which the document should be rendered.
+     * @param viewPort the bounds of the area on the canvas you want the SVG rendered, or null for the whole canvas.
+     * @param options  the style changes to apply, or null for none.
+     * @throws SVGParseException if there is an error parsing the document.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void renderStreamToCanvas(InputStream is, Canvas canvas, RectF viewPort, RenderOptions options) throws SVGParseException {
+        Box canvasViewPort;
+
+        if (viewPort != null) {
+            canvasViewPort = Box.fromLimits(viewPort.left, viewPort.top, viewPort.right, viewPort.bottom);
+        } else {
+            canvasViewPort = new Box(0f, 0f, (float) canvas.getWidth(), (float) canvas.getHeight());
+        }
+
+        StreamingRenderer streamer = new StreamingRenderer(canvas, canvasViewPort, 96f, options);
+        int saveCount = canvas.save();
+        try {
+            new SVGParser(streamer).parse(is);
+            streamer.finish();
+        } finally {
+            // An error part way through can leave layers and clips in place
+            canvas.restoreToCount(saveCount);
+        }
+    }
+
+
     /**
      * Renders this SVG document to a Canvas using the specified view defined in the document.
      * <p>
@@ -415,6 +847,23 @@ public class SVG {
      */
     @SuppressWarnings({"WeakerAccess", "unused"})
     public void renderViewToCanvas(String viewId, Canvas canvas, RectF viewPort) {
+        renderViewToCanvas(viewId, canvas, viewPort, null);
+    }
+
+
+    /**
+     * Renders this SVG document to a Canvas using the specified view defined in the document,
+     * with the style changes given in a {@link RenderOptions}. The document itself is not changed.
+     * <p>
+     * If the {@code <view>} could not be found, nothing will be drawn.
+     *
+     * @param viewId   the id of a view element in the document that defines which section of the document is to be visible.
+     * @param canvas   the canvas to which the document should be rendered.
+     * @param viewPort the bounds of the area on the canvas you want the SVG rendered, or null for the whole canvas.
+     * @param options  the style changes to apply, or null for none.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void renderViewToCanvas(String viewId, Canvas canvas, RectF viewPort, RenderOptions options) {
         SvgObject obj = this.getElementById(viewId);
         if (obj == null) {
             return;
@@ -439,11 +888,65 @@ public class SVG {
         }
 
         SVGAndroidRenderer renderer = new SVGAndroidRenderer(canvas, this.renderDPI);
+        renderer.setRenderOptions(options);
 
         renderer.renderDocument(this, canvasViewPort, view.viewBox, view.preserveAspectRatio, true);
     }
 
 
+    //===============================================================================
+    // SVG document compilation to a display list
+
+
+    /**
+     * Renders this SVG document once into a display list that can be replayed cheaply.
+     * <p>
+     * The returned {@link SVGDisplayList} holds the fully resolved sequence of drawing
+     * operations. Calling {@link SVGDisplayList#draw(Canvas)} reproduces the output of
+     * {@link #renderToCanvas(Canvas, RectF)} without walking the document or evaluating
+     * styles again. Compile again if the document or the required viewport changes.
+     * <p>
+     * Masks and group opacity are recorded as layers. Pattern tiles are drawn to bitmaps at
+     * the scale of the viewport, so they lose sharpness if the display list is drawn scaled up.
+     *
+     * @param viewPort the bounds of the area you want the SVG rendered into.
+     * @param dpi      the DPI to use when converting real-world units such as centimetres.
+     * @return a display list for this document at the given viewport.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public SVGDisplayList compile(RectF viewPort, float dpi) {
+        return compile(viewPort, dpi, null);
+    }
+
+
+    /**
+     * Renders this SVG document once into a display list, with the style changes given in a
+     * {@link RenderOptions}. The options are applied when the display list is compiled, so
+     * changing them afterwards has no effect on it. See {@link #compile(RectF, float)}.
+     * <p>
+     * If the options have a {@link BitmapPool}, the bitmaps for pattern tiles are taken from it,
+     * and the display list keeps them until {@link SVGDisplayList#release()} is called.
+     * Otherwise the tiles are shared with other renders through a cache.
+     *
+     * @param viewPort the bounds of the area you want the SVG rendered into.
+     * @param dpi      the DPI to use when converting real-world units such as centimetres.
+     * @param options  the style changes to apply, or null for none.
+     * @return a display list for this document at the given viewport.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public SVGDisplayList compile(RectF viewPort, float dpi, RenderOptions options) {
+        Box canvasViewPort = Box.fromLimits(viewPort.left, viewPort.top, viewPort.right, viewPort.bottom);
+
+        SVGDisplayList.Recorder recorder = new SVGDisplayList.Recorder(viewPort, (options != null) ? options.getBitmapPool() : null);
+        SVGAndroidRenderer renderer = new SVGAndroidRenderer(recorder, dpi);
+        renderer.setRenderOptions(options);
+
+        renderer.renderDocument(this, canvasViewPort, null, null, true);
+
+        return recorder.finish();
+    }
+
+
     //===============================================================================
     // Other document utility API functions
 
@@ -798,13 +1301,20 @@ public class SVG {
 
 
     SvgObject resolveIRI(String iri) {
+        String id = idFromIRI(iri);
+        return (id != null) ? getElementBaseById(id) : null;
+    }
+
+
+    // Get the id that a local IRI reference ("#id") points to. Returns null for any other kind of IRI.
+    String idFromIRI(String iri) {
         if (iri == null) {
             return null;
         }
 
         iri = cssQuotedString(iri);
         if (iri.length() > 1 && iri.startsWith("#")) {
-            return getElementById(iri.substring(1));
+            return iri.substring(1);
         }
         return null;
     }
@@ -858,6 +1368,7 @@ public class SVG {
 
     void addCSSRules(Ruleset ruleset) {
         this.cssRules.addAll(ruleset);
+        this.cssRuleIndex = null;
     }
 
 
@@ -871,6 +1382,46 @@ public class SVG {
     }
 
 
+    // Store the combined style of the matching CSS rules on obj and its descendants.
+    // Rules are matched against an element's place in the document tree, not against the
+    // <use> elements that refer to it, so the result is valid wherever the element is drawn.
+    private void resolveStyles(SvgObject obj, CSSParser.RuleIndex index, CSSParser.MatchContext ctx,
+                               List<CSSParser.Rule> candidates) {
+        if (obj instanceof SvgElementBase) {
+            SvgElementBase elem = (SvgElementBase) obj;
+            candidates.clear();
+            index.getCandidates(ctx, elem, candidates);
+
+            Style cssStyle = new Style();
+            for (CSSParser.Rule rule : candidates) {
+                if (CSSParser.ruleMatch(ctx, rule.selector, elem) && !cssStyle.merge(rule.style)) {
+                    // Leave this element to the renderer to match
+                    cssStyle = null;
+                    break;
+                }
+            }
+            elem.cssStyle = cssStyle;
+        }
+
+        if (obj instanceof SvgContainer) {
+            for (SvgObject child : ((SvgContainer) obj).getChildren()) {
+                resolveStyles(child, index, ctx, candidates);
+            }
+        }
+    }
+
+
+    // Only valid if hasCSSRules() returns true
+    CSSParser.RuleIndex getCSSRuleIndex() {
+        CSSParser.RuleIndex index = this.cssRuleIndex;
+        if (index == null) {
+            index = new CSSParser.RuleIndex(this.cssRules.getRules());
+            this.cssRuleIndex = index;
+        }
+        return index;
+    }
+
+
     //===============================================================================
     // Object sub-types used in the SVG object tree
 
@@ -954,6 +1505,13 @@ public class SVG {
 
 
     public SvgElement getElementById(String id) {
+        SvgElementBase result = getElementBaseById(id);
+        return (result instanceof SvgElement) ? (SvgElement) result : null;
+    }
+
+
+    // Also finds the elements that aren't SvgElements, such as gradients and <solidColor>.
+    SvgElementBase getElementBaseById(String id) {
         if (id == null || id.length() == 0) {
             return null;
         }
@@ -966,27 +1524,27 @@ public class SVG {
         }
 
         // Search the object tree for a node with id property that matches 'id'
-        SvgElement result = getElementById(rootElement, id);
+        SvgElementBase result = getElementById(rootElement, id);
         idToElementMap.put(id, result);
         return result;
     }
 
 
-    private SvgElement getElementById(SvgContainer obj, String id) {
-        SvgElement elem = (SvgElement) obj;
+    private SvgElementBase getElementById(SvgContainer obj, String id) {
+        SvgElementBase elem = (SvgElementBase) obj;
         if (id.equals(elem.id)) {
             return elem;
         }
         for (SvgObject child : obj.getChildren()) {
-            if (!(child instanceof SvgElement)) {
+            if (!(child instanceof SvgElementBase)) {
                 continue;
             }
-            SvgElement childElem = (SvgElement) child;
+            SvgElementBase childElem = (SvgElementBase) child;
             if (id.equals(childElem.id)) {
                 return childElem;
             }
             if (child instanceof SvgContainer) {
-                SvgElement found = getElementById((SvgContainer) child, id);
+                SvgElementBase found = getElementById((SvgContainer) child, id);
                 if (found != null) {
                     return found;
                 }
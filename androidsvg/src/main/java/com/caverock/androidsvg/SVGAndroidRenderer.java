@@ -20,13 +20,18 @@ package com.caverock.androidsvg;
 import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrixColorFilter;
 import android.graphics.DashPathEffect;
 import android.graphics.LinearGradient;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathMeasure;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.RadialGradient;
 import android.graphics.RectF;
 import android.graphics.Shader;
@@ -66,9 +71,12 @@ import com.caverock.androidsvg.text.TextSequence;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
@@ -88,6 +96,7 @@ class SVGAndroidRenderer
    private SVG                  document;
    private RendererState        state;
    private Stack<RendererState> stateStack;  // Keeps track of render state as we render
+   private List<RendererState>  spareStates = new ArrayList<>();  // Popped states, for reuse by the next push
 
    // Keep track of element stack while rendering.
    private Stack<SvgContainer>  parentStack; // The 'render parent' for elements like Symbol cf. file parent
@@ -96,10 +105,70 @@ class SVGAndroidRenderer
    // Canvas stack for when we are processing mask elements
    private Stack<Canvas>  canvasStack;
    private Stack<Bitmap>  bitmapStack;
+   private Stack<android.graphics.Rect>  maskAreaStack;  // Where each masked content bitmap goes on the canvas below
+
+   // Whether masks are applied using layers, rather than by processMaskBitmaps()
+   private boolean  layerMasks;
+   private Paint    maskLayerPaint = null;
+
+   // Whether each container entered by a streamed render pushed a layer
+   private Stack<Boolean>  streamLayerStack;
+
+   // Reused by updateStyleForElement(). The context keeps track of the ancestors of the
+   // elements being styled, so matching rules against them doesn't allocate anything.
+   private final List<CSSParser.Rule>  cssCandidates = new ArrayList<>();
+   private final CSSParser.MatchContext  cssMatchContext = new CSSParser.MatchContext();
+
+   // Style changes requested by the caller, or null if there are none
+   private RenderOptions.Compiled  renderOptions = null;
+   private BitmapPool  bitmapPool = null;
+
+   // The initial state, with the style that every element inherits from. Copies share its style and paints.
+   private RendererState  defaultState = null;
+
+   // Greater than zero while rendering content that may be drawn more than once in a render, such
+   // as the target of a <use>, or a marker. The computed styles of those elements are memoised.
+   private int  reusedContentDepth = 0;
+   private IdentityHashMap<SvgElementBase, ComputedStyle>  computedStyles = null;
+
+   // The most contexts that are remembered for each element
+   private static final int  MAX_COMPUTED_STYLES_PER_ELEMENT = 8;
+
+   // Greater than zero while the path of a clip path is being built. A clip path that is applied
+   // meanwhile clips the canvas directly, so the path being built can't be reused on its own.
+   private int      clipPathBuildDepth = 0;
+   private boolean  clipPathNotReusable = false;
+
+   // Gradient shaders made during this render, most recently used last. Charts often fill
+   // many shapes with the same gradient, and each one would otherwise need a new shader.
+   private static final int  MAX_CACHED_SHADERS = 32;
+   private final LinkedHashMap<ShaderKey, Shader>  shaderCache = new LinkedHashMap<ShaderKey, Shader>(16, 0.75f, true)
+   {
+      @Override
+      protected boolean  removeEldestEntry(Map.Entry<ShaderKey, Shader> eldest)
+      {
+         return size() > MAX_CACHED_SHADERS;
+      }
+   };
+   private final ShaderKey  shaderLookupKey = new ShaderKey();
+
+   // The last style that had its non-inheriting properties reset, and the result. Siblings
+   // usually all reset the same parent style, and sharing the result lets them share the
+   // computed styles of any content they reuse.
+   private Style    resetStyleSource = null;
+   private Style    resetStyleResult = null;
+   private boolean  resetStyleIsRoot;
+
+   // Results of enterViewBox() and enterGroup()
+   private static final int  CONTAINER_NOT_DISPLAYED = 0;
+   private static final int  CONTAINER_DISPLAYED = 1;
+   private static final int  CONTAINER_COMPOSITED = 2;
 
 
    private static final float  BEZIER_ARC_FACTOR = 0.5522847498f;
 
+   private static final float  SQRT_2 = 1.4142135f;
+
    // The feColorMatrix luminance-to-alpha coefficient. Used for <mask>s.
    // Using integer arithmetic for a little extra speed.
    private static final int  LUMINANCE_FACTOR_SHIFT = 15;
@@ -107,8 +176,24 @@ class SVGAndroidRenderer
    private static final int  LUMINANCE_TO_ALPHA_GREEN = (int)(0.7154f * (1 << LUMINANCE_FACTOR_SHIFT));
    private static final int  LUMINANCE_TO_ALPHA_BLUE = (int)(0.0721f * (1 << LUMINANCE_FACTOR_SHIFT));
 
+   // The same conversion as a colour matrix, for masks composited with a layer paint
+   private static final float[]  LUMINANCE_TO_ALPHA_MATRIX = { 0f, 0f, 0f, 0f, 0f,
+                                                               0f, 0f, 0f, 0f, 0f,
+                                                               0f, 0f, 0f, 0f, 0f,
+                                                               0.2125f, 0.7154f, 0.0721f, 0f, 0f };
+
    private static final String DEFAULT_FONT_FAMILY = "serif";
 
+   // The properties that updateStyle() may apply to the fill and stroke paints
+   private static final long  FILL_PAINT_PROPERTIES = SVG.SPECIFIED_FILL | SVG.SPECIFIED_FILL_OPACITY | SVG.SPECIFIED_COLOR | SVG.SPECIFIED_OPACITY |
+                                                      SVG.SPECIFIED_FONT_SIZE | SVG.SPECIFIED_FONT_FAMILY | SVG.SPECIFIED_FONT_WEIGHT |
+                                                      SVG.SPECIFIED_FONT_STYLE | SVG.SPECIFIED_TEXT_DECORATION;
+   private static final long  STROKE_PAINT_PROPERTIES = SVG.SPECIFIED_STROKE | SVG.SPECIFIED_STROKE_OPACITY | SVG.SPECIFIED_COLOR | SVG.SPECIFIED_OPACITY |
+                                                        SVG.SPECIFIED_STROKE_WIDTH | SVG.SPECIFIED_STROKE_LINECAP | SVG.SPECIFIED_STROKE_LINEJOIN |
+                                                        SVG.SPECIFIED_STROKE_MITERLIMIT | SVG.SPECIFIED_STROKE_DASHARRAY | SVG.SPECIFIED_STROKE_DASHOFFSET |
+                                                        SVG.SPECIFIED_FONT_SIZE | SVG.SPECIFIED_FONT_FAMILY | SVG.SPECIFIED_FONT_WEIGHT |
+                                                        SVG.SPECIFIED_FONT_STYLE | SVG.SPECIFIED_TEXT_DECORATION;
+
    private static HashSet<String>  supportedFeatures = null;
 
 
@@ -126,6 +211,12 @@ class SVGAndroidRenderer
       // Set when we doing direct rendering.
       boolean  directRendering;
 
+      // Whether style and the paints belong to this state, or are still shared with the
+      // state this one was copied from. Use the writable*() methods before changing them.
+      private boolean  ownsStyle;
+      private boolean  ownsFillPaint;
+      private boolean  ownsStrokePaint;
+
 
       RendererState()
       {
@@ -140,42 +231,95 @@ class SVGAndroidRenderer
          strokePaint.setTypeface(Typeface.DEFAULT);
 
          style = Style.getDefaultStyle();
+
+         ownsStyle = ownsFillPaint = ownsStrokePaint = true;
       }
 
+      /*
+       * Most elements don't change any properties, so the copy shares the style and paints
+       * of the original until it needs to change one of them. The original gives up
+       * ownership as well, so whichever of the two changes them first makes its own copy.
+       * The boxes are never modified once they have been assigned to a state, so they can
+       * be shared too.
+       */
       RendererState(RendererState copy)
+      {
+         copyFrom(copy);
+      }
+
+      void  copyFrom(RendererState copy)
       {
          hasFill = copy.hasFill;
          hasStroke = copy.hasStroke;
-         fillPaint = new Paint(copy.fillPaint);
-         strokePaint = new Paint(copy.strokePaint);
-         if (copy.viewPort != null)
-            viewPort = new Box(copy.viewPort);
-         if (copy.viewBox != null)
-            viewBox = new Box(copy.viewBox);
+         fillPaint = copy.fillPaint;
+         strokePaint = copy.strokePaint;
+         viewPort = copy.viewPort;
+         viewBox = copy.viewBox;
          spacePreserve = copy.spacePreserve;
          directRendering = copy.directRendering;
-         try
+         style = copy.style;
+         ownsStyle = ownsFillPaint = ownsStrokePaint = false;
+         copy.ownsStyle = copy.ownsFillPaint = copy.ownsStrokePaint = false;
+      }
+
+      // Stop this state changing its style and paints in place, so that they can be shared
+      void  disown()
+      {
+         ownsStyle = ownsFillPaint = ownsStrokePaint = false;
+      }
+
+      void  setSharedStyle(Style style)
+      {
+         this.style = style;
+         ownsStyle = false;
+      }
+
+      Style  writableStyle()
+      {
+         if (!ownsStyle)
+         {
+            try
+            {
+               style = (Style) style.clone();
+            }
+            catch (CloneNotSupportedException e)
+            {
+               // Should never happen
+               Log.e(TAG, "Unexpected clone error", e);
+               style = Style.getDefaultStyle();
+            }
+            ownsStyle = true;
+         }
+         return style;
+      }
+
+      Paint  writableFillPaint()
+      {
+         if (!ownsFillPaint)
          {
-            style = (Style) copy.style.clone();
+            fillPaint = new Paint(fillPaint);
+            ownsFillPaint = true;
          }
-         catch (CloneNotSupportedException e)
+         return fillPaint;
+      }
+
+      Paint  writableStrokePaint()
+      {
+         if (!ownsStrokePaint)
          {
-            // Should never happen
-            Log.e(TAG, "Unexpected clone error", e);
-            style = Style.getDefaultStyle();
+            strokePaint = new Paint(strokePaint);
+            ownsStrokePaint = true;
          }
+         return strokePaint;
       }
    }
 
 
    private void  resetState()
    {
-      state = new RendererState();
+      state = new RendererState(getDefaultState());
       stateStack = new Stack<>();
 
-      // Initialise the style state properties like Paints etc using a fresh instance of Style
-      updateStyle(state, Style.getDefaultStyle());
-
       state.viewPort = null;  // Get filled in later
 
       state.spacePreserve = false;
@@ -187,6 +331,7 @@ class SVGAndroidRenderer
       // Initialise the stacks used for mask handling
       canvasStack = new Stack<>();
       bitmapStack = new Stack<>();
+      maskAreaStack = new Stack<>();
 
       // Keep track of element stack while rendering.
       // The 'render parent' for some elements (eg <use> references) is different from its DOM parent.
@@ -207,6 +352,28 @@ class SVGAndroidRenderer
    {
       this.canvas = canvas;
       this.dpi = defaultDPI;
+      this.layerMasks = true;
+   }
+
+
+   /*
+    * Choose whether masks are applied by compositing layers (the default), or by combining the
+    * pixels of two bitmaps in Java. Used by the tests to compare the two.
+    */
+   void  setLayerMasks(boolean enable)
+   {
+      this.layerMasks = enable;
+   }
+
+
+   /*
+    * Set the options to apply to the documents rendered by this renderer.
+    */
+   void  setRenderOptions(RenderOptions options)
+   {
+      this.renderOptions = (options != null) ? options.getCompiled() : null;
+      this.bitmapPool = (options != null) ? options.getBitmapPool() : null;
+      this.defaultState = null;
    }
 
 
@@ -331,8 +498,10 @@ class SVGAndroidRenderer
          parentPush(obj);
       }
 
-      for (SvgObject child: obj.getChildren()) {
-         render(child);
+      // Indexed rather than for-each, to avoid allocating an iterator for every container
+      List<SvgObject>  children = obj.getChildren();
+      for (int i = 0; i < children.size(); i++) {
+         render(children.get(i));
       }
 
       if (isContainer) {
@@ -350,7 +519,7 @@ class SVGAndroidRenderer
       canvas.save();
       // Save style state
       stateStack.push(state);
-      state = new RendererState(state);
+      state = copyState(state);
    }
 
 
@@ -359,10 +528,21 @@ class SVGAndroidRenderer
       // Restore matrix and clip
       canvas.restore();
       // Restore style state
+      spareStates.add(state);
       state = stateStack.pop();
    }
 
 
+   private RendererState  copyState(RendererState copy)
+   {
+      if (spareStates.isEmpty())
+         return new RendererState(copy);
+      RendererState  newState = spareStates.remove(spareStates.size() - 1);
+      newState.copyFrom(copy);
+      return newState;
+   }
+
+
    //==============================================================================
 
 
@@ -385,28 +565,213 @@ class SVGAndroidRenderer
 
 
    private void updateStyleForElement(RendererState state, SvgElementBase obj)
+   {
+      if (reusedContentDepth == 0) {
+         computeStyleForElement(state, obj);
+         return;
+      }
+
+      // The same element is being rendered again. If it inherits the same style as a previous
+      // time, it ends up with the same computed style.
+      Box  viewPortUser = getCurrentViewPortInUserUnits();
+      float  viewPortWidth = (viewPortUser != null) ? viewPortUser.width : 0f;
+      float  viewPortHeight = (viewPortUser != null) ? viewPortUser.height : 0f;
+
+      if (computedStyles == null)
+         computedStyles = new IdentityHashMap<>();
+      ComputedStyle  first = computedStyles.get(obj);
+      int  count = 0;
+      for (ComputedStyle computed = first; computed != null; computed = computed.next)
+      {
+         if (computed.appliesTo(state, viewPortWidth, viewPortHeight))
+         {
+            state.style = computed.style;
+            state.fillPaint = computed.fillPaint;
+            state.strokePaint = computed.strokePaint;
+            state.hasFill = computed.hasFill;
+            state.hasStroke = computed.hasStroke;
+            state.disown();
+            return;
+         }
+         count++;
+      }
+
+      if (count == MAX_COMPUTED_STYLES_PER_ELEMENT) {
+         computeStyleForElement(state, obj);
+         return;
+      }
+
+      // Neither the inherited style and paints, nor the computed ones, may be changed in place
+      // once they are in the cache
+      ComputedStyle  computed = new ComputedStyle(state, viewPortWidth, viewPortHeight);
+      state.disown();
+      computeStyleForElement(state, obj);
+      state.disown();
+      computed.style = state.style;
+      computed.fillPaint = state.fillPaint;
+      computed.strokePaint = state.strokePaint;
+      computed.hasFill = state.hasFill;
+      computed.hasStroke = state.hasStroke;
+      computed.next = first;
+      computedStyles.put(obj, computed);
+   }
+
+
+   private void computeStyleForElement(RendererState state, SvgElementBase obj)
    {
       boolean  isRootSVG = (obj.parent == null);
-      state.style.resetNonInheritingProperties(isRootSVG);
+      // Usually the parent has already reset them, so avoid copying the style if we can
+      if (!state.style.hasResetNonInheritingProperties(isRootSVG))
+      {
+         if (state.style == resetStyleSource && isRootSVG == resetStyleIsRoot)
+         {
+            state.setSharedStyle(resetStyleResult);
+         }
+         else
+         {
+            Style  source = state.style;
+            state.writableStyle().resetNonInheritingProperties(isRootSVG);
+            if (state.style != source)
+            {
+               // The source was shared, so it won't change. Share the result as well.
+               resetStyleSource = source;
+               resetStyleResult = state.style;
+               resetStyleIsRoot = isRootSVG;
+               state.setSharedStyle(state.style);
+            }
+         }
+      }
 
       // Apply the styles defined by style attributes on the element
       if (obj.baseStyle != null)
          updateStyle(state, obj.baseStyle);
 
       // Apply the styles from any CSS files or <style> elements
-      if (document.hasCSSRules())
+      if (obj.cssStyle != null)
+      {
+         // Already matched by SVG.resolveStylesheets()
+         updateStyle(state, obj.cssStyle);
+      }
+      else if (document.hasCSSRules())
       {
-         for (CSSParser.Rule rule: document.getCSSRules())
+         // Only test the rules that the index says could match this element
+         cssCandidates.clear();
+         document.getCSSRuleIndex().getCandidates(cssMatchContext, obj, cssCandidates);
+         for (int i = 0; i < cssCandidates.size(); i++)
          {
-            if (CSSParser.ruleMatch(rule.selector, obj)) {
+            CSSParser.Rule  rule = cssCandidates.get(i);
+            if (CSSParser.ruleMatch(cssMatchContext, rule.selector, obj)) {
                updateStyle(state, rule.style);
             }
          }
       }
 
-      // Apply the styles defined by the 'style' attribute. They have the highest precedence.
+      // Apply the rules from the render options' stylesheet, as if it followed the document's own
+      if (renderOptions != null && renderOptions.cssIndex != null)
+      {
+         cssCandidates.clear();
+         renderOptions.cssIndex.getCandidates(cssMatchContext, obj, cssCandidates);
+         for (int i = 0; i < cssCandidates.size(); i++)
+         {
+            CSSParser.Rule  rule = cssCandidates.get(i);
+            if (CSSParser.ruleMatch(cssMatchContext, rule.selector, obj)) {
+               updateStyle(state, rule.style);
+            }
+         }
+      }
+
+      // Apply the styles defined by the 'style' attribute. They have the highest precedence
+      // of the styles in the document.
       if (obj.style != null)
          updateStyle(state, obj.style);
+
+      // Finally the fill and stroke overrides from the render options
+      if (renderOptions != null)
+      {
+         if (renderOptions.classStyles != null && obj.classNames != null)
+         {
+            for (int i = 0; i < obj.classNames.size(); i++)
+            {
+               Style  override = renderOptions.classStyles.get(obj.classNames.get(i));
+               if (override != null)
+                  updateStyle(state, override);
+            }
+         }
+         if (renderOptions.idStyles != null && obj.id != null)
+         {
+            Style  override = renderOptions.idStyles.get(obj.id);
+            if (override != null)
+               updateStyle(state, override);
+         }
+      }
+   }
+
+
+   /*
+    * Returns a state with the initial values of all the style properties, including any that the
+    * render options change. Don't modify it. Make a copy instead.
+    */
+   private RendererState  getDefaultState()
+   {
+      if (defaultState == null)
+      {
+         defaultState = new RendererState();
+         // Font sizes are measured against the current state, so there has to be one
+         RendererState  current = state;
+         if (current == null)
+            state = defaultState;
+         updateStyle(defaultState, Style.getDefaultStyle());
+         if (renderOptions != null && renderOptions.defaultStyle != null)
+            updateStyle(defaultState, renderOptions.defaultStyle);
+         state = current;
+         defaultState.disown();
+      }
+      return defaultState;
+   }
+
+
+   /*
+    * The result of updateStyleForElement() for one element and one inherited state.
+    */
+   private static class ComputedStyle
+   {
+      // The inherited state
+      final Style    parentStyle;
+      final Paint    parentFillPaint;
+      final Paint    parentStrokePaint;
+      final boolean  parentHasFill;
+      final boolean  parentHasStroke;
+      // Percentage lengths are relative to the viewport
+      final float    viewPortWidth;
+      final float    viewPortHeight;
+
+      // The element's computed state
+      Style    style;
+      Paint    fillPaint;
+      Paint    strokePaint;
+      boolean  hasFill;
+      boolean  hasStroke;
+
+      ComputedStyle  next;
+
+
+      ComputedStyle(RendererState parent, float viewPortWidth, float viewPortHeight)
+      {
+         this.parentStyle = parent.style;
+         this.parentFillPaint = parent.fillPaint;
+         this.parentStrokePaint = parent.strokePaint;
+         this.parentHasFill = parent.hasFill;
+         this.parentHasStroke = parent.hasStroke;
+         this.viewPortWidth = viewPortWidth;
+         this.viewPortHeight = viewPortHeight;
+      }
+
+      boolean  appliesTo(RendererState state, float viewPortWidth, float viewPortHeight)
+      {
+         return state.style == parentStyle && state.fillPaint == parentFillPaint && state.strokePaint == parentStrokePaint &&
+                state.hasFill == parentHasFill && state.hasStroke == parentHasStroke &&
+                this.viewPortWidth == viewPortWidth && this.viewPortHeight == viewPortHeight;
+      }
    }
 
 
@@ -450,37 +815,33 @@ class SVGAndroidRenderer
    {
       // TODO handle degenerate subpaths properly
 
-      if (state.style.vectorEffect == VectorEffect.NonScalingStroke)
+      // A zero width stroke is a hairline, which is already one device pixel wide whatever the
+      // transform. Its fill path would be the path itself, which would fill the shape instead.
+      if (state.style.vectorEffect == VectorEffect.NonScalingStroke && state.strokePaint.getStrokeWidth() != 0f)
       {
          // For non-scaling-stroke, the stroke width is not transformed along with the path.
          // It will be rendered at the same width no matter how the document contents are transformed.
 
          // First step: get the current canvas matrix
          Matrix  currentMatrix = canvas.getMatrix();
+         Matrix  inverseMatrix = new Matrix();
+         if (!currentMatrix.invert(inverseMatrix))
+            return;  // Everything is squashed flat, so there is nothing to see
          // Transform the path using this transform
          Path  transformedPath = new Path();
          path.transform(currentMatrix, transformedPath);
-         // Reset the current canvas transform completely
-         canvas.setMatrix(new Matrix());
-
-         // If there is a shader (such as a gradient), we need to update its transform also
-         Shader  shader = state.strokePaint.getShader();
-         Matrix  currentShaderMatrix = new Matrix();
-         if (shader != null) {
-            shader.getLocalMatrix(currentShaderMatrix);
-            Matrix  newShaderMatrix = new Matrix(currentShaderMatrix);
-            newShaderMatrix.postConcat(currentMatrix);
-            shader.setLocalMatrix(newShaderMatrix);
-         }
 
-         // Render the transformed path. The stroke width used will be in unscaled device units.
-         canvas.drawPath(transformedPath, state.strokePaint);
+         // Work out the outline of the stroke in device units, then map it back into user space
+         // and fill it. Any shader (such as a gradient) is then used with its own matrix, as it
+         // may be shared with other paints and mustn't be changed.
+         Path  outline = new Path();
+         state.strokePaint.getFillPath(transformedPath, outline);
+         outline.transform(inverseMatrix);
 
-         // Return the current canvas transform to what it was before all this happened
-         canvas.setMatrix(currentMatrix);
-         // And reset the shader matrix also
-         if (shader != null)
-            shader.setLocalMatrix(currentShaderMatrix);
+         Paint  outlinePaint = new Paint(state.strokePaint);
+         outlinePaint.setStyle(Paint.Style.FILL);
+         outlinePaint.setPathEffect(null);
+         canvas.drawPath(outline, outlinePaint);
       }
       else
       {
@@ -546,9 +907,24 @@ class SVGAndroidRenderer
    {
       debug("SvgViewBox render");
 
-      if (viewPort.width == 0f || viewPort.height == 0f)
+      int  entered = enterViewBox(obj, viewPort, viewBox, positioning);
+      if (entered == CONTAINER_NOT_DISPLAYED)
          return;
 
+      renderChildren(obj, true);
+
+      leaveContainer(obj, entered == CONTAINER_COMPOSITED);
+   }
+
+
+   /*
+    * The part of rendering an <svg> element that comes before its children are rendered.
+    */
+   private int  enterViewBox(SvgViewBox obj, Box viewPort, Box viewBox, PreserveAspectRatio positioning)
+   {
+      if (viewPort.width == 0f || viewPort.height == 0f)
+         return CONTAINER_NOT_DISPLAYED;
+
       // "If attribute 'preserveAspectRatio' is not specified, then the effect is as if a value of xMidYMid meet were specified."
       if (positioning == null)
          positioning = (obj.preserveAspectRatio != null) ? obj.preserveAspectRatio : PreserveAspectRatio.LETTERBOX;
@@ -556,7 +932,7 @@ class SVGAndroidRenderer
       updateStyleForElement(state, obj);
 
       if (!display())
-         return;
+         return CONTAINER_NOT_DISPLAYED;
 
       state.viewPort = viewPort;
 
@@ -578,8 +954,15 @@ class SVGAndroidRenderer
       // Action the viewport-fill property (if set)
       viewportFill();
 
-      renderChildren(obj, true);
+      return compositing ? CONTAINER_COMPOSITED : CONTAINER_DISPLAYED;
+   }
+
 
+   /*
+    * The part of rendering a container element that comes after its children are rendered.
+    */
+   private void  leaveContainer(SvgElement obj, boolean compositing)
+   {
       if (compositing)
          popLayer(obj);
 
@@ -608,10 +991,22 @@ class SVGAndroidRenderer
    {
       debug("Group render");
 
+      int  entered = enterGroup(obj);
+      if (entered == CONTAINER_NOT_DISPLAYED)
+         return;
+
+      renderChildren(obj, true);
+
+      leaveContainer(obj, entered == CONTAINER_COMPOSITED);
+   }
+
+
+   private int  enterGroup(Group obj)
+   {
       updateStyleForElement(state, obj);
 
       if (!display())
-         return;
+         return CONTAINER_NOT_DISPLAYED;
 
       if (obj.transform != null) {
          canvas.concat(obj.transform);
@@ -619,14 +1014,82 @@ class SVGAndroidRenderer
 
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      return pushLayer() ? CONTAINER_COMPOSITED : CONTAINER_DISPLAYED;
+   }
 
-      renderChildren(obj, true);
 
-      if (compositing)
-         popLayer(obj);
+   //==============================================================================
+   // Streamed rendering. Used by StreamingRenderer to draw a document while it is being parsed.
+   // Together these do the same as renderDocument(), except that the containers on the path
+   // from the root to the element being parsed are entered and left one at a time.
 
-      updateParentBoundingBox(obj);
+
+   /*
+    * Start rendering a document of which only the root <svg> element has been parsed so far.
+    * Returns false if the root element is not displayed, in which case there is nothing to draw.
+    */
+   boolean  startStreamedDocument(SVG document, Box canvasViewPort)
+   {
+      this.document = document;
+      this.directRenderingMode = true;
+
+      SvgViewBox  rootObj = document.getRootElement();
+
+      resetState();
+      streamLayerStack = new Stack<>();
+
+      checkXMLSpaceAttribute(rootObj);
+
+      statePush();
+
+      int  entered = enterViewBox(rootObj, canvasViewPort, rootObj.viewBox, rootObj.preserveAspectRatio);
+      if (entered == CONTAINER_NOT_DISPLAYED) {
+         statePop();
+         return false;
+      }
+      parentPush(rootObj);
+      streamLayerStack.push(entered == CONTAINER_COMPOSITED);
+      return true;
+   }
+
+
+   /*
+    * Enter a group whose attributes have been parsed, but whose children have not.
+    * Returns false if the group is not displayed. In that case it has not been entered.
+    */
+   boolean  enterStreamedGroup(Group obj)
+   {
+      statePush();
+      checkXMLSpaceAttribute(obj);
+
+      int  entered = enterGroup(obj);
+      if (entered == CONTAINER_NOT_DISPLAYED) {
+         statePop();
+         return false;
+      }
+      parentPush(obj);
+      streamLayerStack.push(entered == CONTAINER_COMPOSITED);
+      return true;
+   }
+
+
+   /*
+    * Render a complete element that is a child of the most recently entered container.
+    */
+   void  renderStreamedChild(SvgObject obj)
+   {
+      render(obj);
+   }
+
+
+   /*
+    * Leave the most recently entered container, once all its children have been rendered.
+    */
+   void  leaveStreamedContainer(SvgElement obj)
+   {
+      parentPop();
+      leaveContainer(obj, streamLayerStack.pop());
+      statePop();
    }
 
 
@@ -679,55 +1142,198 @@ class SVGAndroidRenderer
    //==============================================================================
 
 
-   @SuppressLint("WrongConstant")
+   /*
+    * Start a compositing layer for the current element, if its opacity or mask need one.
+    * Containers use this version, as their bounding box is not known until their children
+    * have been rendered.
+    */
    private boolean  pushLayer()
+   {
+      return pushLayer(null);
+   }
+
+
+   /*
+    * As above, for an element whose bounding box has already been calculated. The layers are
+    * then limited to the area the element can paint, and to its mask region, rather than
+    * covering the whole clip.
+    */
+   @SuppressLint("WrongConstant")
+   private boolean  pushLayer(SvgElement obj)
    {
       if (!requiresCompositing())
          return false;
 
+      Mask  mask = null;
+      if (state.style.mask != null && state.directRendering) {
+         SvgObject ref = document.resolveIRI(state.style.mask);
+         // Check the we are referencing a mask element
+         if (ref instanceof Mask)
+            mask = (Mask) ref;
+         else
+            error("Mask reference '%s' not found", state.style.mask);
+      }
+
+      RectF  bounds = layerBounds(obj, mask);
+      boolean  bitmapMask = (mask != null && !layerMasks);
+      android.graphics.Rect  maskArea = bitmapMask ? maskBitmapArea(bounds) : null;
+
       // Custom version of statePush() that also saves the layer
-      canvas.saveLayerAlpha(null, clamp255(state.style.opacity), Canvas.HAS_ALPHA_LAYER_SAVE_FLAG);
+      if ((bounds != null && canvas.quickReject(bounds, Canvas.EdgeType.AA)) ||
+          (maskArea != null && maskArea.isEmpty()))
+      {
+         // None of the element can be seen. Skip the layer, and its mask, and let the
+         // element draw into an empty clip.
+         canvas.save();
+         canvas.clipRect(0f, 0f, 0f, 0f);
+         mask = null;
+      }
+      else
+      {
+         canvas.saveLayerAlpha(bounds, clamp255(state.style.opacity), Canvas.HAS_ALPHA_LAYER_SAVE_FLAG);
+      }
 
       // Save style state
       stateStack.push(state);
-      state = new RendererState(state);
+      state = copyState(state);
 
-      if (state.style.mask != null && state.directRendering) {
-         SvgObject ref = document.resolveIRI(state.style.mask);
-         // Check the we are referencing a mask element
-         if (ref == null || !(ref instanceof Mask)) {
-            // This is an invalid mask reference - disable this object's mask
-            error("Mask reference '%s' not found", state.style.mask);
-            state.style.mask = null;
-            return true;
-         }
+      if (mask == null) {
+         // Either an invalid mask reference or an invisible element - disable this object's mask
+         if (state.style.mask != null && state.directRendering)
+            state.writableStyle().mask = null;
+         return true;
+      }
+      if (layerMasks)
+      {
+         // Draw the content to a layer. popLayer() draws the mask over it. The bitmap version
+         // below draws the content with the fill paint, so the layer uses its alpha too.
+         Paint  contentPaint = new Paint();
+         contentPaint.setAlpha(state.fillPaint.getAlpha());
+         canvas.saveLayer(bounds, contentPaint, Canvas.ALL_SAVE_FLAG);
+      }
+      else
+      {
          // We now need to replace the canvas with one onto which we draw the content that is getting masked
          canvasStack.push(canvas);
-         duplicateCanvas();
+         maskAreaStack.push(maskArea);
+         duplicateCanvas(maskArea);
       }
 
       return true;
    }
 
 
+   /*
+    * The area, in the current user space, outside of which compositing the element will not
+    * change the canvas. Null if that isn't known.
+    */
+   private RectF  layerBounds(SvgElement obj, Mask mask)
+   {
+      RectF  bounds = null;
+      if (obj instanceof GraphicsElement)
+         bounds = shapePaintBounds(obj);
+      if (mask != null)
+      {
+         Box  region = maskRegion(mask, (obj != null) ? obj.boundingBox : null);
+         if (region != null)
+         {
+            RectF  regionBounds = new RectF(region.minX, region.minY, region.maxX(), region.maxY());
+            if (bounds == null)
+               bounds = regionBounds;
+            else if (!bounds.intersect(regionBounds))
+               bounds.setEmpty();
+         }
+      }
+      return bounds;
+   }
+
+
+   /*
+    * The area a shape can paint: its bounding box, grown by the furthest its stroke can reach
+    * outside of it. Null if that can't be worked out from the style alone.
+    */
+   private RectF  shapePaintBounds(SvgElement obj)
+   {
+      Box  bbox = obj.boundingBox;
+      if (bbox == null)
+         return null;
+      // Markers can be drawn anywhere
+      if (state.style.markerStart != null || state.style.markerMid != null || state.style.markerEnd != null)
+         return null;
+
+      float  outset = 0f;
+      if (state.hasStroke)
+      {
+         float  strokeWidth = state.strokePaint.getStrokeWidth();
+         // Non-scaling strokes, and hairlines, have their width in device pixels
+         if (state.style.vectorEffect == VectorEffect.NonScalingStroke || strokeWidth == 0f)
+            return null;
+         // Square caps reach sqrt(2) half widths beyond the end of a path, miter joins up to the miter limit
+         float  reach = SQRT_2;
+         if (state.style.strokeLineJoin == Style.LineJoin.Miter && state.style.strokeMiterLimit != null)
+            reach = Math.max(reach, state.style.strokeMiterLimit);
+         outset = strokeWidth / 2f * reach;
+      }
+      return new RectF(bbox.minX - outset, bbox.minY - outset, bbox.maxX() + outset, bbox.maxY() + outset);
+   }
+
+
+   /*
+    * The pixels of the canvas that the bitmaps of processMaskBitmaps() need to cover.
+    */
+   @SuppressWarnings("deprecation")
+   private android.graphics.Rect  maskBitmapArea(RectF bounds)
+   {
+      android.graphics.Rect  area = new android.graphics.Rect(0, 0, canvas.getWidth(), canvas.getHeight());
+      if (bounds != null)
+      {
+         RectF  deviceBounds = new RectF();
+         canvas.getMatrix().mapRect(deviceBounds, bounds);
+         android.graphics.Rect  boundsArea = new android.graphics.Rect();
+         deviceBounds.roundOut(boundsArea);
+         if (!area.intersect(boundsArea))
+            area.setEmpty();
+      }
+      return area;
+   }
+
+
    private void  popLayer(SvgElement obj)
    {
       // If this is masked content, apply the mask now
-      if (state.style.mask != null && state.directRendering) {
+      if (state.style.mask != null && state.directRendering && layerMasks) {
+         // The masked content has been drawn to a layer. Draw the mask in a layer of its own, whose
+         // paint converts its luminance to alpha and multiplies the content's alpha by it.
+         SvgObject ref = document.resolveIRI(state.style.mask);
+         canvas.saveLayer(null, getMaskLayerPaint(), Canvas.ALL_SAVE_FLAG);
+         // Start from opaque black, so that the luminance is that of the premultiplied mask
+         // colour, and areas the mask doesn't cover hide the content
+         canvas.drawColor(Color.BLACK);
+         renderMask((Mask) ref, obj);
+         canvas.restore();
+         // Then draw the masked content onto the canvas
+         canvas.restore();
+      }
+      else if (state.style.mask != null && state.directRendering) {
          // The masked content has been drawn, now we have to render the mask to a separate canvas
          SvgObject ref = document.resolveIRI(state.style.mask);
-         duplicateCanvas();
+         android.graphics.Rect  maskArea = maskAreaStack.pop();
+         duplicateCanvas(new android.graphics.Rect(0, 0, maskArea.width(), maskArea.height()));
          renderMask((Mask) ref, obj);
 
-         Bitmap  maskedContent = processMaskBitmaps();
+         Bitmap  maskedContent = processMaskBitmaps(maskArea.width(), maskArea.height());
 
          // Retrieve the real canvas
          canvas = canvasStack.pop();
          canvas.save();
          // Reset the canvas matrix so that we can draw the maskedContent exactly over the top of the root bitmap
          canvas.setMatrix(new Matrix());
-         canvas.drawBitmap(maskedContent, 0, 0, state.fillPaint);  // FIXME paint
-         maskedContent.recycle();
+         // Pooled bitmaps can be larger than the area
+         canvas.clipRect(maskArea.left, maskArea.top, maskArea.right, maskArea.bottom);
+         boolean  handedOver = handOverBitmap(maskedContent);
+         canvas.drawBitmap(maskedContent, maskArea.left, maskArea.top, state.fillPaint);  // FIXME paint
+         if (!handedOver)
+            releaseBitmap(maskedContent);
          canvas.restore();
       }
 
@@ -745,14 +1351,32 @@ class SVGAndroidRenderer
    }
 
 
+   private Paint  getMaskLayerPaint()
+   {
+      if (maskLayerPaint == null)
+      {
+         maskLayerPaint = new Paint();
+         maskLayerPaint.setColorFilter(new ColorMatrixColorFilter(LUMINANCE_TO_ALPHA_MATRIX));
+         maskLayerPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
+      }
+      return maskLayerPaint;
+   }
+
+
+   /*
+    * Replace the canvas with one that draws to a new bitmap covering the given pixels of it.
+    */
    @SuppressWarnings("deprecation")
-   private void duplicateCanvas()
+   private void duplicateCanvas(android.graphics.Rect area)
    {
       try {
-         Bitmap  newBM = Bitmap.createBitmap(canvas.getWidth(), canvas.getHeight(), Bitmap.Config.ARGB_8888);
+         Bitmap  newBM = acquireBitmap(area.width(), area.height());
          bitmapStack.push(newBM);
          Canvas  newCanvas = new Canvas(newBM);
-         newCanvas.setMatrix(canvas.getMatrix());
+         newCanvas.clipRect(0, 0, area.width(), area.height());
+         Matrix  matrix = canvas.getMatrix();
+         matrix.postTranslate(-area.left, -area.top);
+         newCanvas.setMatrix(matrix);
          canvas = newCanvas;
       } catch (OutOfMemoryError e) {
          error("Not enough memory to create temporary bitmaps for mask processing");
@@ -761,7 +1385,7 @@ class SVGAndroidRenderer
    }
 
 
-   private Bitmap  processMaskBitmaps()
+   private Bitmap  processMaskBitmaps(int w, int h)
    {
       // Retrieve the rendered mask
       Bitmap  mask = bitmapStack.pop();
@@ -770,8 +1394,6 @@ class SVGAndroidRenderer
       // Convert the mask bitmap to an alpha channel and multiply it to the content
       // We will process the bitmaps in a row-wise fashion to save memory.
       // It doesn't seem to be be significantly slower than doing it all at once.
-      int    w = mask.getWidth();
-      int    h = mask.getHeight();
       int[]  maskBuf = new int[w];
       int[]  maskedContentBuf = new int[w];
       for (int y=0; y<h; y++)
@@ -798,11 +1420,55 @@ class SVGAndroidRenderer
          }
          maskedContent.setPixels(maskedContentBuf, 0, w, 0, y, w, 1);
       }
-      mask.recycle();
+      releaseBitmap(mask);
       return maskedContent;
    }
 
 
+   /*
+    * A transparent bitmap of at least the given size, for temporary use.
+    */
+   private Bitmap  acquireBitmap(int width, int height)
+   {
+      if (bitmapPool != null)
+         return bitmapPool.acquire(width, height);
+      return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+   }
+
+
+   /*
+    * A display list that is being compiled with a bitmap pool owns the pooled bitmaps it draws,
+    * and gives them back to the pool when it is released. Returns false, having done nothing,
+    * if the canvas isn't one of those.
+    */
+   private boolean  handOverBitmap(Bitmap bitmap)
+   {
+      if (recorderPool() == null)
+         return false;
+      ((SVGDisplayList.Recorder) canvas).adoptBitmap(bitmap);
+      return true;
+   }
+
+
+   // The bitmap pool of the display list being recorded, or null
+   private BitmapPool  recorderPool()
+   {
+      return (canvas instanceof SVGDisplayList.Recorder) ? ((SVGDisplayList.Recorder) canvas).getBitmapPool() : null;
+   }
+
+
+   /*
+    * Finish with a bitmap from acquireBitmap().
+    */
+   private void  releaseBitmap(Bitmap bitmap)
+   {
+      if (bitmapPool != null)
+         bitmapPool.release(bitmap);
+      else
+         bitmap.recycle();
+   }
+
+
    //==============================================================================
 
 
@@ -1006,6 +1672,7 @@ class SVGAndroidRenderer
       boolean  compositing = pushLayer();
 
       parentPush(obj);
+      reusedContentDepth++;
 
       if (ref instanceof SvgViewBox)
       {
@@ -1031,6 +1698,7 @@ class SVGAndroidRenderer
          render(ref);
       }
 
+      reusedContentDepth--;
       parentPop();
 
       if (compositing)
@@ -1062,22 +1730,16 @@ class SVGAndroidRenderer
       if (obj.transform != null)
          canvas.concat(obj.transform);
 
-      Path  path = (new PathConverter(obj.d)).getPath();
-
-      if (obj.boundingBox == null) {
-         obj.boundingBox = calculatePathBounds(path);
-      }
+      Path  path = makePathAndBoundingBox(obj);
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
-      if (state.hasFill) {
-         path.setFillType(getFillTypeFromState());
-         doFilledPath(obj, path);
-      }
+      if (state.hasFill)
+         doFilledPath(obj, withFillType(path, getFillTypeFromState()));
       if (state.hasStroke)
          doStroke(path);
 
@@ -1088,6 +1750,20 @@ class SVGAndroidRenderer
    }
 
 
+   /*
+    * The path with the given fill type. Paths from the geometry cache may be in use by other
+    * renderers, so they are copied rather than changed.
+    */
+   private static Path  withFillType(Path path, Path.FillType fillType)
+   {
+      if (path.getFillType() == fillType)
+         return path;
+      Path  copy = new Path(path);
+      copy.setFillType(fillType);
+      return copy;
+   }
+
+
    private Box  calculatePathBounds(Path path)
    {
       RectF  pathBounds = new RectF();
@@ -1122,7 +1798,7 @@ class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1161,7 +1837,7 @@ class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1199,7 +1875,7 @@ class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1236,7 +1912,7 @@ class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       doStroke(path);
 
@@ -1291,7 +1967,7 @@ class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1374,7 +2050,7 @@ class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1430,7 +2106,7 @@ class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       enumerateTextSpans(obj, new PlainTextDrawer(x + dx, y + dy));
 
@@ -1924,7 +2600,7 @@ class SVGAndroidRenderer
 
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       viewportFill();
 
@@ -2069,6 +2745,16 @@ class SVGAndroidRenderer
     */
    private void updateStyle(RendererState state, Style style)
    {
+      if (style.specifiedFlags == 0)
+         return;
+
+      // Take our own copies of the style and any paint that this style will change
+      state.writableStyle();
+      if (isSpecified(style, FILL_PAINT_PROPERTIES))
+         state.writableFillPaint();
+      if (isSpecified(style, STROKE_PAINT_PROPERTIES))
+         state.writableStrokePaint();
+
       // Now update each style property we know about
       if (isSpecified(style, SVG.SPECIFIED_COLOR))
       {
@@ -2384,9 +3070,9 @@ class SVGAndroidRenderer
       }
       col = colourWithOpacity(col, paintOpacity);
       if (isFill)
-         state.fillPaint.setColor(col);
+         state.writableFillPaint().setColor(col);
       else
-         state.strokePaint.setColor(col);
+         state.writableStrokePaint().setColor(col);
    }
 
 
@@ -2956,7 +3642,8 @@ class SVGAndroidRenderer
          return;
 
       // We don't want the markers to inherit themselves as markers, otherwise we get infinite recursion.
-      state.style.markerStart = state.style.markerMid = state.style.markerEnd = null;
+      Style  style = state.writableStyle();
+      style.markerStart = style.markerMid = style.markerEnd = null;
 
       if (_markerStart != null)
          renderMarker(_markerStart, markers.get(0));
@@ -2982,6 +3669,7 @@ class SVGAndroidRenderer
       float  unitsScale;
 
       statePush();
+      reusedContentDepth++;
 
       // Calculate vector angle
       if (marker.orient != null)
@@ -3101,6 +3789,7 @@ class SVGAndroidRenderer
       if (compositing)
          popLayer(marker);
 
+      reusedContentDepth--;
       statePop();
    }
 
@@ -3111,8 +3800,7 @@ class SVGAndroidRenderer
     */
    private RendererState  findInheritFromAncestorState(SvgObject obj)
    {
-      RendererState newState = new RendererState();
-      updateStyle(newState, Style.getDefaultStyle());
+      RendererState newState = new RendererState(getDefaultState());
       return findInheritFromAncestorState(obj, newState);
    }
 
@@ -3132,8 +3820,10 @@ class SVGAndroidRenderer
       }
 
       // Now apply the ancestor styles in reverse order to a fresh RendererState object
+      reusedContentDepth++;
       for (SvgElementBase ancestor: ancestors)
          updateStyleForElement(newState, ancestor);
+      reusedContentDepth--;
 
       // Caller may also need a valid viewBox in order to calculate percentages
       newState.viewBox = state.viewBox;
@@ -3198,11 +3888,9 @@ class SVGAndroidRenderer
 
    private void  makeLinearGradient(boolean isFill, Box boundingBox, SvgLinearGradient gradient)
    {
-      if (gradient.href != null)
-         fillInChainedGradientFields(gradient, gradient.href);
+      resolveGradientHrefs(gradient);
 
       boolean  userUnits = (gradient.gradientUnitsAreUser != null && gradient.gradientUnitsAreUser);
-      Paint    paint = isFill ? state.fillPaint : state.strokePaint;
 
       float  _x1,_y1,_x2,_y2;
       if (userUnits)
@@ -3221,29 +3909,11 @@ class SVGAndroidRenderer
          _y2 = (gradient.y2 != null) ? gradient.y2.floatValue(this, 1f): 0f;
       }
 
-      // Push the state
-      statePush();
-
-      // Set the style for the gradient (inherits from its own ancestors, not from callee's state)
-      state = findInheritFromAncestorState(gradient);
-
-      // Calculate the gradient transform matrix
-      Matrix m = new Matrix();
-      if (!userUnits)
-      {
-         m.preTranslate(boundingBox.minX, boundingBox.minY);
-         m.preScale(boundingBox.width, boundingBox.height);
-      }
-      if (gradient.gradientTransform != null)
-      {
-         m.preConcat(gradient.gradientTransform);
-      }
-
       // Create the colour and position arrays for the shader
-      int    numStops = gradient.children.size();
+      GradientStops  stops = getGradientStops(gradient);
+      int  numStops = stops.colours.length;
       if (numStops == 0) {
          // If there are no stops defined, we are to treat it as paint = 'none' (see spec 13.2.4)
-         statePop();
          if (isFill)
             state.hasFill = false;
          else
@@ -3251,109 +3921,56 @@ class SVGAndroidRenderer
          return;
       }
 
-      int[]  colours = new int[numStops];
-      float[]  positions = new float[numStops];
-      int  i = 0;
-      float  lastOffset = -1;
-      for (SvgObject child: gradient.children)
-      {
-         Stop stop = (Stop) child;
-         float offset = (stop.offset != null) ? stop.offset : 0f;
-         if (i == 0 || offset >= lastOffset) {
-            positions[i] = offset;
-            lastOffset = offset;
-         } else {
-            // Each offset must be equal or greater than the last one.
-            // If it doesn't we need to replace it with the previous value.
-            positions[i] = lastOffset;
-         }
-
-         statePush();
-
-         updateStyleForElement(state, stop);
-         Colour col = (Colour) state.style.stopColor;
-         if (col == null)
-            col = Colour.BLACK;
-         colours[i] = colourWithOpacity(col.colour, state.style.stopOpacity);
-         i++;
-
-         statePop();
-      }
+      Paint  paint = isFill ? state.writableFillPaint() : state.writableStrokePaint();
 
       // If gradient vector is zero length, we instead fill with last stop colour
       if ((_x1 == _x2 && _y1 == _y2) || numStops == 1) {
-         statePop();
-         paint.setColor(colours[numStops - 1]);
+         paint.setColor(stops.colours[numStops - 1]);
          return;
       }
 
-      // Convert spreadMethod->TileMode
-      TileMode  tileMode = TileMode.CLAMP;
-      if (gradient.spreadMethod != null)
+      // The shader only depends on these values, so a previous one can often be reused
+      ShaderKey  key = shaderKey(gradient, stops, userUnits, boundingBox, _x1, _y1, _x2, _y2);
+      Shader  gr = shaderCache.get(key);
+      if (gr == null)
       {
-         if (gradient.spreadMethod == GradientSpread.reflect)
-            tileMode = TileMode.MIRROR;
-         else if (gradient.spreadMethod == GradientSpread.repeat)
-            tileMode = TileMode.REPEAT;
+         // Create shader instance
+         gr = new LinearGradient(_x1, _y1, _x2, _y2, stops.colours, stops.positions, gradientTileMode(gradient));
+         gr.setLocalMatrix(gradientMatrix(gradient, userUnits, boundingBox));
+         shaderCache.put(new ShaderKey(key), gr);
       }
-
-      statePop();
-
-      // Create shader instance
-      LinearGradient  gr = new LinearGradient(_x1, _y1, _x2, _y2, colours, positions, tileMode);
-      gr.setLocalMatrix(m);
       paint.setShader(gr);
    }
 
 
    private void  makeRadialGradient(boolean isFill, Box boundingBox, SvgRadialGradient gradient)
    {
-      if (gradient.href != null)
-         fillInChainedGradientFields(gradient, gradient.href);
+      resolveGradientHrefs(gradient);
 
       boolean  userUnits = (gradient.gradientUnitsAreUser != null && gradient.gradientUnitsAreUser);
-      Paint    paint = isFill ? state.fillPaint : state.strokePaint;
 
       float  _cx,_cy,_r;
       if (userUnits)
       {
-         Length fiftyPercent = new Length(50f, Unit.percent);
-         _cx = (gradient.cx != null) ? gradient.cx.floatValueX(this): fiftyPercent.floatValueX(this);
-         _cy = (gradient.cy != null) ? gradient.cy.floatValueY(this): fiftyPercent.floatValueY(this);
-         _r = (gradient.r != null) ? gradient.r.floatValue(this): fiftyPercent.floatValue(this);
-      }
-      else
-      {
-         _cx = (gradient.cx != null) ? gradient.cx.floatValue(this, 1f): 0.5f;
-         _cy = (gradient.cy != null) ? gradient.cy.floatValue(this, 1f): 0.5f;
-         _r = (gradient.r != null) ? gradient.r.floatValue(this, 1f): 0.5f;
-      }
-      // fx and fy are ignored because Android RadialGradient doesn't support a
-      // 'focus' point that is different from cx,cy.
-
-      // Push the state
-      statePush();
-
-      // Set the style for the gradient (inherits from its own ancestors, not from callee's state)
-      state = findInheritFromAncestorState(gradient);
-
-      // Calculate the gradient transform matrix
-      Matrix m = new Matrix();
-      if (!userUnits)
-      {
-         m.preTranslate(boundingBox.minX, boundingBox.minY);
-         m.preScale(boundingBox.width, boundingBox.height);
+         Length fiftyPercent = new Length(50f, Unit.percent);
+         _cx = (gradient.cx != null) ? gradient.cx.floatValueX(this): fiftyPercent.floatValueX(this);
+         _cy = (gradient.cy != null) ? gradient.cy.floatValueY(this): fiftyPercent.floatValueY(this);
+         _r = (gradient.r != null) ? gradient.r.floatValue(this): fiftyPercent.floatValue(this);
       }
-      if (gradient.gradientTransform != null)
+      else
       {
-         m.preConcat(gradient.gradientTransform);
+         _cx = (gradient.cx != null) ? gradient.cx.floatValue(this, 1f): 0.5f;
+         _cy = (gradient.cy != null) ? gradient.cy.floatValue(this, 1f): 0.5f;
+         _r = (gradient.r != null) ? gradient.r.floatValue(this, 1f): 0.5f;
       }
+      // fx and fy are ignored because Android RadialGradient doesn't support a
+      // 'focus' point that is different from cx,cy.
 
       // Create the colour and position arrays for the shader
-      int    numStops = gradient.children.size();
+      GradientStops  stops = getGradientStops(gradient);
+      int  numStops = stops.colours.length;
       if (numStops == 0) {
          // If there are no stops defined, we are to treat it as paint = 'none' (see spec 13.2.4)
-         statePop();
          if (isFill)
             state.hasFill = false;
          else
@@ -3361,7 +3978,46 @@ class SVGAndroidRenderer
          return;
       }
 
-      int[]  colours = new int[numStops];
+      Paint  paint = isFill ? state.writableFillPaint() : state.writableStrokePaint();
+
+      // If gradient radius is zero, we instead fill with last stop colour
+      if (_r == 0 || numStops == 1) {
+         paint.setColor(stops.colours[numStops - 1]);
+         return;
+      }
+
+      // The shader only depends on these values, so a previous one can often be reused
+      ShaderKey  key = shaderKey(gradient, stops, userUnits, boundingBox, _cx, _cy, _r, 0f);
+      Shader  gr = shaderCache.get(key);
+      if (gr == null)
+      {
+         // Create shader instance
+         gr = new RadialGradient(_cx, _cy, _r, stops.colours, stops.positions, gradientTileMode(gradient));
+         gr.setLocalMatrix(gradientMatrix(gradient, userUnits, boundingBox));
+         shaderCache.put(new ShaderKey(key), gr);
+      }
+      paint.setShader(gr);
+   }
+
+
+   /*
+    * Returns the stop colours and offsets for the gradient, working them out if the ones
+    * kept on the element were computed with different render options.
+    */
+   private GradientStops  getGradientStops(GradientElement gradient)
+   {
+      GradientStops  stops = gradient.stops;
+      if (stops != null && stops.options == renderOptions)
+         return stops;
+
+      // Push the state
+      statePush();
+
+      // Set the style for the gradient (inherits from its own ancestors, not from callee's state)
+      state = findInheritFromAncestorState(gradient);
+
+      int      numStops = gradient.children.size();
+      int[]    colours = new int[numStops];
       float[]  positions = new float[numStops];
       int  i = 0;
       float  lastOffset = -1;
@@ -3381,38 +4037,141 @@ class SVGAndroidRenderer
          statePush();
 
          updateStyleForElement(state, stop);
-         Colour col = (Colour) state.style.stopColor;
-         if (col == null)
-            col = Colour.BLACK;
-         colours[i] = colourWithOpacity(col.colour, state.style.stopOpacity);
+         int  col;
+         if (state.style.stopColor instanceof Colour)
+            col = ((Colour) state.style.stopColor).colour;
+         else if (state.style.stopColor instanceof CurrentColor)
+            col = state.style.color.colour;
+         else
+            col = Colour.BLACK.colour;
+         colours[i] = colourWithOpacity(col, state.style.stopOpacity);
          i++;
 
          statePop();
       }
 
-      // If gradient radius is zero, we instead fill with last stop colour
-      if (_r == 0 || numStops == 1) {
-         statePop();
-         paint.setColor(colours[numStops - 1]);
-         return;
+      statePop();
+
+      stops = new GradientStops(renderOptions, colours, positions);
+      gradient.stops = stops;
+      return stops;
+   }
+
+
+   // Calculate the gradient transform matrix
+   private static Matrix  gradientMatrix(GradientElement gradient, boolean userUnits, Box boundingBox)
+   {
+      Matrix m = new Matrix();
+      if (!userUnits)
+      {
+         m.preTranslate(boundingBox.minX, boundingBox.minY);
+         m.preScale(boundingBox.width, boundingBox.height);
+      }
+      if (gradient.gradientTransform != null)
+      {
+         m.preConcat(gradient.gradientTransform);
+      }
+      return m;
+   }
+
+
+   // Convert spreadMethod->TileMode
+   private static TileMode  gradientTileMode(GradientElement gradient)
+   {
+      if (gradient.spreadMethod == GradientSpread.reflect)
+         return TileMode.MIRROR;
+      else if (gradient.spreadMethod == GradientSpread.repeat)
+         return TileMode.REPEAT;
+      return TileMode.CLAMP;
+   }
+
+
+   /*
+    * Identifies a gradient shader by everything it is built from. The bounding box only
+    * matters for objectBoundingBox units, so that userSpaceOnUse gradients can be reused
+    * for every object they fill.
+    */
+   private static class ShaderKey
+   {
+      GradientElement  gradient;
+      GradientStops    stops;
+      final float[]    values = new float[8];
+      int  hash;
+
+      ShaderKey()
+      {
       }
 
-      // Convert spreadMethod->TileMode
-      TileMode  tileMode = TileMode.CLAMP;
-      if (gradient.spreadMethod != null)
+      ShaderKey(ShaderKey other)
       {
-         if (gradient.spreadMethod == GradientSpread.reflect)
-            tileMode = TileMode.MIRROR;
-         else if (gradient.spreadMethod == GradientSpread.repeat)
-            tileMode = TileMode.REPEAT;
+         gradient = other.gradient;
+         stops = other.stops;
+         System.arraycopy(other.values, 0, values, 0, values.length);
+         hash = other.hash;
       }
 
-      statePop();
+      @Override
+      public int  hashCode()
+      {
+         return hash;
+      }
 
-      // Create shader instance
-      RadialGradient  gr = new RadialGradient(_cx, _cy, _r, colours, positions, tileMode);
-      gr.setLocalMatrix(m);
-      paint.setShader(gr);
+      @Override
+      public boolean  equals(Object o)
+      {
+         if (!(o instanceof ShaderKey))
+            return false;
+         ShaderKey  other = (ShaderKey) o;
+         if (hash != other.hash || gradient != other.gradient || stops != other.stops)
+            return false;
+         for (int i = 0; i < values.length; i++)
+         {
+            if (Float.floatToIntBits(values[i]) != Float.floatToIntBits(other.values[i]))
+               return false;
+         }
+         return true;
+      }
+   }
+
+
+   // Fills in the key used to look up a shader. The returned key is reused by the next call.
+   private ShaderKey  shaderKey(GradientElement gradient, GradientStops stops, boolean userUnits, Box boundingBox, float v0, float v1, float v2, float v3)
+   {
+      ShaderKey  key = shaderLookupKey;
+      key.gradient = gradient;
+      key.stops = stops;
+      float[]  values = key.values;
+      values[0] = v0;
+      values[1] = v1;
+      values[2] = v2;
+      values[3] = v3;
+      if (userUnits) {
+         values[4] = values[5] = values[6] = values[7] = 0f;
+      } else {
+         values[4] = boundingBox.minX;
+         values[5] = boundingBox.minY;
+         values[6] = boundingBox.width;
+         values[7] = boundingBox.height;
+      }
+      int  hash = System.identityHashCode(gradient);
+      for (float value: values)
+         hash = hash * 31 + Float.floatToIntBits(value);
+      key.hash = hash;
+      return key;
+   }
+
+
+   /*
+    * Any unspecified fields in this gradient can be 'borrowed' from the gradients
+    * that it references. That only has to be done once.
+    */
+   private void  resolveGradientHrefs(GradientElement gradient)
+   {
+      if (gradient.href != null && !gradient.hrefResolved)
+      {
+         fillInChainedGradientFields(gradient, gradient.href);
+         gradient.hrefResolved = true;
+      }
    }
 
 
@@ -3499,13 +4258,13 @@ class SVGAndroidRenderer
       {
         if (isSpecified(ref.baseStyle, SVG.SPECIFIED_SOLID_COLOR))
         {
-           state.style.fill = ref.baseStyle.solidColor;
+           state.writableStyle().fill = ref.baseStyle.solidColor;
            state.hasFill = (ref.baseStyle.solidColor != null);
         }
 
         if (isSpecified(ref.baseStyle, SVG.SPECIFIED_SOLID_OPACITY))
         {
-           state.style.fillOpacity = ref.baseStyle.solidOpacity;
+           state.writableStyle().fillOpacity = ref.baseStyle.solidOpacity;
         }
 
         // If either fill or its opacity has changed, update the fillPaint
@@ -3519,13 +4278,13 @@ class SVGAndroidRenderer
       {
         if (isSpecified(ref.baseStyle, SVG.SPECIFIED_SOLID_COLOR))
         {
-           state.style.stroke = ref.baseStyle.solidColor;
+           state.writableStyle().stroke = ref.baseStyle.solidColor;
            state.hasStroke = (ref.baseStyle.solidColor != null);
         }
 
         if (isSpecified(ref.baseStyle, SVG.SPECIFIED_SOLID_OPACITY))
         {
-           state.style.strokeOpacity = ref.baseStyle.solidOpacity;
+           state.writableStyle().strokeOpacity = ref.baseStyle.solidOpacity;
         }
 
         // If either fill or its opacity has changed, update the fillPaint
@@ -3554,6 +4313,8 @@ class SVGAndroidRenderer
    {
       if (state.style.clipPath == null)
          return;
+      if (clipPathBuildDepth > 0)
+         clipPathNotReusable = true;
 
       // Locate the referenced object
       SvgObject ref = obj.document.resolveIRI(state.style.clipPath);
@@ -3591,18 +4352,43 @@ class SVGAndroidRenderer
          canvas.concat(clipPath.transform);
       }
 
-      // "Properties inherit into the <clipPath> element from its ancestors; properties do not
-      // inherit from the element referencing the <clipPath> element." (sect 14.3.5)
-      state = findInheritFromAncestorState(clipPath);
+      // The path doesn't depend on the referencing element, so reuse the one built last time if we can.
+      // Percentages in the clip path are relative to the viewport in user units, so that is part of the key.
+      Box            viewPortUser = getCurrentViewPortInUserUnits();
+      ClipPathCache  cached = (clipPathBuildDepth == 0) ? ClipPathCache.get(clipPath, renderOptions, dpi, viewPortUser) : null;
+      if (cached == null)
+      {
+         // "Properties inherit into the <clipPath> element from its ancestors; properties do not
+         // inherit from the element referencing the <clipPath> element." (sect 14.3.5)
+         state = findInheritFromAncestorState(clipPath);
+
+         clipPathBuildDepth++;
+         checkForClipPath(clipPath);
 
-      checkForClipPath(clipPath);
+         Path  combinedPath = new Path();
+         reusedContentDepth++;
+         for (SvgObject child: clipPath.children)
+         {
+            addObjectToClip(child, true, combinedPath, new Matrix());
+         }
+         reusedContentDepth--;
+         clipPathBuildDepth--;
 
-      Path  combinedPath = new Path();
-      for (SvgObject child: clipPath.children)
-      {
-         addObjectToClip(child, true, combinedPath, new Matrix());
+         RectF  rect = new RectF();
+         cached = new ClipPathCache(renderOptions, dpi, viewPortUser, combinedPath, combinedPath.isRect(rect) ? rect : null);
+         if (clipPathBuildDepth == 0)
+         {
+            if (!clipPathNotReusable)
+               ClipPathCache.put(clipPath, cached);
+            clipPathNotReusable = false;
+         }
       }
-      canvas.clipPath(combinedPath);
+
+      // Clipping to a rectangle is much cheaper than to a path
+      if (cached.rect != null)
+         canvas.clipRect(cached.rect.left, cached.rect.top, cached.rect.right, cached.rect.bottom);
+      else
+         canvas.clipPath(cached.path);
 
       clipStatePop();
    }
@@ -3647,7 +4433,7 @@ class SVGAndroidRenderer
       canvas.save(Canvas.MATRIX_SAVE_FLAG);
       // Save style state
       stateStack.push(state);
-      state = new RendererState(state);
+      state = copyState(state);
    }
 
 
@@ -3656,6 +4442,7 @@ class SVGAndroidRenderer
       // Restore matrix and clip
       canvas.restore();
       // Restore style state
+      spareStates.add(state);
       state = stateStack.pop();
    }
 
@@ -3687,11 +4474,7 @@ class SVGAndroidRenderer
       if (obj.transform != null)
          combinedPathMatrix.preConcat(obj.transform);
 
-      Path  path = (new PathConverter(obj.d)).getPath();
-
-      if (obj.boundingBox == null) {
-         obj.boundingBox = calculatePathBounds(path);
-      }
+      Path  path = makePathAndBoundingBox(obj);
       checkForClipPath(obj);
 
       //path.setFillType(getClipRuleFromState());
@@ -3843,6 +4626,19 @@ class SVGAndroidRenderer
    //==============================================================================
 
 
+   private Path  makePathAndBoundingBox(com.caverock.androidsvg.tag.Path obj)
+   {
+      GeometryCache  cache = geometryCacheFor(obj);
+      if (cache != null && cache.matches(obj.d, 0, 0, 0, 0, 0, 0))
+         return cachedPath(obj, cache);
+
+      Path  path = (new PathConverter(obj.d)).getPath();
+
+      storeGeometry(obj, new GeometryCache(obj.d, 0, 0, 0, 0, 0, 0, path, calculatePathBounds(path)));
+      return path;
+   }
+
+
    private Path  makePathAndBoundingBox(Line obj)
    {
       float x1 = (obj.x1 == null) ? 0 : obj.x1.floatValueX(this);
@@ -3850,13 +4646,15 @@ class SVGAndroidRenderer
       float x2 = (obj.x2 == null) ? 0 : obj.x2.floatValueX(this);
       float y2 = (obj.y2 == null) ? 0 : obj.y2.floatValueY(this);
 
-      if (obj.boundingBox == null) {
-         obj.boundingBox = new Box(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2-x1), Math.abs(y2-y1));
-      }
+      GeometryCache  cache = geometryCacheFor(obj);
+      if (cache != null && cache.matches(obj, x1, y1, x2, y2, 0, 0))
+         return cachedPath(obj, cache);
 
       Path  p = new Path();
       p.moveTo(x1, y1);
       p.lineTo(x2, y2);
+
+      storeGeometry(obj, new GeometryCache(obj, x1, y1, x2, y2, 0, 0, p, new Box(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2-x1), Math.abs(y2-y1))));
       return p;
    }
 
@@ -3883,9 +4681,9 @@ class SVGAndroidRenderer
       w = obj.width.floatValueX(this);
       h = obj.height.floatValueY(this);
 
-      if (obj.boundingBox == null) {
-         obj.boundingBox = new Box(x, y, w, h);
-      }
+      GeometryCache  cache = geometryCacheFor(obj);
+      if (cache != null && cache.matches(obj, x, y, w, h, rx, ry))
+         return cachedPath(obj, cache);
 
       float  right = x + w;
       float  bottom = y + h;
@@ -3919,6 +4717,8 @@ class SVGAndroidRenderer
          p.lineTo(x, y+ry);
       }
       p.close();
+
+      storeGeometry(obj, new GeometryCache(obj, x, y, w, h, rx, ry, p, new Box(x, y, w, h)));
       return p;
    }
 
@@ -3929,15 +4729,15 @@ class SVGAndroidRenderer
       float  cy = (obj.cy != null) ? obj.cy.floatValueY(this) : 0f;
       float  r = obj.r.floatValue(this);
 
+      GeometryCache  cache = geometryCacheFor(obj);
+      if (cache != null && cache.matches(obj, cx, cy, r, 0, 0, 0))
+         return cachedPath(obj, cache);
+
       float  left = cx - r;
       float  top = cy - r;
       float  right = cx + r;
       float  bottom = cy + r;
 
-      if (obj.boundingBox == null) {
-         obj.boundingBox = new Box(left, top, r*2, r*2);
-      }
-
       float  cp = r * BEZIER_ARC_FACTOR;
 
       Path  p = new Path();
@@ -3947,6 +4747,8 @@ class SVGAndroidRenderer
       p.cubicTo(cx-cp, bottom, left, cy+cp, left, cy);
       p.cubicTo(left, cy-cp, cx-cp, top, cx, top);
       p.close();
+
+      storeGeometry(obj, new GeometryCache(obj, cx, cy, r, 0, 0, 0, p, new Box(left, top, r*2, r*2)));
       return p;
    }
 
@@ -3958,15 +4760,15 @@ class SVGAndroidRenderer
       float  rx = obj.rx.floatValueX(this);
       float  ry = obj.ry.floatValueY(this);
 
+      GeometryCache  cache = geometryCacheFor(obj);
+      if (cache != null && cache.matches(obj, cx, cy, rx, ry, 0, 0))
+         return cachedPath(obj, cache);
+
       float  left = cx - rx;
       float  top = cy - ry;
       float  right = cx + rx;
       float  bottom = cy + ry;
 
-      if (obj.boundingBox == null) {
-         obj.boundingBox = new Box(left, top, rx*2, ry*2);
-      }
-
       float  cpx = rx * BEZIER_ARC_FACTOR;
       float  cpy = ry * BEZIER_ARC_FACTOR;
 
@@ -3977,27 +4779,61 @@ class SVGAndroidRenderer
       p.cubicTo(cx-cpx, bottom, left, cy+cpy, left, cy);
       p.cubicTo(left, cy-cpy, cx-cpx, top, cx, top);
       p.close();
+
+      storeGeometry(obj, new GeometryCache(obj, cx, cy, rx, ry, 0, 0, p, new Box(left, top, rx*2, ry*2)));
       return p;
    }
 
 
    private Path makePathAndBoundingBox(PolyLine obj)
    {
-      Path  path = new Path();
+      GeometryCache  cache = geometryCacheFor(obj);
+      Path           path;
 
-      path.moveTo(obj.points[0], obj.points[1]);
-      for (int i=2; i<obj.points.length; i+=2) {
-         path.lineTo(obj.points[i], obj.points[i+1]);
+      if (cache != null && cache.matches(obj.points, 0, 0, 0, 0, 0, 0))
+      {
+         path = cachedPath(obj, cache);
       }
-      if (obj instanceof Polygon)
-         path.close();
+      else
+      {
+         path = new Path();
+         path.moveTo(obj.points[0], obj.points[1]);
+         for (int i=2; i<obj.points.length; i+=2) {
+            path.lineTo(obj.points[i], obj.points[i+1]);
+         }
+         if (obj instanceof Polygon)
+            path.close();
 
-      if (obj.boundingBox == null) {
-         obj.boundingBox = calculatePathBounds(path);
+         storeGeometry(obj, new GeometryCache(obj.points, 0, 0, 0, 0, 0, 0, path, calculatePathBounds(path)));
       }
 
-      path.setFillType(getClipRuleFromState());
-      return path;
+      return withFillType(path, getClipRuleFromState());
+   }
+
+
+   /*
+    * The converted Paths are kept on each element and reused for as long as the values they
+    * were built from (the path data or points array, and the resolved lengths) stay the same.
+    * Callers must treat the returned Path as read-only. Use withFillType() to change its fill type.
+    */
+   private static GeometryCache  geometryCacheFor(GraphicsElement obj)
+   {
+      return obj.geometryCache;
+   }
+
+
+   private static void  storeGeometry(GraphicsElement obj, GeometryCache cache)
+   {
+      obj.geometryCache = cache;
+      obj.boundingBox = cache.bounds;
+   }
+
+
+   private Path  cachedPath(GraphicsElement obj, GeometryCache cache)
+   {
+      if (obj.boundingBox == null)
+         obj.boundingBox = cache.bounds;
+      return cache.path;
    }
 
 
@@ -4012,13 +4848,13 @@ class SVGAndroidRenderer
     */
    private void  fillWithPattern(SvgElement obj, Path path, Pattern pattern)
    {
+      if (pattern.href != null)
+         fillInChainedPatternFields(pattern, pattern.href);
+
       boolean      patternUnitsAreUser = (pattern.patternUnitsAreUser != null && pattern.patternUnitsAreUser);
       float        x, y, w, h;
       float        originX, originY;
 
-      if (pattern.href != null)
-         fillInChainedPatternFields(pattern, pattern.href);
-
       if (patternUnitsAreUser)
       {
          x = (pattern.x != null) ? pattern.x.floatValueX(this): 0f;
@@ -4046,15 +4882,22 @@ class SVGAndroidRenderer
 
       // Push the state
       statePush();
-      // Set path as the clip region
-      canvas.clipPath(path);
 
       // Set the style for the pattern (inherits from its own ancestors, not from callee's state)
-      RendererState  baseState = new RendererState();
-      updateStyle(baseState, Style.getDefaultStyle());
-      baseState.style.overflow = false;    // By default patterns do not overflow
+      RendererState  baseState = new RendererState(getDefaultState());
+      baseState.writableStyle().overflow = false;    // By default patterns do not overflow
       state = findInheritFromAncestorState(pattern, baseState);
 
+      // Draw the tile once to a bitmap, and fill the shape with that, if we can
+      if (fillWithPatternTile(obj, path, pattern, x, y, w, h, positioning))
+      {
+         statePop();
+         return;
+      }
+
+      // Set path as the clip region
+      canvas.clipPath(path);
+
       // The bounds of the area we need to cover with pattern to ensure that our shape is filled
       Box  patternArea = obj.boundingBox;
       // Apply the patternTransform
@@ -4089,52 +4932,153 @@ class SVGAndroidRenderer
       float  right = patternArea.maxX();
       float  bottom = patternArea.maxY();
       Box    stepViewBox = new Box(0,0,w,h);
+      reusedContentDepth++;
       for (float stepY = originY; stepY < bottom; stepY += h)
       {
          for (float stepX = originX; stepX < right; stepX += w)
          {
             stepViewBox.minX = stepX;
             stepViewBox.minY = stepY;
-            // Push the state
-            statePush();
-            // Set pattern clip rectangle if appropriate
-            if (!state.style.overflow) {
-               setClipRect(stepViewBox.minX, stepViewBox.minY, stepViewBox.width, stepViewBox.height);
-            }
-            // Calculate and set the viewport for each instance of the pattern
-            if (pattern.viewBox != null)
-            {
-               canvas.concat(calculateViewBoxTransform(stepViewBox, pattern.viewBox, positioning));
-            }
-            else
-            {
-               boolean  patternContentUnitsAreUser = (pattern.patternContentUnitsAreUser == null || pattern.patternContentUnitsAreUser);
-               // Simple translate of pattern to step position
-               canvas.translate(stepX, stepY);
-               if (!patternContentUnitsAreUser) {
-                  canvas.scale(obj.boundingBox.width, obj.boundingBox.height);
-               }
-            }
+            renderPatternTile(obj, pattern, stepViewBox, positioning);
+         }
+      }
+      reusedContentDepth--;
+      // Pop the state
+      statePop();
+   }
 
-            boolean  compositing = pushLayer();
 
-            // Render the pattern
-            for (SvgObject child: pattern.children) {
-               render(child);
-            }
+   /*
+    * Render one tile of a pattern, covering the given area in pattern space.
+    */
+   private void  renderPatternTile(SvgElement obj, Pattern pattern, Box stepViewBox, PreserveAspectRatio positioning)
+   {
+      // Push the state
+      statePush();
+      // Set pattern clip rectangle if appropriate
+      if (!state.style.overflow) {
+         setClipRect(stepViewBox.minX, stepViewBox.minY, stepViewBox.width, stepViewBox.height);
+      }
+      // Calculate and set the viewport for each instance of the pattern
+      if (pattern.viewBox != null)
+      {
+         canvas.concat(calculateViewBoxTransform(stepViewBox, pattern.viewBox, positioning));
+      }
+      else
+      {
+         boolean  patternContentUnitsAreUser = (pattern.patternContentUnitsAreUser == null || pattern.patternContentUnitsAreUser);
+         // Simple translate of pattern to step position
+         canvas.translate(stepViewBox.minX, stepViewBox.minY);
+         if (!patternContentUnitsAreUser) {
+            canvas.scale(obj.boundingBox.width, obj.boundingBox.height);
+         }
+      }
 
-            if (compositing)
-               popLayer(pattern);
+      boolean  compositing = pushLayer();
 
-            // Pop the state
-            statePop();
-         }
+      // Render the pattern
+      for (SvgObject child: pattern.children) {
+         render(child);
       }
+
+      if (compositing)
+         popLayer(pattern);
+
       // Pop the state
       statePop();
    }
 
 
+   /*
+    * Fill the path using a bitmap of one tile of the pattern, repeated by a BitmapShader.
+    * The bitmap is rendered at the current device scale and kept in the PatternTileCache,
+    * so each tile is only drawn once however many shapes and frames it fills. When compiling
+    * a display list with a bitmap pool, the display list keeps the bitmap instead.
+    *
+    * Returns false, having drawn nothing, if the pattern has to be drawn as vectors instead:
+    * when rendering to a Picture (which may be played back at any scale), when high fidelity
+    * output was asked for, when the pattern
+    * content overflows its tile, or when the tile would be too large.
+    */
+   private boolean  fillWithPatternTile(SvgElement obj, Path path, Pattern pattern, float x, float y, float w, float h, PreserveAspectRatio positioning)
+   {
+      if (!state.directRendering)
+         return false;
+      if (renderOptions != null && renderOptions.highFidelity)
+         return false;
+      if (state.style.overflow)
+         return false;
+
+      // Work out the size of a tile in device pixels
+      Matrix  deviceMatrix = new Matrix(canvas.getMatrix());
+      if (pattern.patternTransform != null)
+         deviceMatrix.preConcat(pattern.patternTransform);
+      float[]  values = new float[9];
+      deviceMatrix.getValues(values);
+      float  scaleX = (float) Math.sqrt(values[Matrix.MSCALE_X] * values[Matrix.MSCALE_X] + values[Matrix.MSKEW_Y] * values[Matrix.MSKEW_Y]);
+      float  scaleY = (float) Math.sqrt(values[Matrix.MSKEW_X] * values[Matrix.MSKEW_X] + values[Matrix.MSCALE_Y] * values[Matrix.MSCALE_Y]);
+      int  tileWidth = (int) Math.ceil(w * scaleX);
+      int  tileHeight = (int) Math.ceil(h * scaleY);
+      if (tileWidth <= 0 || tileHeight <= 0 || (long) tileWidth * tileHeight > PatternTileCache.MAX_TILE_PIXELS)
+         return false;
+
+      // The content is scaled to the object's bounding box if there is no viewBox and the content units are objectBoundingBox
+      boolean  contentScaledToObject = (pattern.viewBox == null && pattern.patternContentUnitsAreUser != null && !pattern.patternContentUnitsAreUser);
+      Box  viewPortUser = getCurrentViewPortInUserUnits();
+      PatternTileCache.Key  key = new PatternTileCache.Key(pattern, renderOptions, renderOptions != null && renderOptions.highFidelity,
+                                                           dpi, tileWidth, tileHeight,
+                                                           w, h,
+                                                           contentScaledToObject ? obj.boundingBox.width : 0f,
+                                                           contentScaledToObject ? obj.boundingBox.height : 0f,
+                                                           (viewPortUser != null) ? viewPortUser.width : 0f,
+                                                           (viewPortUser != null) ? viewPortUser.height : 0f);
+      // A display list compiled with a pool keeps its own tiles, instead of sharing them through the cache
+      BitmapPool  pool = recorderPool();
+      Bitmap  tile = (pool == null) ? PatternTileCache.get(key) : null;
+      if (tile == null)
+      {
+         try {
+            if (pool != null)
+               tile = pool.acquireExact(tileWidth, tileHeight);
+            else
+               tile = Bitmap.createBitmap(tileWidth, tileHeight, Bitmap.Config.ARGB_8888);
+         } catch (OutOfMemoryError e) {
+            warn("Not enough memory to create a bitmap for pattern tile, drawing it as vectors instead");
+            return false;
+         }
+
+         // Render the tile at the pattern position (x,y), with that corner at the bitmap's origin
+         Canvas  tileCanvas = new Canvas(tile);
+         tileCanvas.scale(tileWidth / w, tileHeight / h);
+         tileCanvas.translate(-x, -y);
+
+         Canvas  savedCanvas = canvas;
+         canvas = tileCanvas;
+         reusedContentDepth++;
+         renderPatternTile(obj, pattern, new Box(x, y, w, h), positioning);
+         reusedContentDepth--;
+         canvas = savedCanvas;
+
+         if (!handOverBitmap(tile))
+            PatternTileCache.put(key, tile);
+      }
+
+      // Map the bitmap back onto the tile in pattern space, and pattern space into user space
+      Matrix  shaderMatrix = new Matrix();
+      if (pattern.patternTransform != null)
+         shaderMatrix.set(pattern.patternTransform);
+      shaderMatrix.preTranslate(x, y);
+      shaderMatrix.preScale(w / tileWidth, h / tileHeight);
+
+      BitmapShader  shader = new BitmapShader(tile, TileMode.REPEAT, TileMode.REPEAT);
+      shader.setLocalMatrix(shaderMatrix);
+      Paint  paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+      paint.setShader(shader);
+      canvas.drawPath(path, paint);
+      return true;
+   }
+
+
    /*
     * Any unspecified fields in this pattern can be 'borrowed' from another
     * pattern specified by the href attribute.
@@ -4199,29 +5143,8 @@ class SVGAndroidRenderer
    {
       debug("Mask render");
 
-      boolean      maskUnitsAreUser = (mask.maskUnitsAreUser != null && mask.maskUnitsAreUser);
-      float        w, h;
-
-      if (maskUnitsAreUser)
-      {
-         w = (mask.width != null) ? mask.width.floatValueX(this): obj.boundingBox.width;
-         h = (mask.height != null) ? mask.height.floatValueY(this): obj.boundingBox.height;
-         //x = (mask.x != null) ? mask.x.floatValueX(this): (float)(obj.boundingBox.minX - 0.1 * obj.boundingBox.width);
-         //y = (mask.y != null) ? mask.y.floatValueY(this): (float)(obj.boundingBox.minY - 0.1 * obj.boundingBox.height);
-      }
-      else
-      {
-         // Convert objectBoundingBox space to user space
-         //x = (mask.x != null) ? mask.x.floatValue(this, 1f): -0.1f;
-         //y = (mask.y != null) ? mask.y.floatValue(this, 1f): -0.1f;
-         w = (mask.width != null) ? mask.width.floatValue(this, 1f): 1.2f;
-         h = (mask.height != null) ? mask.height.floatValue(this, 1f): 1.2f;
-         //x = obj.boundingBox.minX + x * obj.boundingBox.width;
-         //y = obj.boundingBox.minY + y * obj.boundingBox.height;
-         w *= obj.boundingBox.width;
-         h *= obj.boundingBox.height;
-      }
-      if (w == 0 || h == 0)
+      Box  region = maskRegion(mask, obj.boundingBox);
+      if (region == null || region.width == 0 || region.height == 0)
          return;
 
       // Push the state
@@ -4231,9 +5154,12 @@ class SVGAndroidRenderer
       // Set the style for the pattern (inherits from its own ancestors, not from callee's state)
       // The 'opacity', 'filter' and 'display' properties do not apply to the 'mask' element" (sect 14.4)
       // Next line is not actually needed since we aren't calling pushLayer() here. Kept for future reference.
-      state.style.opacity = 1f;
+      state.writableStyle().opacity = 1f;
       //state.style.filter = null;
 
+      // Nothing outside the mask region is visible
+      canvas.clipRect(region.minX, region.minY, region.maxX(), region.maxY());
+
       boolean  maskContentUnitsAreUser = (mask.maskContentUnitsAreUser == null || mask.maskContentUnitsAreUser);
       if (!maskContentUnitsAreUser) {
          canvas.translate(obj.boundingBox.minX, obj.boundingBox.minY);
@@ -4241,11 +5167,44 @@ class SVGAndroidRenderer
       }
 
       // Render the mask
+      reusedContentDepth++;
       renderChildren(mask, false);
+      reusedContentDepth--;
 
       // Pop the state
       statePop();
    }
 
 
+   /*
+    * The mask region (sect 14.3) in the user space of the masked element. Null if the mask
+    * region is relative to the element's bounding box, and that isn't known.
+    */
+   private Box  maskRegion(Mask mask, Box boundingBox)
+   {
+      boolean  maskUnitsAreUser = (mask.maskUnitsAreUser != null && mask.maskUnitsAreUser);
+      float    x, y, w, h;
+
+      if (maskUnitsAreUser)
+      {
+         Box  viewPortUser = getCurrentViewPortInUserUnits();
+         x = (mask.x != null) ? mask.x.floatValueX(this): -0.1f * viewPortUser.width;
+         y = (mask.y != null) ? mask.y.floatValueY(this): -0.1f * viewPortUser.height;
+         w = (mask.width != null) ? mask.width.floatValueX(this): 1.2f * viewPortUser.width;
+         h = (mask.height != null) ? mask.height.floatValueY(this): 1.2f * viewPortUser.height;
+         return new Box(x, y, w, h);
+      }
+
+      if (boundingBox == null)
+         return null;
+      // Convert objectBoundingBox space to user space
+      x = (mask.x != null) ? mask.x.floatValue(this, 1f): -0.1f;
+      y = (mask.y != null) ? mask.y.floatValue(this, 1f): -0.1f;
+      w = (mask.width != null) ? mask.width.floatValue(this, 1f): 1.2f;
+      h = (mask.height != null) ? mask.height.floatValue(this, 1f): 1.2f;
+      return new Box(boundingBox.minX + x * boundingBox.width, boundingBox.minY + y * boundingBox.height,
+                     w * boundingBox.width, h * boundingBox.height);
+   }
+
+
 }
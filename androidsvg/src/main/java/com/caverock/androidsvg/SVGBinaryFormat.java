@@ -0,0 +1,1012 @@
+package com.caverock.androidsvg;
+
+import android.graphics.Matrix;
+
+import com.caverock.androidsvg.CSSParser.AttribOp;
+import com.caverock.androidsvg.CSSParser.Attrib;
+import com.caverock.androidsvg.CSSParser.Combinator;
+import com.caverock.androidsvg.CSSParser.Rule;
+import com.caverock.androidsvg.CSSParser.Ruleset;
+import com.caverock.androidsvg.CSSParser.Selector;
+import com.caverock.androidsvg.CSSParser.SimpleSelector;
+import com.caverock.androidsvg.tag.Circle;
+import com.caverock.androidsvg.tag.ClipPath;
+import com.caverock.androidsvg.tag.Defs;
+import com.caverock.androidsvg.tag.Ellipse;
+import com.caverock.androidsvg.tag.Group;
+import com.caverock.androidsvg.tag.Image;
+import com.caverock.androidsvg.tag.Line;
+import com.caverock.androidsvg.tag.Marker;
+import com.caverock.androidsvg.tag.Mask;
+import com.caverock.androidsvg.tag.Path;
+import com.caverock.androidsvg.tag.Pattern;
+import com.caverock.androidsvg.tag.PolyLine;
+import com.caverock.androidsvg.tag.Polygon;
+import com.caverock.androidsvg.tag.Rect;
+import com.caverock.androidsvg.tag.SolidColor;
+import com.caverock.androidsvg.tag.Stop;
+import com.caverock.androidsvg.tag.Switch;
+import com.caverock.androidsvg.tag.Symbol;
+import com.caverock.androidsvg.tag.Use;
+import com.caverock.androidsvg.tag.View;
+import com.caverock.androidsvg.text.TRef;
+import com.caverock.androidsvg.text.TSpan;
+import com.caverock.androidsvg.text.Text;
+import com.caverock.androidsvg.text.TextChild;
+import com.caverock.androidsvg.text.TextPath;
+import com.caverock.androidsvg.text.TextPositionedContainer;
+import com.caverock.androidsvg.text.TextRoot;
+import com.caverock.androidsvg.text.TextSequence;
+import org.xml.sax.SAXException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads and writes the compiled form of a parsed SVG document.
+ * <p>
+ * The compiled form is a depth-first dump of the object tree and the document's CSS rules. It
+ * contains everything the parser would have produced, so loading it skips XML parsing, style
+ * attribute parsing and path data parsing altogether. All values are big-endian. Path commands
+ * and coordinates, and polyline points, are stored as raw blocks that are bulk copied on load.
+ * <p>
+ * Styles are written as their specifiedFlags followed by the values of the specified
+ * properties only. Unspecified properties are left null, just as the parser leaves them.
+ * <p>
+ * Reading is done from a ByteBuffer so that a memory mapped file can be loaded without first
+ * copying it onto the heap.
+ */
+class SVGBinaryFormat {
+    private static final int MAGIC = 0x41535642;   // "ASVB"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // The element classes that can appear in the tree. The index of a class is the kind byte
+    // written for it, so new classes must only ever be added to the end.
+    private static final Class<?>[] KINDS = {
+            SvgViewBox.class,
+            Group.class,
+            Switch.class,
+            Defs.class,
+            Use.class,
+            Image.class,
+            Path.class,
+            Rect.class,
+            Circle.class,
+            Ellipse.class,
+            Line.class,
+            PolyLine.class,
+            Polygon.class,
+            Text.class,
+            TSpan.class,
+            TRef.class,
+            TextPath.class,
+            TextSequence.class,
+            Symbol.class,
+            Marker.class,
+            SvgLinearGradient.class,
+            SvgRadialGradient.class,
+            Stop.class,
+            ClipPath.class,
+            Pattern.class,
+            View.class,
+            Mask.class,
+            SolidColor.class
+    };
+
+    private static final byte PAINT_NONE = 0;
+    private static final byte PAINT_COLOUR = 1;
+    private static final byte PAINT_CURRENT_COLOR = 2;
+    private static final byte PAINT_REFERENCE = 3;
+
+
+    //===============================================================================
+    // Document
+
+
+    static void write(SVG document, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, document.getDocumentTitle());
+        writeString(out, document.getDocumentDescription());
+        writeObject(out, document.getRootElement());
+
+        List<Rule> rules = document.hasCSSRules() ? document.getCSSRules() : null;
+        if (rules == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(rules.size());
+            for (Rule rule : rules) {
+                writeSelector(out, rule.selector);
+                writeStyle(out, rule.style);
+            }
+        }
+        out.flush();
+    }
+
+
+    static SVG read(ByteBuffer buffer) throws SVGParseException {
+        ByteBuffer in = buffer.duplicate();
+        in.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new SVGParseException("Not a compiled SVG document");
+            }
+            int version = in.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new SVGParseException("Unsupported compiled SVG version: " + version);
+            }
+
+            SVG document = new SVG();
+            document.setTitle(readString(in));
+            document.setDesc(readString(in));
+            SvgObject root = readObject(in, document, null);
+            if (!(root instanceof SvgViewBox)) {
+                throw new SVGParseException("Invalid compiled SVG document. Root element must be <svg>");
+            }
+            document.setRootElement((SvgViewBox) root);
+
+            // The rules were written in cascade order, so they must not be sorted again
+            int numRules = readSize(in, 8);
+            if (numRules > 0) {
+                List<Rule> rules = new ArrayList<>(numRules);
+                for (int i = 0; i < numRules; i++) {
+                    Selector selector = readSelector(in);
+                    rules.add(new Rule(selector, readStyle(in)));
+                }
+                document.addCSSRules(new Ruleset(rules));
+            }
+            return document;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | ClassCastException e) {
+            throw new SVGParseException("Invalid compiled SVG document. Data is truncated or corrupt", e);
+        }
+    }
+
+
+    //===============================================================================
+    // Object tree
+
+
+    private static int kindOf(SvgObject obj) {
+        for (int i = 0; i < KINDS.length; i++) {
+            if (KINDS[i] == obj.getClass()) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Cannot compile element of type " + obj.getClass().getName());
+    }
+
+
+    private static SvgObject newObject(int kind, ByteBuffer in) throws SVGParseException {
+        if (kind < 0 || kind >= KINDS.length) {
+            throw new SVGParseException("Invalid compiled SVG document. Unknown element kind " + kind);
+        }
+        Class<?> cls = KINDS[kind];
+        if (cls == TextSequence.class) {
+            return new TextSequence(readString(in));
+        }
+        try {
+            return (SvgObject) cls.getDeclaredConstructor().newInstance();
+        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+            throw new SVGParseException("Could not create " + cls.getSimpleName(), e);
+        }
+    }
+
+
+    private static void writeObject(DataOutputStream out, SvgObject obj) throws IOException {
+        out.writeByte(kindOf(obj));
+
+        if (obj instanceof TextSequence) {
+            writeString(out, ((TextSequence) obj).text);
+            return;
+        }
+
+        SvgElementBase base = (SvgElementBase) obj;
+        writeString(out, base.id);
+        writeBoolean(out, base.spacePreserve);
+        writeStyle(out, base.baseStyle);
+        writeStyle(out, base.style);
+        writeStringList(out, base.classNames);
+
+        if (obj instanceof SvgConditionalContainer) {
+            SvgConditionalContainer cond = (SvgConditionalContainer) obj;
+            writeConditional(out, cond.requiredFeatures, cond.requiredExtensions, cond.systemLanguage, cond.requiredFormats, cond.requiredFonts);
+        } else if (obj instanceof SvgConditionalElement) {
+            SvgConditionalElement cond = (SvgConditionalElement) obj;
+            writeConditional(out, cond.requiredFeatures, cond.requiredExtensions, cond.systemLanguage, cond.requiredFormats, cond.requiredFonts);
+        }
+        if (obj instanceof SvgPreserveAspectRatioContainer) {
+            PreserveAspectRatio par = ((SvgPreserveAspectRatioContainer) obj).preserveAspectRatio;
+            out.writeBoolean(par != null);
+            if (par != null) {
+                writeEnum(out, par.getAlignment());
+                writeEnum(out, par.getScale());
+            }
+        }
+        if (obj instanceof SvgViewBoxContainer) {
+            writeBox(out, ((SvgViewBoxContainer) obj).viewBox);
+        }
+
+        if (obj instanceof GraphicsElement) {
+            writeMatrix(out, ((GraphicsElement) obj).transform);
+            if (obj instanceof Path) {
+                writePathDefinition(out, ((Path) obj).d);
+                writeFloat(out, ((Path) obj).pathLength);
+            } else if (obj instanceof Rect) {
+                Rect rect = (Rect) obj;
+                writeLengths(out, rect.x, rect.y, rect.width, rect.height, rect.rx, rect.ry);
+            } else if (obj instanceof Circle) {
+                Circle circle = (Circle) obj;
+                writeLengths(out, circle.cx, circle.cy, circle.r);
+            } else if (obj instanceof Ellipse) {
+                Ellipse ellipse = (Ellipse) obj;
+                writeLengths(out, ellipse.cx, ellipse.cy, ellipse.rx, ellipse.ry);
+            } else if (obj instanceof Line) {
+                Line line = (Line) obj;
+                writeLengths(out, line.x1, line.y1, line.x2, line.y2);
+            } else if (obj instanceof PolyLine) {
+                writeFloatArray(out, ((PolyLine) obj).points);
+            }
+        } else if (obj instanceof SvgViewBox) {
+            SvgViewBox svg = (SvgViewBox) obj;
+            writeLengths(out, svg.x, svg.y, svg.width, svg.height);
+            writeString(out, svg.version);
+        } else if (obj instanceof Group) {
+            writeMatrix(out, ((Group) obj).transform);
+            if (obj instanceof Use) {
+                Use use = (Use) obj;
+                writeString(out, use.href);
+                writeLengths(out, use.x, use.y, use.width, use.height);
+            } else if (obj instanceof ClipPath) {
+                writeBoolean(out, ((ClipPath) obj).clipPathUnitsAreUser);
+            }
+        } else if (obj instanceof Image) {
+            Image image = (Image) obj;
+            writeString(out, image.href);
+            writeLengths(out, image.x, image.y, image.width, image.height);
+            writeMatrix(out, image.transform);
+        } else if (obj instanceof Marker) {
+            Marker marker = (Marker) obj;
+            out.writeBoolean(marker.markerUnitsAreUser);
+            writeLengths(out, marker.refX, marker.refY, marker.markerWidth, marker.markerHeight);
+            writeFloat(out, marker.orient);
+        } else if (obj instanceof Mask) {
+            Mask mask = (Mask) obj;
+            writeBoolean(out, mask.maskUnitsAreUser);
+            writeBoolean(out, mask.maskContentUnitsAreUser);
+            writeLengths(out, mask.x, mask.y, mask.width, mask.height);
+        } else if (obj instanceof Pattern) {
+            Pattern pattern = (Pattern) obj;
+            writeBoolean(out, pattern.patternUnitsAreUser);
+            writeBoolean(out, pattern.patternContentUnitsAreUser);
+            writeMatrix(out, pattern.patternTransform);
+            writeLengths(out, pattern.x, pattern.y, pattern.width, pattern.height);
+            writeString(out, pattern.href);
+        } else if (obj instanceof GradientElement) {
+            GradientElement grad = (GradientElement) obj;
+            writeBoolean(out, grad.gradientUnitsAreUser);
+            writeMatrix(out, grad.gradientTransform);
+            writeEnum(out, grad.spreadMethod);
+            writeString(out, grad.href);
+            if (obj instanceof SvgLinearGradient) {
+                SvgLinearGradient linear = (SvgLinearGradient) obj;
+                writeLengths(out, linear.x1, linear.y1, linear.x2, linear.y2);
+            } else {
+                SvgRadialGradient radial = (SvgRadialGradient) obj;
+                writeLengths(out, radial.cx, radial.cy, radial.r, radial.fx, radial.fy);
+            }
+        } else if (obj instanceof Stop) {
+            writeFloat(out, ((Stop) obj).offset);
+        } else if (obj instanceof TextPositionedContainer) {
+            TextPositionedContainer text = (TextPositionedContainer) obj;
+            writeLengthList(out, text.x);
+            writeLengthList(out, text.y);
+            writeLengthList(out, text.dx);
+            writeLengthList(out, text.dy);
+            if (obj instanceof Text) {
+                writeMatrix(out, ((Text) obj).transform);
+            }
+        } else if (obj instanceof TRef) {
+            writeString(out, ((TRef) obj).href);
+        } else if (obj instanceof TextPath) {
+            writeString(out, ((TextPath) obj).href);
+            writeLength(out, ((TextPath) obj).startOffset);
+        }
+
+        if (obj instanceof SvgContainer) {
+            List<SvgObject> children = ((SvgContainer) obj).getChildren();
+            out.writeInt(children.size());
+            for (SvgObject child : children) {
+                writeObject(out, child);
+            }
+        }
+    }
+
+
+    private static SvgObject readObject(ByteBuffer in, SVG document, SvgContainer parent) throws SVGParseException {
+        SvgObject obj = newObject(in.get(), in);
+
+        if (obj instanceof TextSequence) {
+            // The parser doesn't link text sequences to their document or parent either
+            return obj;
+        }
+
+        obj.document = document;
+        obj.parent = parent;
+
+        SvgElementBase base = (SvgElementBase) obj;
+        base.id = readString(in);
+        base.spacePreserve = readBoolean(in);
+        base.baseStyle = readStyle(in);
+        base.style = readStyle(in);
+        base.classNames = readStringList(in);
+
+        if (obj instanceof SvgConditional) {
+            SvgConditional cond = (SvgConditional) obj;
+            cond.setRequiredFeatures(readStringSet(in));
+            cond.setRequiredExtensions(readString(in));
+            cond.setSystemLanguage(readStringSet(in));
+            cond.setRequiredFormats(readStringSet(in));
+            cond.setRequiredFonts(readStringSet(in));
+        }
+        if (obj instanceof SvgPreserveAspectRatioContainer) {
+            if (in.get() != 0) {
+                PreserveAspectRatio.Alignment alignment = readEnum(in, PreserveAspectRatio.Alignment.values());
+                PreserveAspectRatio.Scale scale = readEnum(in, PreserveAspectRatio.Scale.values());
+                ((SvgPreserveAspectRatioContainer) obj).preserveAspectRatio = new PreserveAspectRatio(alignment, scale);
+            }
+        }
+        if (obj instanceof SvgViewBoxContainer) {
+            ((SvgViewBoxContainer) obj).viewBox = readBox(in);
+        }
+
+        if (obj instanceof GraphicsElement) {
+            ((GraphicsElement) obj).transform = readMatrix(in);
+            if (obj instanceof Path) {
+                ((Path) obj).d = readPathDefinition(in);
+                ((Path) obj).pathLength = readFloat(in);
+            } else if (obj instanceof Rect) {
+                Rect rect = (Rect) obj;
+                rect.x = readLength(in);
+                rect.y = readLength(in);
+                rect.width = readLength(in);
+                rect.height = readLength(in);
+                rect.rx = readLength(in);
+                rect.ry = readLength(in);
+            } else if (obj instanceof Circle) {
+                Circle circle = (Circle) obj;
+                circle.cx = readLength(in);
+                circle.cy = readLength(in);
+                circle.r = readLength(in);
+            } else if (obj instanceof Ellipse) {
+                Ellipse ellipse = (Ellipse) obj;
+                ellipse.cx = readLength(in);
+                ellipse.cy = readLength(in);
+                ellipse.rx = readLength(in);
+                ellipse.ry = readLength(in);
+            } else if (obj instanceof Line) {
+                Line line = (Line) obj;
+                line.x1 = readLength(in);
+                line.y1 = readLength(in);
+                line.x2 = readLength(in);
+                line.y2 = readLength(in);
+            } else if (obj instanceof PolyLine) {
+                ((PolyLine) obj).points = readFloatArray(in);
+            }
+        } else if (obj instanceof SvgViewBox) {
+            SvgViewBox svg = (SvgViewBox) obj;
+            svg.x = readLength(in);
+            svg.y = readLength(in);
+            svg.width = readLength(in);
+            svg.height = readLength(in);
+            svg.version = readString(in);
+        } else if (obj instanceof Group) {
+            ((Group) obj).transform = readMatrix(in);
+            if (obj instanceof Use) {
+                Use use = (Use) obj;
+                use.href = readString(in);
+                use.x = readLength(in);
+                use.y = readLength(in);
+                use.width = readLength(in);
+                use.height = readLength(in);
+            } else if (obj instanceof ClipPath) {
+                ((ClipPath) obj).clipPathUnitsAreUser = readBoolean(in);
+            }
+        } else if (obj instanceof Image) {
+            Image image = (Image) obj;
+            image.href = readString(in);
+            image.x = readLength(in);
+            image.y = readLength(in);
+            image.width = readLength(in);
+            image.height = readLength(in);
+            image.transform = readMatrix(in);
+        } else if (obj instanceof Marker) {
+            Marker marker = (Marker) obj;
+            marker.markerUnitsAreUser = in.get() != 0;
+            marker.refX = readLength(in);
+            marker.refY = readLength(in);
+            marker.markerWidth = readLength(in);
+            marker.markerHeight = readLength(in);
+            marker.orient = readFloat(in);
+        } else if (obj instanceof Mask) {
+            Mask mask = (Mask) obj;
+            mask.maskUnitsAreUser = readBoolean(in);
+            mask.maskContentUnitsAreUser = readBoolean(in);
+            mask.x = readLength(in);
+            mask.y = readLength(in);
+            mask.width = readLength(in);
+            mask.height = readLength(in);
+        } else if (obj instanceof Pattern) {
+            Pattern pattern = (Pattern) obj;
+            pattern.patternUnitsAreUser = readBoolean(in);
+            pattern.patternContentUnitsAreUser = readBoolean(in);
+            pattern.patternTransform = readMatrix(in);
+            pattern.x = readLength(in);
+            pattern.y = readLength(in);
+            pattern.width = readLength(in);
+            pattern.height = readLength(in);
+            pattern.href = readString(in);
+        } else if (obj instanceof GradientElement) {
+            GradientElement grad = (GradientElement) obj;
+            grad.gradientUnitsAreUser = readBoolean(in);
+            grad.gradientTransform = readMatrix(in);
+            grad.spreadMethod = readEnum(in, GradientSpread.values());
+            grad.href = readString(in);
+            if (obj instanceof SvgLinearGradient) {
+                SvgLinearGradient linear = (SvgLinearGradient) obj;
+                linear.x1 = readLength(in);
+                linear.y1 = readLength(in);
+                linear.x2 = readLength(in);
+                linear.y2 = readLength(in);
+            } else {
+                SvgRadialGradient radial = (SvgRadialGradient) obj;
+                radial.cx = readLength(in);
+                radial.cy = readLength(in);
+                radial.r = readLength(in);
+                radial.fx = readLength(in);
+                radial.fy = readLength(in);
+            }
+        } else if (obj instanceof Stop) {
+            ((Stop) obj).offset = readFloat(in);
+        } else if (obj instanceof TextPositionedContainer) {
+            TextPositionedContainer text = (TextPositionedContainer) obj;
+            text.x = readLengthList(in);
+            text.y = readLengthList(in);
+            text.dx = readLengthList(in);
+            text.dy = readLengthList(in);
+            if (obj instanceof Text) {
+                ((Text) obj).transform = readMatrix(in);
+            }
+        } else if (obj instanceof TRef) {
+            ((TRef) obj).href = readString(in);
+        } else if (obj instanceof TextPath) {
+            ((TextPath) obj).href = readString(in);
+            ((TextPath) obj).startOffset = readLength(in);
+        }
+
+        // Link text content elements to their enclosing <text> the way the parser does
+        if (obj instanceof TextChild) {
+            if (parent instanceof TextRoot) {
+                ((TextChild) obj).setTextRoot((TextRoot) parent);
+            } else if (parent instanceof TextChild) {
+                ((TextChild) obj).setTextRoot(((TextChild) parent).getTextRoot());
+            }
+        }
+
+        if (obj instanceof SvgContainer) {
+            SvgContainer container = (SvgContainer) obj;
+            int numChildren = readSize(in, 1);
+            for (int i = 0; i < numChildren; i++) {
+                try {
+                    container.addChild(readObject(in, document, container));
+                } catch (SAXException e) {
+                    throw new SVGParseException("Invalid compiled SVG document. " + e.getMessage(), e);
+                }
+            }
+        }
+        return obj;
+    }
+
+
+    private static void writeConditional(DataOutputStream out, Set<String> requiredFeatures, String requiredExtensions,
+                                         Set<String> systemLanguage, Set<String> requiredFormats, Set<String> requiredFonts) throws IOException {
+        writeStringList(out, (requiredFeatures != null) ? new ArrayList<>(requiredFeatures) : null);
+        writeString(out, requiredExtensions);
+        writeStringList(out, (systemLanguage != null) ? new ArrayList<>(systemLanguage) : null);
+        writeStringList(out, (requiredFormats != null) ? new ArrayList<>(requiredFormats) : null);
+        writeStringList(out, (requiredFonts != null) ? new ArrayList<>(requiredFonts) : null);
+    }
+
+
+    //===============================================================================
+    // Styles
+
+
+    private static void writeStyle(DataOutputStream out, Style style) throws IOException {
+        if (style == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+
+        long flags = style.specifiedFlags;
+        out.writeLong(flags);
+        if ((flags & SVG.SPECIFIED_FILL) != 0) writePaint(out, style.fill);
+        if ((flags & SVG.SPECIFIED_FILL_RULE) != 0) writeEnum(out, style.fillRule);
+        if ((flags & SVG.SPECIFIED_FILL_OPACITY) != 0) writeFloat(out, style.fillOpacity);
+        if ((flags & SVG.SPECIFIED_STROKE) != 0) writePaint(out, style.stroke);
+        if ((flags & SVG.SPECIFIED_STROKE_OPACITY) != 0) writeFloat(out, style.strokeOpacity);
+        if ((flags & SVG.SPECIFIED_STROKE_WIDTH) != 0) writeLength(out, style.strokeWidth);
+        if ((flags & SVG.SPECIFIED_STROKE_LINECAP) != 0) writeEnum(out, style.strokeLineCap);
+        if ((flags & SVG.SPECIFIED_STROKE_LINEJOIN) != 0) writeEnum(out, style.strokeLineJoin);
+        if ((flags & SVG.SPECIFIED_STROKE_MITERLIMIT) != 0) writeFloat(out, style.strokeMiterLimit);
+        if ((flags & SVG.SPECIFIED_STROKE_DASHARRAY) != 0) writeLengthArray(out, style.strokeDashArray);
+        if ((flags & SVG.SPECIFIED_STROKE_DASHOFFSET) != 0) writeLength(out, style.strokeDashOffset);
+        if ((flags & SVG.SPECIFIED_OPACITY) != 0) writeFloat(out, style.opacity);
+        if ((flags & SVG.SPECIFIED_COLOR) != 0) writePaint(out, style.color);
+        if ((flags & SVG.SPECIFIED_FONT_FAMILY) != 0) writeStringList(out, style.fontFamily);
+        if ((flags & SVG.SPECIFIED_FONT_SIZE) != 0) writeLength(out, style.fontSize);
+        if ((flags & SVG.SPECIFIED_FONT_WEIGHT) != 0) writeInteger(out, style.fontWeight);
+        if ((flags & SVG.SPECIFIED_FONT_STYLE) != 0) writeEnum(out, style.fontStyle);
+        if ((flags & SVG.SPECIFIED_TEXT_DECORATION) != 0) writeEnum(out, style.textDecoration);
+        if ((flags & SVG.SPECIFIED_TEXT_ANCHOR) != 0) writeEnum(out, style.textAnchor);
+        if ((flags & SVG.SPECIFIED_OVERFLOW) != 0) writeBoolean(out, style.overflow);
+        if ((flags & SVG.SPECIFIED_CLIP) != 0) writeClipRect(out, style.clip);
+        if ((flags & SVG.SPECIFIED_MARKER_START) != 0) writeString(out, style.markerStart);
+        if ((flags & SVG.SPECIFIED_MARKER_MID) != 0) writeString(out, style.markerMid);
+        if ((flags & SVG.SPECIFIED_MARKER_END) != 0) writeString(out, style.markerEnd);
+        if ((flags & SVG.SPECIFIED_DISPLAY) != 0) writeBoolean(out, style.display);
+        if ((flags & SVG.SPECIFIED_VISIBILITY) != 0) writeBoolean(out, style.visibility);
+        if ((flags & SVG.SPECIFIED_STOP_COLOR) != 0) writePaint(out, style.stopColor);
+        if ((flags & SVG.SPECIFIED_STOP_OPACITY) != 0) writeFloat(out, style.stopOpacity);
+        if ((flags & SVG.SPECIFIED_CLIP_PATH) != 0) writeString(out, style.clipPath);
+        if ((flags & SVG.SPECIFIED_CLIP_RULE) != 0) writeEnum(out, style.clipRule);
+        if ((flags & SVG.SPECIFIED_MASK) != 0) writeString(out, style.mask);
+        if ((flags & SVG.SPECIFIED_SOLID_COLOR) != 0) writePaint(out, style.solidColor);
+        if ((flags & SVG.SPECIFIED_SOLID_OPACITY) != 0) writeFloat(out, style.solidOpacity);
+        if ((flags & SVG.SPECIFIED_VIEWPORT_FILL) != 0) writePaint(out, style.viewportFill);
+        if ((flags & SVG.SPECIFIED_VIEWPORT_FILL_OPACITY) != 0) writeFloat(out, style.viewportFillOpacity);
+        if ((flags & SVG.SPECIFIED_VECTOR_EFFECT) != 0) writeEnum(out, style.vectorEffect);
+        if ((flags & SVG.SPECIFIED_DIRECTION) != 0) writeEnum(out, style.direction);
+        if ((flags & SVG.SPECIFIED_IMAGE_RENDERING) != 0) writeEnum(out, style.imageRendering);
+    }
+
+
+    private static Style readStyle(ByteBuffer in) throws SVGParseException {
+        if (in.get() == 0) {
+            return null;
+        }
+        Style style = new Style();
+
+        long flags = in.getLong();
+        style.specifiedFlags = flags;
+        if ((flags & SVG.SPECIFIED_FILL) != 0) style.fill = readPaint(in);
+        if ((flags & SVG.SPECIFIED_FILL_RULE) != 0) style.fillRule = readEnum(in, Style.FillRule.values());
+        if ((flags & SVG.SPECIFIED_FILL_OPACITY) != 0) style.fillOpacity = readFloat(in);
+        if ((flags & SVG.SPECIFIED_STROKE) != 0) style.stroke = readPaint(in);
+        if ((flags & SVG.SPECIFIED_STROKE_OPACITY) != 0) style.strokeOpacity = readFloat(in);
+        if ((flags & SVG.SPECIFIED_STROKE_WIDTH) != 0) style.strokeWidth = readLength(in);
+        if ((flags & SVG.SPECIFIED_STROKE_LINECAP) != 0) style.strokeLineCap = readEnum(in, Style.LineCaps.values());
+        if ((flags & SVG.SPECIFIED_STROKE_LINEJOIN) != 0) style.strokeLineJoin = readEnum(in, Style.LineJoin.values());
+        if ((flags & SVG.SPECIFIED_STROKE_MITERLIMIT) != 0) style.strokeMiterLimit = readFloat(in);
+        if ((flags & SVG.SPECIFIED_STROKE_DASHARRAY) != 0) style.strokeDashArray = readLengthArray(in);
+        if ((flags & SVG.SPECIFIED_STROKE_DASHOFFSET) != 0) style.strokeDashOffset = readLength(in);
+        if ((flags & SVG.SPECIFIED_OPACITY) != 0) style.opacity = readFloat(in);
+        if ((flags & SVG.SPECIFIED_COLOR) != 0) style.color = (Colour) readPaint(in);
+        if ((flags & SVG.SPECIFIED_FONT_FAMILY) != 0) style.fontFamily = readStringList(in);
+        if ((flags & SVG.SPECIFIED_FONT_SIZE) != 0) style.fontSize = readLength(in);
+        if ((flags & SVG.SPECIFIED_FONT_WEIGHT) != 0) style.fontWeight = readInteger(in);
+        if ((flags & SVG.SPECIFIED_FONT_STYLE) != 0) style.fontStyle = readEnum(in, Style.FontStyle.values());
+        if ((flags & SVG.SPECIFIED_TEXT_DECORATION) != 0) style.textDecoration = readEnum(in, Style.TextDecoration.values());
+        if ((flags & SVG.SPECIFIED_TEXT_ANCHOR) != 0) style.textAnchor = readEnum(in, Style.TextAnchor.values());
+        if ((flags & SVG.SPECIFIED_OVERFLOW) != 0) style.overflow = readBoolean(in);
+        if ((flags & SVG.SPECIFIED_CLIP) != 0) style.clip = readClipRect(in);
+        if ((flags & SVG.SPECIFIED_MARKER_START) != 0) style.markerStart = readString(in);
+        if ((flags & SVG.SPECIFIED_MARKER_MID) != 0) style.markerMid = readString(in);
+        if ((flags & SVG.SPECIFIED_MARKER_END) != 0) style.markerEnd = readString(in);
+        if ((flags & SVG.SPECIFIED_DISPLAY) != 0) style.display = readBoolean(in);
+        if ((flags & SVG.SPECIFIED_VISIBILITY) != 0) style.visibility = readBoolean(in);
+        if ((flags & SVG.SPECIFIED_STOP_COLOR) != 0) style.stopColor = readPaint(in);
+        if ((flags & SVG.SPECIFIED_STOP_OPACITY) != 0) style.stopOpacity = readFloat(in);
+        if ((flags & SVG.SPECIFIED_CLIP_PATH) != 0) style.clipPath = readString(in);
+        if ((flags & SVG.SPECIFIED_CLIP_RULE) != 0) style.clipRule = readEnum(in, Style.FillRule.values());
+        if ((flags & SVG.SPECIFIED_MASK) != 0) style.mask = readString(in);
+        if ((flags & SVG.SPECIFIED_SOLID_COLOR) != 0) style.solidColor = readPaint(in);
+        if ((flags & SVG.SPECIFIED_SOLID_OPACITY) != 0) style.solidOpacity = readFloat(in);
+        if ((flags & SVG.SPECIFIED_VIEWPORT_FILL) != 0) style.viewportFill = readPaint(in);
+        if ((flags & SVG.SPECIFIED_VIEWPORT_FILL_OPACITY) != 0) style.viewportFillOpacity = readFloat(in);
+        if ((flags & SVG.SPECIFIED_VECTOR_EFFECT) != 0) style.vectorEffect = readEnum(in, Style.VectorEffect.values());
+        if ((flags & SVG.SPECIFIED_DIRECTION) != 0) style.direction = readEnum(in, Style.TextDirection.values());
+        if ((flags & SVG.SPECIFIED_IMAGE_RENDERING) != 0) style.imageRendering = readEnum(in, Style.RenderQuality.values());
+        return style;
+    }
+
+
+    private static void writePaint(DataOutputStream out, SvgPaint paint) throws IOException {
+        if (paint == null) {
+            out.writeByte(PAINT_NONE);
+        } else if (paint instanceof Colour) {
+            out.writeByte(PAINT_COLOUR);
+            out.writeInt(((Colour) paint).colour);
+        } else if (paint instanceof CurrentColor) {
+            out.writeByte(PAINT_CURRENT_COLOR);
+        } else {
+            PaintReference ref = (PaintReference) paint;
+            out.writeByte(PAINT_REFERENCE);
+            writeString(out, ref.href);
+            writePaint(out, ref.fallback);
+        }
+    }
+
+
+    private static SvgPaint readPaint(ByteBuffer in) throws SVGParseException {
+        byte type = in.get();
+        switch (type) {
+        case PAINT_NONE:
+            return null;
+        case PAINT_COLOUR:
+            int colour = in.getInt();
+            return (colour == Colour.BLACK.colour) ? Colour.BLACK : new Colour(colour);
+        case PAINT_CURRENT_COLOR:
+            return CurrentColor.getInstance();
+        case PAINT_REFERENCE:
+            String href = readString(in);
+            return new PaintReference(href, readPaint(in));
+        default:
+            throw new SVGParseException("Invalid compiled SVG document. Unknown paint type " + type);
+        }
+    }
+
+
+    private static void writeClipRect(DataOutputStream out, CSSClipRect clip) throws IOException {
+        out.writeBoolean(clip != null);
+        if (clip != null) {
+            writeLengths(out, clip.top, clip.right, clip.bottom, clip.left);
+        }
+    }
+
+
+    private static CSSClipRect readClipRect(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        Length top = readLength(in);
+        Length right = readLength(in);
+        Length bottom = readLength(in);
+        return new CSSClipRect(top, right, bottom, readLength(in));
+    }
+
+
+    //===============================================================================
+    // CSS selectors
+
+
+    private static void writeSelector(DataOutputStream out, Selector selector) throws IOException {
+        out.writeInt(selector.specificity);
+        out.writeInt(selector.size());
+        for (int i = 0; i < selector.size(); i++) {
+            SimpleSelector sel = selector.get(i);
+            writeEnum(out, sel.combinator);
+            writeString(out, sel.tag);
+            if (sel.attribs == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(sel.attribs.size());
+                for (Attrib attr : sel.attribs) {
+                    writeString(out, attr.name);
+                    writeEnum(out, attr.operation);
+                    writeString(out, attr.value);
+                }
+            }
+            writeStringList(out, sel.pseudos);
+        }
+    }
+
+
+    private static Selector readSelector(ByteBuffer in) throws SVGParseException {
+        Selector selector = new Selector();
+        selector.specificity = in.getInt();
+        int numParts = readSize(in, 13);
+        for (int i = 0; i < numParts; i++) {
+            Combinator combinator = readEnum(in, Combinator.values());
+            SimpleSelector sel = new SimpleSelector(combinator, readString(in));
+            int numAttribs = readSize(in, 9);
+            for (int j = 0; j < numAttribs; j++) {
+                String name = readString(in);
+                AttribOp op = readEnum(in, AttribOp.values());
+                sel.addAttrib(name, op, readString(in));
+            }
+            List<String> pseudos = readStringList(in);
+            if (pseudos != null) {
+                for (String pseudo : pseudos) {
+                    sel.addPseudo(pseudo);
+                }
+            }
+            selector.add(sel);
+        }
+        return selector;
+    }
+
+
+    //===============================================================================
+    // Values
+
+
+    /*
+     * Reads the number of items that follow, or -1 for null. Each item takes at least the given
+     * number of bytes, so a count that couldn't fit in what is left of the buffer means the data
+     * is corrupt. Checking it here stops a bad count from allocating a huge array.
+     */
+    private static int readSize(ByteBuffer in, int minItemBytes) {
+        int size = in.getInt();
+        if (size < -1 || size > in.remaining() / minItemBytes) {
+            throw new BufferUnderflowException();
+        }
+        return size;
+    }
+
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    private static String readString(ByteBuffer in) {
+        int length = readSize(in, 1);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    private static void writeStringList(DataOutputStream out, List<String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+
+    private static List<String> readStringList(ByteBuffer in) {
+        int size = readSize(in, 4);
+        if (size < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+
+    private static Set<String> readStringSet(ByteBuffer in) {
+        List<String> values = readStringList(in);
+        return (values != null) ? new HashSet<>(values) : null;
+    }
+
+
+    private static void writeBoolean(DataOutputStream out, Boolean value) throws IOException {
+        out.writeByte((value == null) ? 0 : (value ? 2 : 1));
+    }
+
+
+    private static Boolean readBoolean(ByteBuffer in) {
+        byte value = in.get();
+        return (value == 0) ? null : Boolean.valueOf(value == 2);
+    }
+
+
+    private static void writeFloat(DataOutputStream out, Float value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeFloat(value);
+        }
+    }
+
+
+    private static Float readFloat(ByteBuffer in) {
+        return (in.get() != 0) ? in.getFloat() : null;
+    }
+
+
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+
+    private static Integer readInteger(ByteBuffer in) {
+        return (in.get() != 0) ? in.getInt() : null;
+    }
+
+
+    // Enums are written as ordinal + 1, so that zero can stand for null
+    private static void writeEnum(DataOutputStream out, Enum<?> value) throws IOException {
+        out.writeByte((value == null) ? 0 : value.ordinal() + 1);
+    }
+
+
+    private static <E extends Enum<E>> E readEnum(ByteBuffer in, E[] values) {
+        int ordinal = in.get();
+        return (ordinal == 0) ? null : values[ordinal - 1];
+    }
+
+
+    private static void writeLength(DataOutputStream out, Length length) throws IOException {
+        writeEnum(out, (length != null) ? length.unit : null);
+        if (length != null) {
+            out.writeFloat(length.value);
+        }
+    }
+
+
+    private static Length readLength(ByteBuffer in) {
+        Unit unit = readEnum(in, Unit.values());
+        return (unit != null) ? new Length(in.getFloat(), unit) : null;
+    }
+
+
+    private static void writeLengths(DataOutputStream out, Length... lengths) throws IOException {
+        for (Length length : lengths) {
+            writeLength(out, length);
+        }
+    }
+
+
+    private static void writeLengthArray(DataOutputStream out, Length[] lengths) throws IOException {
+        if (lengths == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(lengths.length);
+        writeLengths(out, lengths);
+    }
+
+
+    private static Length[] readLengthArray(ByteBuffer in) {
+        int size = readSize(in, 1);
+        if (size < 0) {
+            return null;
+        }
+        Length[] lengths = new Length[size];
+        for (int i = 0; i < size; i++) {
+            lengths[i] = readLength(in);
+        }
+        return lengths;
+    }
+
+
+    private static void writeLengthList(DataOutputStream out, List<Length> lengths) throws IOException {
+        writeLengthArray(out, (lengths != null) ? lengths.toArray(new Length[lengths.size()]) : null);
+    }
+
+
+    private static List<Length> readLengthList(ByteBuffer in) {
+        Length[] lengths = readLengthArray(in);
+        if (lengths == null) {
+            return null;
+        }
+        List<Length> list = new ArrayList<>(lengths.length);
+        for (Length length : lengths) {
+            list.add(length);
+        }
+        return list;
+    }
+
+
+    private static void writeBox(DataOutputStream out, Box box) throws IOException {
+        out.writeBoolean(box != null);
+        if (box != null) {
+            out.writeFloat(box.minX);
+            out.writeFloat(box.minY);
+            out.writeFloat(box.width);
+            out.writeFloat(box.height);
+        }
+    }
+
+
+    private static Box readBox(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        return new Box(in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat());
+    }
+
+
+    private static void writeMatrix(DataOutputStream out, Matrix matrix) throws IOException {
+        out.writeBoolean(matrix != null);
+        if (matrix != null) {
+            float[] values = new float[9];
+            matrix.getValues(values);
+            for (float value : values) {
+                out.writeFloat(value);
+            }
+        }
+    }
+
+
+    private static Matrix readMatrix(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        float[] values = new float[9];
+        in.asFloatBuffer().get(values);
+        in.position(in.position() + 9 * 4);
+        Matrix matrix = new Matrix();
+        matrix.setValues(values);
+        return matrix;
+    }
+
+
+    private static void writeFloatArray(DataOutputStream out, float[] values) throws IOException {
+        writeFloatArray(out, values, (values != null) ? values.length : -1);
+    }
+
+
+    private static void writeFloatArray(DataOutputStream out, float[] values, int length) throws IOException {
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeFloat(values[i]);
+        }
+    }
+
+
+    private static float[] readFloatArray(ByteBuffer in) {
+        int length = readSize(in, 4);
+        if (length < 0) {
+            return null;
+        }
+        float[] values = new float[length];
+        in.asFloatBuffer().get(values);
+        in.position(in.position() + length * 4);
+        return values;
+    }
+
+
+    private static void writePathDefinition(DataOutputStream out, PathDefinition path) throws IOException {
+        if (path == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(path.getCommandsLength());
+        out.write(path.getCommands(), 0, path.getCommandsLength());
+        writeFloatArray(out, path.getCoords(), path.getCoordsLength());
+    }
+
+
+    private static PathDefinition readPathDefinition(ByteBuffer in) {
+        int numCommands = readSize(in, 1);
+        if (numCommands < 0) {
+            return null;
+        }
+        byte[] commands = new byte[numCommands];
+        in.get(commands);
+        return new PathDefinition(commands, readFloatArray(in));
+    }
+}
@@ -0,0 +1,527 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+
+/**
+ * A flat, pre-rendered list of drawing operations produced by {@link SVG#compile(RectF, float)}.
+ * <p>
+ * All styling, CSS matching, length resolution and path conversion has already been done
+ * by the time a display list is created. Replaying it onto a canvas just issues the recorded
+ * {@code Canvas} calls, so it is the cheapest way to draw the same document repeatedly at
+ * the same size.
+ * <p>
+ * A display list is immutable and does not keep a reference to the {@code SVG} it was compiled
+ * from. Later changes to the document are not reflected in it. The same instance may be replayed
+ * onto any number of canvases, from any number of threads at once.
+ * <p>
+ * If it was compiled with a {@link BitmapPool}, call {@link #release()} when it is no longer
+ * needed, so that the next compilation can reuse its bitmaps.
+ */
+public final class SVGDisplayList {
+    private static final byte SAVE = 0;
+    private static final byte SAVE_FLAGS = 1;
+    private static final byte SAVE_LAYER_ALPHA = 2;
+    private static final byte RESTORE = 3;
+    private static final byte CONCAT = 4;
+    private static final byte SET_MATRIX = 5;
+    private static final byte TRANSLATE = 6;
+    private static final byte SCALE = 7;
+    private static final byte CLIP_RECT = 8;
+    private static final byte CLIP_PATH = 9;
+    private static final byte DRAW_PATH = 10;
+    private static final byte DRAW_TEXT = 11;
+    private static final byte DRAW_TEXT_ON_PATH = 12;
+    private static final byte DRAW_BITMAP = 13;
+    private static final byte DRAW_COLOR = 14;
+    private static final byte SAVE_LAYER = 15;
+
+    private final byte[] ops;
+    private final float[] coords;
+    private final int[] ints;
+    private final Object[] refs;
+    private final RectF bounds;
+
+    // The pool that the bitmaps this display list draws with came from, if any
+    private final BitmapPool bitmapPool;
+    // Those bitmaps. Null once they have been given back.
+    private ArrayList<Bitmap> pooledBitmaps;
+
+
+    private SVGDisplayList(Recorder recorder) {
+        this.ops = trim(recorder.ops, recorder.opsLength);
+        this.coords = trim(recorder.coords, recorder.coordsLength);
+        this.ints = trim(recorder.ints, recorder.intsLength);
+        this.refs = trim(recorder.refs, recorder.refsLength);
+        this.bounds = new RectF(recorder.bounds);
+        this.bitmapPool = recorder.bitmapPool;
+        this.pooledBitmaps = recorder.pooledBitmaps;
+    }
+
+
+    /**
+     * Returns the viewport this display list was compiled for.
+     *
+     * @return a copy of the viewport rectangle
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public RectF getBounds() {
+        return new RectF(bounds);
+    }
+
+
+    /**
+     * Returns the number of recorded drawing operations.
+     *
+     * @return the operation count
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public int getOperationCount() {
+        return ops.length;
+    }
+
+
+    /**
+     * Gives the bitmaps this display list draws with, such as pattern tiles, back to the
+     * {@link BitmapPool} of the {@link RenderOptions} it was compiled with. The display list
+     * must not be drawn again afterwards. Does nothing if it was compiled without a pool, or
+     * has already been released.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void release() {
+        ArrayList<Bitmap> bitmaps;
+        synchronized (this) {
+            bitmaps = pooledBitmaps;
+            pooledBitmaps = null;
+        }
+        if (bitmaps != null) {
+            for (Bitmap bitmap : bitmaps) {
+                bitmapPool.release(bitmap);
+            }
+        }
+    }
+
+
+    /**
+     * Draws this display list onto the given canvas.
+     * <p>
+     * The canvas matrix and clip in effect at the time of the call are respected, and the canvas
+     * is left in the same state as it was before the call.
+     *
+     * @param canvas the canvas to draw onto
+     */
+    @SuppressWarnings({"WeakerAccess", "unused", "deprecation"})
+    public void draw(Canvas canvas) {
+        int saveCount = canvas.save();
+        Matrix baseMatrix = canvas.getMatrix();
+        // Used when mapping recorded absolute matrices onto the target canvas
+        Matrix scratchMatrix = new Matrix();
+
+        int c = 0, n = 0, r = 0;
+        for (byte op : ops) {
+            switch (op) {
+            case SAVE:
+                canvas.save();
+                break;
+            case SAVE_FLAGS:
+                //noinspection WrongConstant
+                canvas.save(ints[n++]);
+                break;
+            case SAVE_LAYER_ALPHA: {
+                RectF layerBounds = (RectF) refs[r++];
+                int alpha = ints[n++];
+                //noinspection WrongConstant
+                canvas.saveLayerAlpha(layerBounds, alpha, ints[n++]);
+                break;
+            }
+            case SAVE_LAYER: {
+                RectF layerBounds = (RectF) refs[r++];
+                Paint paint = (Paint) refs[r++];
+                //noinspection WrongConstant
+                canvas.saveLayer(layerBounds, paint, ints[n++]);
+                break;
+            }
+            case RESTORE:
+                canvas.restore();
+                break;
+            case CONCAT:
+                canvas.concat((Matrix) refs[r++]);
+                break;
+            case SET_MATRIX:
+                // Recorded matrices are relative to the viewport origin, not the device
+                scratchMatrix.set(baseMatrix);
+                scratchMatrix.preConcat((Matrix) refs[r++]);
+                canvas.setMatrix(scratchMatrix);
+                break;
+            case TRANSLATE:
+                canvas.translate(coords[c++], coords[c++]);
+                break;
+            case SCALE:
+                canvas.scale(coords[c++], coords[c++]);
+                break;
+            case CLIP_RECT:
+                canvas.clipRect(coords[c++], coords[c++], coords[c++], coords[c++]);
+                break;
+            case CLIP_PATH:
+                canvas.clipPath((Path) refs[r++]);
+                break;
+            case DRAW_PATH: {
+                Path path = (Path) refs[r++];
+                canvas.drawPath(path, (Paint) refs[r++]);
+                break;
+            }
+            case DRAW_TEXT: {
+                String text = (String) refs[r++];
+                canvas.drawText(text, coords[c++], coords[c++], (Paint) refs[r++]);
+                break;
+            }
+            case DRAW_TEXT_ON_PATH: {
+                String text = (String) refs[r++];
+                Path path = (Path) refs[r++];
+                canvas.drawTextOnPath(text, path, coords[c++], coords[c++], (Paint) refs[r++]);
+                break;
+            }
+            case DRAW_BITMAP: {
+                Bitmap bitmap = (Bitmap) refs[r++];
+                canvas.drawBitmap(bitmap, coords[c++], coords[c++], (Paint) refs[r++]);
+                break;
+            }
+            case DRAW_COLOR:
+                canvas.drawColor(ints[n++]);
+                break;
+            }
+        }
+
+        canvas.restoreToCount(saveCount);
+    }
+
+
+    private static byte[] trim(byte[] array, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+
+
+    private static float[] trim(float[] array, int length) {
+        float[] result = new float[length];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+
+
+    private static int[] trim(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+
+
+    private static Object[] trim(Object[] array, int length) {
+        Object[] result = new Object[length];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+
+
+    //===============================================================================
+
+
+    /*
+     * A Canvas that records the calls made by SVGAndroidRenderer instead of drawing them.
+     *
+     * The calls are still passed to the (bitmap-less) superclass so that getMatrix() and
+     * friends keep returning the right values while rendering. Arguments that the renderer
+     * may modify after the call (paths, paints, matrices, mask bitmaps) are copied. Shaders
+     * are shared with the recorded paint copies, as the renderer never changes a shader once
+     * it has been drawn with.
+     *
+     * When recording with a bitmap pool, the renderer hands over the pooled bitmaps it draws
+     * with instead, and the display list gives them back to the pool when it is released.
+     *
+     * The recording canvas has no pixels, so nothing can be rejected as being outside its clip.
+     */
+    static class Recorder extends Canvas {
+        private byte[] ops = new byte[64];
+        private int opsLength = 0;
+        private float[] coords = new float[64];
+        private int coordsLength = 0;
+        private int[] ints = new int[16];
+        private int intsLength = 0;
+        private Object[] refs = new Object[64];
+        private int refsLength = 0;
+
+        private final RectF bounds;
+        private final int width;
+        private final int height;
+
+        private final BitmapPool bitmapPool;
+        private final ArrayList<Bitmap> pooledBitmaps;
+
+
+        Recorder(RectF bounds, BitmapPool bitmapPool) {
+            this.bitmapPool = bitmapPool;
+            this.pooledBitmaps = (bitmapPool != null) ? new ArrayList<Bitmap>() : null;
+            this.bounds = new RectF(bounds);
+            // Offscreen buffers (eg. for masks) are sized from the canvas dimensions
+            this.width = (int) Math.ceil(bounds.right);
+            this.height = (int) Math.ceil(bounds.bottom);
+        }
+
+
+        SVGDisplayList finish() {
+            return new SVGDisplayList(this);
+        }
+
+
+        BitmapPool getBitmapPool() {
+            return bitmapPool;
+        }
+
+
+        /*
+         * Takes over a bitmap from getBitmapPool(). It is given back to the pool when the
+         * display list is released.
+         */
+        void adoptBitmap(Bitmap bitmap) {
+            pooledBitmaps.add(bitmap);
+        }
+
+
+        private void addOp(byte op) {
+            if (opsLength == ops.length) {
+                byte[] newOps = new byte[ops.length * 2];
+                System.arraycopy(ops, 0, newOps, 0, ops.length);
+                ops = newOps;
+            }
+            ops[opsLength++] = op;
+        }
+
+
+        private void addCoords(float a, float b) {
+            if (coords.length < coordsLength + 2) {
+                float[] newCoords = new float[coords.length * 2];
+                System.arraycopy(coords, 0, newCoords, 0, coords.length);
+                coords = newCoords;
+            }
+            coords[coordsLength++] = a;
+            coords[coordsLength++] = b;
+        }
+
+
+        private void addInt(int value) {
+            if (intsLength == ints.length) {
+                int[] newInts = new int[ints.length * 2];
+                System.arraycopy(ints, 0, newInts, 0, ints.length);
+                ints = newInts;
+            }
+            ints[intsLength++] = value;
+        }
+
+
+        private void addRef(Object value) {
+            if (refsLength == refs.length) {
+                Object[] newRefs = new Object[refs.length * 2];
+                System.arraycopy(refs, 0, newRefs, 0, refs.length);
+                refs = newRefs;
+            }
+            refs[refsLength++] = value;
+        }
+
+
+        private void addPaint(Paint paint) {
+            addRef((paint != null) ? new Paint(paint) : null);
+        }
+
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+
+        @Override
+        public int save() {
+            addOp(SAVE);
+            return super.save();
+        }
+
+
+        @Override
+        public int save(int saveFlags) {
+            addOp(SAVE_FLAGS);
+            addInt(saveFlags);
+            //noinspection WrongConstant
+            return super.save(saveFlags);
+        }
+
+
+        @Override
+        public int saveLayerAlpha(RectF layerBounds, int alpha, int saveFlags) {
+            addOp(SAVE_LAYER_ALPHA);
+            addRef((layerBounds != null) ? new RectF(layerBounds) : null);
+            addInt(alpha);
+            addInt(saveFlags);
+            // The recording canvas has no pixels, so there is no need for a real layer
+            return super.save();
+        }
+
+
+        @Override
+        public int saveLayer(RectF layerBounds, Paint paint, int saveFlags) {
+            addOp(SAVE_LAYER);
+            addRef((layerBounds != null) ? new RectF(layerBounds) : null);
+            addPaint(paint);
+            addInt(saveFlags);
+            return super.save();
+        }
+
+
+        @Override
+        public boolean quickReject(RectF rect, EdgeType type) {
+            return false;
+        }
+
+
+        @Override
+        public boolean quickReject(Path path, EdgeType type) {
+            return false;
+        }
+
+
+        @Override
+        public boolean quickReject(float left, float top, float right, float bottom, EdgeType type) {
+            return false;
+        }
+
+
+        @Override
+        public void restore() {
+            addOp(RESTORE);
+            super.restore();
+        }
+
+
+        @Override
+        public void concat(Matrix matrix) {
+            addOp(CONCAT);
+            addRef(new Matrix(matrix));
+            super.concat(matrix);
+        }
+
+
+        @Override
+        public void setMatrix(Matrix matrix) {
+            addOp(SET_MATRIX);
+            addRef(new Matrix(matrix));
+            super.setMatrix(matrix);
+        }
+
+
+        @Override
+        public void translate(float dx, float dy) {
+            addOp(TRANSLATE);
+            addCoords(dx, dy);
+            super.translate(dx, dy);
+        }
+
+
+        @Override
+        public void scale(float sx, float sy) {
+            addOp(SCALE);
+            addCoords(sx, sy);
+            super.scale(sx, sy);
+        }
+
+
+        @Override
+        public boolean clipRect(float left, float top, float right, float bottom) {
+            addOp(CLIP_RECT);
+            addCoords(left, top);
+            addCoords(right, bottom);
+            return super.clipRect(left, top, right, bottom);
+        }
+
+
+        @Override
+        public boolean clipPath(Path path) {
+            addOp(CLIP_PATH);
+            addRef(new Path(path));
+            return super.clipPath(path);
+        }
+
+
+        @Override
+        public void drawPath(Path path, Paint paint) {
+            addOp(DRAW_PATH);
+            addRef(new Path(path));
+            addPaint(paint);
+        }
+
+
+        @Override
+        public void drawText(String text, float x, float y, Paint paint) {
+            addOp(DRAW_TEXT);
+            addRef(text);
+            addCoords(x, y);
+            addPaint(paint);
+        }
+
+
+        @Override
+        public void drawTextOnPath(String text, Path path, float hOffset, float vOffset, Paint paint) {
+            addOp(DRAW_TEXT_ON_PATH);
+            addRef(text);
+            addRef(new Path(path));
+            addCoords(hOffset, vOffset);
+            addPaint(paint);
+        }
+
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+            addOp(DRAW_BITMAP);
+            // Mask results are recycled as soon as they have been drawn, so keep our own copy,
+            // unless the bitmap has been handed over to us
+            boolean owned = (pooledBitmaps != null && pooledBitmaps.contains(bitmap));
+            addRef((bitmap.isMutable() && !owned) ? bitmap.copy(bitmap.getConfig(), false) : bitmap);
+            addCoords(left, top);
+            addPaint(paint);
+        }
+
+
+        @Override
+        public void drawColor(int color) {
+            addOp(DRAW_COLOR);
+            addInt(color);
+        }
+    }
+}
@@ -70,11 +70,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.zip.GZIPInputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 
 /*
@@ -105,6 +104,46 @@ class SVGParser extends DefaultHandler2 {
     private boolean inStyleElement = false;
     private StringBuilder styleElementContents = null;
 
+    // Whether <path> data is kept as text and only parsed when first needed
+    private static volatile boolean lazyPathParsing = false;
+    private final boolean deferPathData = lazyPathParsing;
+
+    // When set, path data, points and transforms are parsed on this executor once the SAX pass has finished
+    private static volatile Executor geometryExecutor = null;
+    private final Executor postParseExecutor = geometryExecutor;
+    private final GeometryParseStage geometryStage;
+
+    // Identical element styles are shared rather than kept once per element
+    private final StyleInterner styleInterner = new StyleInterner();
+
+    // When set, elements are drawn as soon as they have been parsed
+    private final StreamingRenderer streamingRenderer;
+
+    // When set, parsing stops once the root <svg> element has been read
+    private boolean headerOnly = false;
+
+    // Thrown to abandon the SAX parse once the root element has been read
+    private static class HeaderParsedException extends SAXException {
+        HeaderParsedException() {
+            super("Root element parsed");
+        }
+    }
+
+
+    SVGParser() {
+        this(null);
+    }
+
+
+    /*
+     * Create a parser that passes each element to a StreamingRenderer as it is parsed.
+     * Geometry is always parsed in line when streaming, since elements are drawn straight away.
+     */
+    SVGParser(StreamingRenderer streamingRenderer) {
+        this.streamingRenderer = streamingRenderer;
+        this.geometryStage = (postParseExecutor != null && streamingRenderer == null) ? new GeometryParseStage() : null;
+    }
+
 
     // Define SVG tags
     private enum SVGElem {
@@ -141,32 +180,23 @@ class SVGParser extends DefaultHandler2 {
         view,
         UNSUPPORTED;
 
-        private static final Map<String, SVGElem> cache = new HashMap<>();
+        private static final PerfectHashTable<SVGElem> table;
 
-        public static SVGElem fromString(String str) {
-            // First check cache to see if it is there
-            SVGElem elem = cache.get(str);
-            if (elem != null) {
-                return elem;
-            }
-            // Manual check for "switch" which is in upper case because it's a Java reserved identifier
-            if (str.equals("switch")) {
-                cache.put(str, SWITCH);
-                return SWITCH;
-            }
-            // Do the (slow) Enum.valueOf()
-            try {
-                elem = valueOf(str);
-                if (elem != SWITCH) {  // Don't allow matches with "SWITCH"
-                    cache.put(str, elem);
-                    return elem;
+        static {
+            Map<String, SVGElem> names = new HashMap<>();
+            for (SVGElem elem : values()) {
+                if (elem != SWITCH && elem != UNSUPPORTED) {
+                    names.put(elem.name(), elem);
                 }
-            } catch (IllegalArgumentException e) {
-                // Do nothing
             }
-            // Unknown element name
-            cache.put(str, UNSUPPORTED);
-            return UNSUPPORTED;
+            // "switch" is in upper case because it's a Java reserved identifier
+            names.put("switch", SWITCH);
+            table = new PerfectHashTable<>(names);
+        }
+
+        public static SVGElem fromString(String str) {
+            SVGElem elem = table.get(str);
+            return (elem != null) ? elem : UNSUPPORTED;
         }
     }
 
@@ -303,38 +333,84 @@ class SVGParser extends DefaultHandler2 {
         visibility,
         UNSUPPORTED;
 
-        private static final Map<String, SVGAttr> cache = new HashMap<>();
+        private static final PerfectHashTable<SVGAttr> table;
 
-        public static SVGAttr fromString(String str) {
-            // First check cache to see if it is there
-            SVGAttr attr = cache.get(str);
-            if (attr != null) {
-                return attr;
-            }
-            // Do the (slow) Enum.valueOf()
-            if (str.equals("class")) {
-                cache.put(str, CLASS);
-                return CLASS;
+        static {
+            Map<String, SVGAttr> names = new HashMap<>();
+            for (SVGAttr attr : values()) {
+                if (attr != CLASS && attr != UNSUPPORTED) {
+                    // Hyphens in attribute names are represented by underscores in the enum
+                    names.put(attr.name().replace('_', '-'), attr);
+                }
             }
-            // Check for underscore in attribute - it could potentially confuse us
-            if (str.indexOf('_') != -1) {
-                cache.put(str, UNSUPPORTED);
-                return UNSUPPORTED;
+            names.put("class", CLASS);
+            table = new PerfectHashTable<>(names);
+        }
+
+        public static SVGAttr fromString(String str) {
+            SVGAttr attr = table.get(str);
+            return (attr != null) ? attr : UNSUPPORTED;
+        }
+
+    }
+
+
+    /*
+     * An immutable lookup table for the element and attribute name enums.
+     *
+     * It is built once in a static initialiser and never modified afterwards, so it can be
+     * shared safely by parsers running on different threads. When building, we search for
+     * a hash multiplier that places every key in its own slot. A lookup is therefore just
+     * one hash, one array access and one equals(), and unknown names are not remembered.
+     */
+    private static final class PerfectHashTable<V> {
+        private final String[] keys;
+        private final Object[] values;
+        private final int multiplier;
+        private final int shift;
+
+        PerfectHashTable(Map<String, V> entries) {
+            // Start with a table at least twice the size of the key set
+            int bits = 32 - Integer.numberOfLeadingZeros(entries.size() * 2 - 1);
+            while (true) {
+                int size = 1 << bits;
+                for (int attempt = 0; attempt < 256; attempt++) {
+                    int m = 0x9e3779b9 * (attempt * 2 + 1);
+                    String[] k = new String[size];
+                    Object[] v = new Object[size];
+                    if (fill(entries, k, v, m, 32 - bits)) {
+                        this.keys = k;
+                        this.values = v;
+                        this.multiplier = m;
+                        this.shift = 32 - bits;
+                        return;
+                    }
+                }
+                bits++;
             }
-            try {
-                attr = valueOf(str.replace('-', '_'));
-                if (attr != CLASS) {
-                    cache.put(str, attr);
-                    return attr;
+        }
+
+        private static <V> boolean fill(Map<String, V> entries, String[] keys, Object[] values, int multiplier, int shift) {
+            for (Map.Entry<String, V> entry : entries.entrySet()) {
+                int slot = slot(entry.getKey(), multiplier, shift);
+                if (keys[slot] != null) {
+                    return false;
                 }
-            } catch (IllegalArgumentException e) {
-                // Do nothing
+                keys[slot] = entry.getKey();
+                values[slot] = entry.getValue();
             }
-            // Unknown attribute name
-            cache.put(str, UNSUPPORTED);
-            return UNSUPPORTED;
+            return true;
+        }
+
+        private static int slot(String key, int multiplier, int shift) {
+            return (key.hashCode() * multiplier) >>> shift;
         }
 
+        @SuppressWarnings("unchecked")
+        V get(String key) {
+            int slot = slot(key, multiplier, shift);
+            return key.equals(keys[slot]) ? (V) values[slot] : null;
+        }
     }
 
 
@@ -579,6 +655,30 @@ class SVGParser extends DefaultHandler2 {
     //=========================================================================
 
 
+    static void setLazyPathParsing(boolean enable) {
+        lazyPathParsing = enable;
+    }
+
+
+    static boolean isLazyPathParsing() {
+        return lazyPathParsing;
+    }
+
+
+    static void setGeometryExecutor(Executor executor) {
+        geometryExecutor = executor;
+    }
+
+
+    /*
+     * Parse just the attributes of the root <svg> element. The returned document has no children.
+     */
+    SVG parseHeader(InputStream is) throws SVGParseException {
+        headerOnly = true;
+        return parse(is);
+    }
+
+
     SVG parse(InputStream is) throws SVGParseException {
         // Transparently handle zipped files (.svgz)
         if (!is.markSupported()) {
@@ -598,20 +698,30 @@ class SVGParser extends DefaultHandler2 {
         }
 
         // Invoke the SAX XML parser on the input.
-        SAXParserFactory spf = SAXParserFactory.newInstance();
+        XMLReader xr = null;
         try {
-            SAXParser sp = spf.newSAXParser();
-            XMLReader xr = sp.getXMLReader();
+            xr = XMLReaderCache.obtain();
             xr.setContentHandler(this);
-            xr.setProperty("http://xml.org/sax/properties/lexical-handler", this);
+            xr.setProperty(XMLReaderCache.LEXICAL_HANDLER_PROPERTY, this);
             xr.parse(new InputSource(is));
+            if (geometryStage != null) {
+                geometryStage.run(postParseExecutor);
+            }
         } catch (IOException e) {
             throw new SVGParseException("File error", e);
         } catch (ParserConfigurationException e) {
             throw new SVGParseException("XML Parser problem", e);
+        } catch (HeaderParsedException e) {
+            // Stopped on purpose. The root element is all we need.
         } catch (SAXException e) {
+            if (geometryStage != null) {
+                e = geometryStage.firstError(e);
+            }
             throw new SVGParseException("SVG parse error: " + e.getMessage(), e);
         } finally {
+            if (xr != null) {
+                XMLReaderCache.release(xr);
+            }
             try {
                 is.close();
             } catch (IOException e) {
@@ -635,6 +745,23 @@ class SVGParser extends DefaultHandler2 {
 
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        if (streamingRenderer == null) {
+            handleStartElement(uri, localName, qName, attributes);
+            return;
+        }
+        SvgContainer parent = currentElement;
+        int numChildren = (parent != null) ? parent.getChildren().size() : 0;
+        handleStartElement(uri, localName, qName, attributes);
+        if (currentElement != parent) {
+            streamingRenderer.elementStarted((SvgObject) currentElement, true);
+        } else if (parent != null && parent.getChildren().size() > numChildren) {
+            List<SvgObject> children = parent.getChildren();
+            streamingRenderer.elementStarted(children.get(children.size() - 1), false);
+        }
+    }
+
+
+    private void handleStartElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
         if (ignoring) {
             ignoreDepth++;
             return;
@@ -804,6 +931,15 @@ class SVGParser extends DefaultHandler2 {
 
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
+        SvgContainer ended = currentElement;
+        handleEndElement(uri, localName, qName);
+        if (streamingRenderer != null && currentElement != ended) {
+            streamingRenderer.containerEnded(ended);
+        }
+    }
+
+
+    private void handleEndElement(String uri, String localName, String qName) throws SAXException {
         if (ignoring) {
             if (--ignoreDepth == 0) {
                 ignoring = false;
@@ -916,6 +1052,9 @@ class SVGParser extends DefaultHandler2 {
         parseAttributesSVG(obj, attributes);
         if (currentElement == null) {
             svgDocument.setRootElement(obj);
+            if (headerOnly) {
+                throw new HeaderParsedException();
+            }
         } else {
             currentElement.addChild(obj);
         }
@@ -1142,7 +1281,13 @@ class SVGParser extends DefaultHandler2 {
             String val = attributes.getValue(i).trim();
             switch (SVGAttr.fromString(attributes.getLocalName(i))) {
             case d:
-                obj.d = parsePath(val);
+                if (deferPathData) {
+                    obj.d = new PathDefinition(val);
+                } else if (geometryStage != null) {
+                    geometryStage.addPath(obj, val);
+                } else {
+                    obj.d = parsePath(val);
+                }
                 break;
             case pathLength:
                 obj.pathLength = parseFloat(val);
@@ -1389,34 +1534,44 @@ class SVGParser extends DefaultHandler2 {
     private void parseAttributesPolyLine(PolyLine obj, Attributes attributes, String tag) throws SAXException {
         for (int i = 0; i < attributes.getLength(); i++) {
             if (SVGAttr.fromString(attributes.getLocalName(i)) == SVGAttr.points) {
-                TextScanner scan = new TextScanner(attributes.getValue(i));
-                List<Float> points = new ArrayList<>();
-                scan.skipWhitespace();
-
-                while (!scan.empty()) {
-                    float x = scan.nextFloat();
-                    if (Float.isNaN(x)) {
-                        throw new SAXException("Invalid <" + tag + "> points attribute. Non-coordinate content found in list.");
-                    }
-                    scan.skipCommaWhitespace();
-                    float y = scan.nextFloat();
-                    if (Float.isNaN(y)) {
-                        throw new SAXException("Invalid <" + tag + "> points attribute. There should be an even number of coordinates.");
-                    }
-                    scan.skipCommaWhitespace();
-                    points.add(x);
-                    points.add(y);
-                }
-                obj.points = new float[points.size()];
-                int j = 0;
-                for (float f : points) {
-                    obj.points[j++] = f;
+                if (geometryStage != null) {
+                    geometryStage.addPoints(obj, attributes.getValue(i), tag);
+                } else {
+                    obj.points = parsePoints(attributes.getValue(i), tag);
                 }
             }
         }
     }
 
 
+    static float[] parsePoints(String val, String tag) throws SAXException {
+        TextScanner scan = new TextScanner(val);
+        List<Float> points = new ArrayList<>();
+        scan.skipWhitespace();
+
+        while (!scan.empty()) {
+            float x = scan.nextFloat();
+            if (Float.isNaN(x)) {
+                throw new SAXException("Invalid <" + tag + "> points attribute. Non-coordinate content found in list.");
+            }
+            scan.skipCommaWhitespace();
+            float y = scan.nextFloat();
+            if (Float.isNaN(y)) {
+                throw new SAXException("Invalid <" + tag + "> points attribute. There should be an even number of coordinates.");
+            }
+            scan.skipCommaWhitespace();
+            points.add(x);
+            points.add(y);
+        }
+        float[] result = new float[points.size()];
+        int j = 0;
+        for (float f : points) {
+            result[j++] = f;
+        }
+        return result;
+    }
+
+
     //=========================================================================
     // <polygon> element
 
@@ -2581,6 +2736,8 @@ class SVGParser extends DefaultHandler2 {
                 break;
             }
         }
+        obj.baseStyle = styleInterner.intern(obj.baseStyle);
+        obj.style = styleInterner.intern(obj.style);
     }
 
 
@@ -2904,13 +3061,17 @@ class SVGParser extends DefaultHandler2 {
     private void parseAttributesTransform(HasTransform obj, Attributes attributes) throws SAXException {
         for (int i = 0; i < attributes.getLength(); i++) {
             if (SVGAttr.fromString(attributes.getLocalName(i)) == SVGAttr.transform) {
-                obj.setTransform(parseTransformList(attributes.getValue(i)));
+                if (geometryStage != null) {
+                    geometryStage.addTransform(obj, attributes.getValue(i));
+                } else {
+                    obj.setTransform(parseTransformList(attributes.getValue(i)));
+                }
             }
         }
     }
 
 
-    private Matrix parseTransformList(String val) throws SAXException {
+    static Matrix parseTransformList(String val) throws SAXException {
         Matrix matrix = new Matrix();
 
         TextScanner scan = new TextScanner(val);
@@ -3763,7 +3924,7 @@ class SVGParser extends DefaultHandler2 {
 
 
     // Parse the string that defines a path.
-    private static PathDefinition parsePath(String val) throws SAXException {
+    static PathDefinition parsePath(String val) {
         TextScanner scan = new TextScanner(val);
 
         float currentX = 0f, currentY = 0f;    // The last point visited in the subpath
@@ -4123,8 +4284,7 @@ class SVGParser extends DefaultHandler2 {
 
 
     private void parseCSSStyleSheet(String sheet) throws SAXException {
-        CSSParser cssp = new CSSParser(MediaType.screen);
-        svgDocument.addCSSRules(cssp.parse(sheet));
+        svgDocument.addCSSRules(StylesheetCache.get(sheet, MediaType.screen));
     }
 
 }
@@ -0,0 +1,418 @@
+package com.caverock.androidsvg;
+
+import android.graphics.Canvas;
+
+import com.caverock.androidsvg.tag.Group;
+import com.caverock.androidsvg.tag.Pattern;
+import com.caverock.androidsvg.tag.SolidColor;
+import com.caverock.androidsvg.tag.Stop;
+import com.caverock.androidsvg.tag.Use;
+import com.caverock.androidsvg.text.TRef;
+import com.caverock.androidsvg.text.TextPath;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Draws a document while SVGParser is still parsing it, and drops the parts of the tree that
+ * have been drawn.
+ * <p>
+ * The root {@code <svg>} and plain {@code <g>} elements are entered in the renderer as soon as
+ * their start tag has been parsed. Any other element is drawn as soon as it is complete: basic
+ * shapes straight away, and elements such as {@code <text>}, {@code <switch>} or {@code <use>}
+ * when their end tag arrives. Once drawn, an element is removed from the tree, unless it or one
+ * of its descendants has an id. Elements that follow may refer to those, for example from a
+ * {@code <use>}, so they have to stay available. For the same reason, the children of an entered
+ * group with an id are kept. Non-rendered content, such as gradients, clip paths, masks and
+ * patterns, is retained on the same terms.
+ * <p>
+ * An element is only drawn if every element that it references (directly, through the
+ * elements it references, or through the document's CSS rules) has already been parsed. When
+ * that is not the case the document contains a forward reference. Streaming then stops. The
+ * rest of the tree is retained and drawn by {@link #finish()}, once the parse is complete.
+ * Everything drawn before that point is unaffected by content that follows it, so the result
+ * is the same as rendering the complete tree.
+ * <p>
+ * The exception is CSS. Rules from a {@code <style>} element only apply to the elements that
+ * are drawn after it has been parsed. If a {@code <style>} element appears after drawing has
+ * started, streaming stops, so that the rest of the document is drawn by finish() with all of
+ * the document's rules. Once the document has a rule that depends on preceding siblings
+ * ({@code E + F} or {@code :first-child}), drawn elements are no longer dropped.
+ */
+class StreamingRenderer {
+    private final SVGAndroidRenderer renderer;
+    private final Box canvasViewPort;
+
+    private SVG document = null;
+
+    // The containers that are currently entered in the renderer, outermost first
+    private final List<Level> levels = new ArrayList<>();
+
+    // Greater than zero while inside an element that will be drawn when it is complete
+    private int retainDepth = 0;
+    // Set if that element is a group that turned out not to be displayed
+    private boolean retainedGroupHidden = false;
+
+    // Set when a forward reference has been found, or when the root element isn't displayed
+    private boolean streamingStopped = false;
+
+    // Set once an element has been drawn
+    private boolean drawingStarted = false;
+
+    // Every element with an id that has been parsed so far. Elements with ids are never dropped.
+    private final Map<String, SvgObject> parsedIds = new HashMap<>();
+
+    // The IRIs referenced by the document's CSS rules that are not known to be parsed yet,
+    // and how many rules the document had when they were collected
+    private final List<String> pendingCSSReferences = new ArrayList<>();
+    private int cssRuleCount = 0;
+
+    // Reused by the forward reference checks
+    private final Set<SvgObject> visited = new HashSet<>();
+
+    // Set if a CSS rule can match an element depending on its preceding siblings
+    private boolean cssUsesSiblings = false;
+
+    // The rules from the RenderOptions css, which apply from the start of the document
+    private List<CSSParser.Rule> optionRules = Collections.emptyList();
+
+
+    private static class Level {
+        final SvgContainer container;
+        // Set if the container, or one of the levels around it, may be referenced once it is
+        // complete, so its children have to be kept
+        final boolean keepChildren;
+        int nextChild = 0;   // Index of the first child that has not been drawn yet
+
+        Level(SvgContainer container, boolean keepChildren) {
+            this.container = container;
+            this.keepChildren = keepChildren;
+        }
+    }
+
+
+    StreamingRenderer(Canvas canvas, Box canvasViewPort, float dpi) {
+        this(canvas, canvasViewPort, dpi, null);
+    }
+
+
+    StreamingRenderer(Canvas canvas, Box canvasViewPort, float dpi, RenderOptions options) {
+        this.renderer = new SVGAndroidRenderer(canvas, dpi);
+        this.renderer.setRenderOptions(options);
+        this.canvasViewPort = canvasViewPort;
+        if (options != null) {
+            List<CSSParser.Rule> rules = options.getCompiled().cssRules;
+            if (rules != null) {
+                this.optionRules = rules;
+                addRuleReferences(rules);
+            }
+        }
+    }
+
+
+    //===============================================================================
+    // Parser events
+
+
+    /*
+     * Called by the parser after an element's start tag has been parsed and the element has
+     * been added to its parent.
+     */
+    void elementStarted(SvgObject obj, boolean isContainer) {
+        if (document == null) {
+            document = obj.document;
+        }
+        if (obj instanceof SvgElementBase) {
+            SvgElementBase elem = (SvgElementBase) obj;
+            if (elem.id != null && !parsedIds.containsKey(elem.id)) {
+                parsedIds.put(elem.id, obj);
+            }
+        }
+
+        if (streamingStopped) {
+            return;
+        }
+        if (obj.parent == null) {
+            startDocument(obj);
+            return;
+        }
+        if (retainDepth > 0) {
+            if (isContainer) {
+                retainDepth++;
+            }
+            return;
+        }
+        if (!isContainer) {
+            drawChild(obj);
+            return;
+        }
+        retainedGroupHidden = false;
+        if (obj.getClass() == Group.class && areReferencesParsed(obj, false)) {
+            if (renderer.enterStreamedGroup((Group) obj)) {
+                boolean keepChildren = levels.get(levels.size() - 1).keepChildren || ((Group) obj).id != null;
+                levels.add(new Level((SvgContainer) obj, keepChildren));
+                return;
+            }
+            // Not displayed. Its children still have to be parsed, but there is nothing to draw.
+            retainedGroupHidden = true;
+        }
+        // Keep the whole element and draw it when it is complete
+        retainDepth = 1;
+    }
+
+
+    /*
+     * Called by the parser after a container element's end tag has been parsed.
+     */
+    void containerEnded(SvgContainer obj) {
+        if (streamingStopped) {
+            return;
+        }
+        if (retainDepth > 0) {
+            if (--retainDepth == 0) {
+                if (retainedGroupHidden) {
+                    childDone((SvgObject) obj);
+                } else {
+                    drawChild((SvgObject) obj);
+                }
+            }
+            return;
+        }
+
+        levels.remove(levels.size() - 1);
+        renderer.leaveStreamedContainer((SvgElement) obj);
+        if (!levels.isEmpty()) {
+            childDone((SvgObject) obj);
+        }
+    }
+
+
+    /*
+     * Called once the whole document has been parsed. Draws whatever could not be drawn while
+     * streaming, and leaves the containers that are still entered.
+     */
+    void finish() {
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            Level level = levels.get(i);
+            List<SvgObject> children = level.container.getChildren();
+            // Below the innermost level, the first undrawn child is the container of the level above
+            int first = (i == levels.size() - 1) ? level.nextChild : level.nextChild + 1;
+            for (int j = first; j < children.size(); j++) {
+                renderer.renderStreamedChild(children.get(j));
+            }
+            renderer.leaveStreamedContainer((SvgElement) level.container);
+        }
+        levels.clear();
+    }
+
+
+    //===============================================================================
+
+
+    private void startDocument(SvgObject root) {
+        if (renderer.startStreamedDocument(document, canvasViewPort)) {
+            // Nothing follows the root element, so nothing can refer to it once it is complete
+            levels.add(new Level((SvgContainer) root, false));
+        } else {
+            streamingStopped = true;
+        }
+    }
+
+
+    // Draw a complete element that is a child of the innermost entered container
+    private void drawChild(SvgObject obj) {
+        if (isRendered(obj)) {
+            if (!areReferencesParsed(obj, true)) {
+                // Forward reference. Leave this element and everything after it to finish().
+                streamingStopped = true;
+                return;
+            }
+            renderer.renderStreamedChild(obj);
+            drawingStarted = true;
+        }
+        childDone(obj);
+    }
+
+
+    // Drop an element that has been drawn, unless it may be referenced or matched against later
+    private void childDone(SvgObject obj) {
+        Level level = levels.get(levels.size() - 1);
+        List<SvgObject> children = level.container.getChildren();
+        if (document.hasCSSRules()) {
+            updateCSSReferences();
+        }
+        boolean keep = cssUsesSiblings || level.keepChildren || hasIds(obj);
+        if (!keep && !children.isEmpty() && children.get(children.size() - 1) == obj) {
+            children.remove(children.size() - 1);
+        } else {
+            level.nextChild++;
+        }
+    }
+
+
+    private static boolean isRendered(SvgObject obj) {
+        return !(obj instanceof NotDirectlyRendered || obj instanceof GradientElement
+                 || obj instanceof Stop || obj instanceof SolidColor);
+    }
+
+
+    private static boolean hasIds(SvgObject obj) {
+        if (obj instanceof SvgElementBase && ((SvgElementBase) obj).id != null) {
+            return true;
+        }
+        if (obj instanceof SvgContainer) {
+            for (SvgObject child : ((SvgContainer) obj).getChildren()) {
+                if (hasIds(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    //===============================================================================
+    // Forward reference detection
+
+
+    private boolean areReferencesParsed(SvgObject obj, boolean includeChildren) {
+        if (document.hasCSSRules()) {
+            updateCSSReferences();
+            if (streamingStopped) {
+                return false;
+            }
+        }
+        try {
+            // Once a CSS reference and everything it references has been parsed, it stays parsed
+            for (int i = pendingCSSReferences.size() - 1; i >= 0; i--) {
+                if (!isReferenceParsed(pendingCSSReferences.get(i), visited)) {
+                    return false;
+                }
+                pendingCSSReferences.remove(i);
+            }
+            return isParsed(obj, includeChildren, visited);
+        } finally {
+            visited.clear();
+        }
+    }
+
+
+    // Check that everything obj references, directly or indirectly, has been parsed
+    private boolean isParsed(SvgObject obj, boolean includeChildren, Set<SvgObject> visited) {
+        if (!visited.add(obj)) {
+            return true;
+        }
+        if (obj instanceof SvgElementBase) {
+            SvgElementBase elem = (SvgElementBase) obj;
+            if (!isStyleParsed(elem.baseStyle, visited) || !isStyleParsed(elem.style, visited)) {
+                return false;
+            }
+        }
+        if (!isReferenceParsed(hrefOf(obj), visited)) {
+            return false;
+        }
+        if (includeChildren && obj instanceof SvgContainer) {
+            for (SvgObject child : ((SvgContainer) obj).getChildren()) {
+                if (!isParsed(child, true, visited)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    private boolean isStyleParsed(Style style, Set<SvgObject> visited) {
+        if (style == null) {
+            return true;
+        }
+        List<String> refs = new ArrayList<>();
+        addStyleReferences(style, refs);
+        for (String iri : refs) {
+            if (!isReferenceParsed(iri, visited)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private boolean isReferenceParsed(String iri, Set<SvgObject> visited) {
+        String id = document.idFromIRI(iri);
+        if (id == null) {
+            return true;   // Not a reference to an element in this document
+        }
+        SvgObject target = parsedIds.get(id);
+        if (target == null) {
+            return false;   // Not parsed yet
+        }
+        // A referenced element also needs whatever it references itself
+        return isParsed(target, true, visited);
+    }
+
+
+    private static String hrefOf(SvgObject obj) {
+        if (obj instanceof Use) {
+            return ((Use) obj).href;
+        } else if (obj instanceof TRef) {
+            return ((TRef) obj).href;
+        } else if (obj instanceof TextPath) {
+            return ((TextPath) obj).href;
+        } else if (obj instanceof GradientElement) {
+            return ((GradientElement) obj).href;
+        } else if (obj instanceof Pattern) {
+            return ((Pattern) obj).href;
+        }
+        return null;
+    }
+
+
+    private static void addStyleReferences(Style style, List<String> refs) {
+        if (style.fill instanceof PaintReference) {
+            refs.add(((PaintReference) style.fill).href);
+        }
+        if (style.stroke instanceof PaintReference) {
+            refs.add(((PaintReference) style.stroke).href);
+        }
+        refs.add(style.clipPath);
+        refs.add(style.mask);
+        refs.add(style.markerStart);
+        refs.add(style.markerMid);
+        refs.add(style.markerEnd);
+    }
+
+
+    private void updateCSSReferences() {
+        List<CSSParser.Rule> rules = document.getCSSRules();
+        if (rules.size() == cssRuleCount) {
+            return;
+        }
+        if (drawingStarted) {
+            // A <style> element after drawing has started. Its rules may apply to elements that
+            // follow, so leave the rest of the document to finish(), which has all the rules.
+            streamingStopped = true;
+        }
+        pendingCSSReferences.clear();
+        addRuleReferences(optionRules);
+        addRuleReferences(rules);
+        cssRuleCount = rules.size();
+    }
+
+
+    private void addRuleReferences(List<CSSParser.Rule> rules) {
+        for (CSSParser.Rule rule : rules) {
+            addStyleReferences(rule.style, pendingCSSReferences);
+            for (int i = 0; i < rule.selector.size(); i++) {
+                CSSParser.SimpleSelector sel = rule.selector.get(i);
+                if (sel.combinator == CSSParser.Combinator.FOLLOWS || sel.pseudos != null) {
+                    cssUsesSiblings = true;
+                }
+            }
+        }
+    }
+}
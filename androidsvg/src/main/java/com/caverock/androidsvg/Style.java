@@ -6,6 +6,9 @@ public class Style implements Cloneable {
     // Which properties have been explicitly specified by this element
     public long specifiedFlags = 0;
 
+    // Set if the parser has given this instance to more than one element. See StyleInterner.
+    boolean shared = false;
+
     public SvgPaint fill;
     public FillRule fillRule;
     public Float fillOpacity;
@@ -185,9 +188,193 @@ public class Style implements Cloneable {
     }
 
 
+    // Whether resetNonInheritingProperties() would leave this style unchanged
+    boolean hasResetNonInheritingProperties(boolean isRootSVG) {
+        return display == Boolean.TRUE
+               && overflow == (isRootSVG ? Boolean.TRUE : Boolean.FALSE)
+               && clip == null
+               && clipPath == null
+               && opacity != null && opacity == 1f
+               && stopColor == Colour.BLACK
+               && stopOpacity != null && stopOpacity == 1f
+               && mask == null
+               && solidColor == null
+               && solidOpacity != null && solidOpacity == 1f
+               && viewportFill == null
+               && viewportFillOpacity != null && viewportFillOpacity == 1f
+               && vectorEffect == VectorEffect.None;
+    }
+
+
+    /*
+     * Copy the properties that are specified in other into this style, so that applying this
+     * style has the same effect as applying the original contents of this style followed by
+     * other. Returns false, and leaves this style unchanged, if that can't be done. That is
+     * the case when both specify a font size or weight and other's value is relative. It is
+     * also the case when one specifies a font size and the other a relative length, because
+     * the renderer resolves lengths as it applies each style, in a fixed order of properties.
+     */
+    boolean merge(Style other) {
+        long both = specifiedFlags & other.specifiedFlags;
+        if ((both & SVG.SPECIFIED_FONT_SIZE) != 0 && isRelative(other.fontSize)) {
+            return false;
+        }
+        if (((specifiedFlags & SVG.SPECIFIED_FONT_SIZE) != 0 && other.hasRelativeLengths())
+                || ((other.specifiedFlags & SVG.SPECIFIED_FONT_SIZE) != 0 && hasRelativeLengths())) {
+            return false;
+        }
+        if ((both & SVG.SPECIFIED_FONT_WEIGHT) != 0
+                && (other.fontWeight == FONT_WEIGHT_LIGHTER || other.fontWeight == FONT_WEIGHT_BOLDER)) {
+            return false;
+        }
+
+        if ((other.specifiedFlags & SVG.SPECIFIED_FILL) != 0) {
+            fill = other.fill;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_FILL_RULE) != 0) {
+            fillRule = other.fillRule;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_FILL_OPACITY) != 0) {
+            fillOpacity = other.fillOpacity;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE) != 0) {
+            stroke = other.stroke;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE_OPACITY) != 0) {
+            strokeOpacity = other.strokeOpacity;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE_WIDTH) != 0) {
+            strokeWidth = other.strokeWidth;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE_LINECAP) != 0) {
+            strokeLineCap = other.strokeLineCap;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE_LINEJOIN) != 0) {
+            strokeLineJoin = other.strokeLineJoin;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE_MITERLIMIT) != 0) {
+            strokeMiterLimit = other.strokeMiterLimit;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE_DASHARRAY) != 0) {
+            strokeDashArray = other.strokeDashArray;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STROKE_DASHOFFSET) != 0) {
+            strokeDashOffset = other.strokeDashOffset;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_OPACITY) != 0) {
+            opacity = other.opacity;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_COLOR) != 0) {
+            color = other.color;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_FONT_FAMILY) != 0) {
+            fontFamily = other.fontFamily;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_FONT_SIZE) != 0) {
+            fontSize = other.fontSize;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_FONT_WEIGHT) != 0) {
+            fontWeight = other.fontWeight;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_FONT_STYLE) != 0) {
+            fontStyle = other.fontStyle;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_TEXT_DECORATION) != 0) {
+            textDecoration = other.textDecoration;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_TEXT_ANCHOR) != 0) {
+            textAnchor = other.textAnchor;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_OVERFLOW) != 0) {
+            overflow = other.overflow;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_CLIP) != 0) {
+            clip = other.clip;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_MARKER_START) != 0) {
+            markerStart = other.markerStart;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_MARKER_MID) != 0) {
+            markerMid = other.markerMid;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_MARKER_END) != 0) {
+            markerEnd = other.markerEnd;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_DISPLAY) != 0) {
+            display = other.display;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_VISIBILITY) != 0) {
+            visibility = other.visibility;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STOP_COLOR) != 0) {
+            stopColor = other.stopColor;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_STOP_OPACITY) != 0) {
+            stopOpacity = other.stopOpacity;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_CLIP_PATH) != 0) {
+            clipPath = other.clipPath;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_CLIP_RULE) != 0) {
+            clipRule = other.clipRule;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_MASK) != 0) {
+            mask = other.mask;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_SOLID_COLOR) != 0) {
+            solidColor = other.solidColor;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_SOLID_OPACITY) != 0) {
+            solidOpacity = other.solidOpacity;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_VIEWPORT_FILL) != 0) {
+            viewportFill = other.viewportFill;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_VIEWPORT_FILL_OPACITY) != 0) {
+            viewportFillOpacity = other.viewportFillOpacity;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_VECTOR_EFFECT) != 0) {
+            vectorEffect = other.vectorEffect;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_DIRECTION) != 0) {
+            direction = other.direction;
+        }
+        if ((other.specifiedFlags & SVG.SPECIFIED_IMAGE_RENDERING) != 0) {
+            imageRendering = other.imageRendering;
+        }
+        specifiedFlags |= other.specifiedFlags;
+        return true;
+    }
+
+
+    // Whether any of the lengths other than the font size are specified in relative units
+    private boolean hasRelativeLengths() {
+        if ((specifiedFlags & SVG.SPECIFIED_STROKE_WIDTH) != 0 && isRelative(strokeWidth)) {
+            return true;
+        }
+        if ((specifiedFlags & SVG.SPECIFIED_STROKE_DASHOFFSET) != 0 && isRelative(strokeDashOffset)) {
+            return true;
+        }
+        if ((specifiedFlags & SVG.SPECIFIED_STROKE_DASHARRAY) != 0 && strokeDashArray != null) {
+            for (Length length : strokeDashArray) {
+                if (isRelative(length)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean isRelative(Length length) {
+        return length != null && (length.unit == Unit.em || length.unit == Unit.ex || length.unit == Unit.percent);
+    }
+
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         Style obj = (Style) super.clone();
+        obj.shared = false;
         if (strokeDashArray != null) {
             obj.strokeDashArray = strokeDashArray.clone();
         }
@@ -0,0 +1,205 @@
+package com.caverock.androidsvg;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets elements with identical presentation attributes or {@code style} attributes share a
+ * single Style instance.
+ * <p>
+ * Generated SVGs often repeat the same handful of styles on thousands of elements. The parser
+ * passes each element's styles through {@link #intern(Style)} once its attributes have been
+ * read, and gets back the first Style it saw with the same specified properties.
+ * <p>
+ * Styles handed out more than once are marked as shared. Nothing in the library modifies an
+ * element's style after parsing, and code that wants to should use
+ * {@link SvgElementBase#getMutableStyle()} or {@link SvgElementBase#getMutableBaseStyle()},
+ * which copy a shared style first.
+ */
+class StyleInterner {
+    private final Map<Key, Style> styles = new HashMap<>();
+
+
+    private static class Key {
+        final Style style;
+        final int hash;
+
+        Key(Style style) {
+            this.style = style;
+            this.hash = hashStyle(style);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && sameStyle(style, other.style);
+        }
+    }
+
+
+    /*
+     * Returns the first style passed in that is equal to this one, or the style itself if there
+     * hasn't been one.
+     */
+    Style intern(Style style) {
+        if (style == null) {
+            return null;
+        }
+        Key key = new Key(style);
+        Style existing = styles.get(key);
+        if (existing == null) {
+            styles.put(key, style);
+            return style;
+        }
+        existing.shared = true;
+        return existing;
+    }
+
+
+    //===============================================================================
+    // Value comparison. The value classes don't define equals(), so it is done here.
+
+
+    private static boolean sameStyle(Style a, Style b) {
+        return a.specifiedFlags == b.specifiedFlags
+               && samePaint(a.fill, b.fill)
+               && a.fillRule == b.fillRule
+               && same(a.fillOpacity, b.fillOpacity)
+               && samePaint(a.stroke, b.stroke)
+               && same(a.strokeOpacity, b.strokeOpacity)
+               && sameLength(a.strokeWidth, b.strokeWidth)
+               && a.strokeLineCap == b.strokeLineCap
+               && a.strokeLineJoin == b.strokeLineJoin
+               && same(a.strokeMiterLimit, b.strokeMiterLimit)
+               && sameLengths(a.strokeDashArray, b.strokeDashArray)
+               && sameLength(a.strokeDashOffset, b.strokeDashOffset)
+               && same(a.opacity, b.opacity)
+               && samePaint(a.color, b.color)
+               && same(a.fontFamily, b.fontFamily)
+               && sameLength(a.fontSize, b.fontSize)
+               && same(a.fontWeight, b.fontWeight)
+               && a.fontStyle == b.fontStyle
+               && a.textDecoration == b.textDecoration
+               && a.direction == b.direction
+               && a.textAnchor == b.textAnchor
+               && same(a.overflow, b.overflow)
+               && sameClip(a.clip, b.clip)
+               && same(a.markerStart, b.markerStart)
+               && same(a.markerMid, b.markerMid)
+               && same(a.markerEnd, b.markerEnd)
+               && same(a.display, b.display)
+               && same(a.visibility, b.visibility)
+               && samePaint(a.stopColor, b.stopColor)
+               && same(a.stopOpacity, b.stopOpacity)
+               && same(a.clipPath, b.clipPath)
+               && a.clipRule == b.clipRule
+               && same(a.mask, b.mask)
+               && samePaint(a.solidColor, b.solidColor)
+               && same(a.solidOpacity, b.solidOpacity)
+               && samePaint(a.viewportFill, b.viewportFill)
+               && same(a.viewportFillOpacity, b.viewportFillOpacity)
+               && a.vectorEffect == b.vectorEffect
+               && a.imageRendering == b.imageRendering;
+    }
+
+
+    // Hashes the properties that most often differ between styles. sameStyle() checks the rest.
+    private static int hashStyle(Style s) {
+        int h = (int) (s.specifiedFlags ^ (s.specifiedFlags >>> 32));
+        h = h * 31 + hashPaint(s.fill);
+        h = h * 31 + hashPaint(s.stroke);
+        h = h * 31 + hashLength(s.strokeWidth);
+        h = h * 31 + hash(s.fillOpacity);
+        h = h * 31 + hash(s.strokeOpacity);
+        h = h * 31 + hash(s.opacity);
+        h = h * 31 + hash(s.fontFamily);
+        h = h * 31 + hashLength(s.fontSize);
+        h = h * 31 + hash(s.clipPath);
+        h = h * 31 + hash(s.mask);
+        return h;
+    }
+
+
+    private static boolean same(Object a, Object b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+
+    private static int hash(Object o) {
+        return (o == null) ? 0 : o.hashCode();
+    }
+
+
+    private static boolean samePaint(SvgPaint a, SvgPaint b) {
+        if (a == b) {
+            return true;
+        }
+        if (a instanceof Colour && b instanceof Colour) {
+            return ((Colour) a).colour == ((Colour) b).colour;
+        }
+        if (a instanceof PaintReference && b instanceof PaintReference) {
+            PaintReference ra = (PaintReference) a;
+            PaintReference rb = (PaintReference) b;
+            return same(ra.href, rb.href) && samePaint(ra.fallback, rb.fallback);
+        }
+        // CurrentColor is a singleton, so the identity check covers it
+        return false;
+    }
+
+
+    private static int hashPaint(SvgPaint paint) {
+        if (paint instanceof Colour) {
+            return ((Colour) paint).colour;
+        }
+        if (paint instanceof PaintReference) {
+            return hash(((PaintReference) paint).href);
+        }
+        return (paint == null) ? 0 : 1;
+    }
+
+
+    private static boolean sameLength(Length a, Length b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Float.floatToIntBits(a.value) == Float.floatToIntBits(b.value) && a.unit == b.unit;
+    }
+
+
+    private static int hashLength(Length length) {
+        return (length == null) ? 0 : Float.floatToIntBits(length.value) * 31 + length.unit.ordinal();
+    }
+
+
+    private static boolean sameLengths(Length[] a, Length[] b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (!sameLength(a[i], b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean sameClip(CSSClipRect a, CSSClipRect b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return sameLength(a.top, b.top) && sameLength(a.right, b.right)
+               && sameLength(a.bottom, b.bottom) && sameLength(a.left, b.left);
+    }
+}
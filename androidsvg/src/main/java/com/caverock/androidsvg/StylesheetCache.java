@@ -0,0 +1,83 @@
+package com.caverock.androidsvg;
+
+import com.caverock.androidsvg.CSSParser.MediaType;
+import com.caverock.androidsvg.CSSParser.Ruleset;
+import org.xml.sax.SAXException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares parsed {@code <style>} stylesheets between documents.
+ * <p>
+ * Sets of icons generated from the same template often embed an identical stylesheet in every
+ * file. Rather than parse it again for each document, the Ruleset from the first parse is kept
+ * and handed out again. Documents copy the rules into their own list, and nothing modifies a
+ * Rule or its Style once it has been parsed, so the same Ruleset can be shared by any number
+ * of documents and threads.
+ * <p>
+ * The cache holds the most recently used stylesheets, up to a fixed number of entries. Very
+ * large stylesheets are unlikely to be repeated, so they are not cached.
+ */
+class StylesheetCache {
+    private static final int MAX_ENTRIES = 32;
+    private static final int MAX_SHEET_LENGTH = 64 * 1024;
+
+    private static final Map<Key, Ruleset> cache = new LinkedHashMap<Key, Ruleset>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Ruleset> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+
+    private static class Key {
+        final String sheet;
+        final MediaType mediaType;
+        final int hash;
+
+        Key(String sheet, MediaType mediaType) {
+            this.sheet = sheet;
+            this.mediaType = mediaType;
+            this.hash = sheet.hashCode() * 31 + mediaType.ordinal();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && mediaType == other.mediaType && sheet.equals(other.sheet);
+        }
+    }
+
+
+    /*
+     * Get the rules for a stylesheet, parsing it if it isn't in the cache.
+     */
+    static Ruleset get(String sheet, MediaType mediaType) throws SAXException {
+        if (sheet.length() > MAX_SHEET_LENGTH) {
+            return new CSSParser(mediaType).parse(sheet);
+        }
+
+        Key key = new Key(sheet, mediaType);
+        synchronized (cache) {
+            Ruleset rules = cache.get(key);
+            if (rules != null) {
+                return rules;
+            }
+        }
+        // Parse outside the lock. If two threads parse the same sheet, the results are equivalent.
+        Ruleset rules = new CSSParser(mediaType).parse(sheet);
+        synchronized (cache) {
+            cache.put(key, rules);
+        }
+        return rules;
+    }
+}
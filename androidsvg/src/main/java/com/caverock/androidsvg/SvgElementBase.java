@@ -9,15 +9,60 @@ public class SvgElementBase extends SvgObject {
     public String id = null;
     public Boolean spacePreserve = null;
     /**
-     * Style defined by explicit style attributes in the element (eg. fill="black")
+     * Style defined by explicit style attributes in the element (eg. fill="black").
+     * The parser may give the same instance to several elements, so use
+     * {@link #getMutableBaseStyle()} to change it.
      */
     public Style baseStyle = null;
     /**
-     * style expressed in a 'style' attribute (eg. style="fill:black")
+     * style expressed in a 'style' attribute (eg. style="fill:black").
+     * May be shared with other elements, like baseStyle. Use {@link #getMutableStyle()} to change it.
      */
     public Style style = null;
+    /**
+     * The combined style of all the CSS rules that match this element, if it has been
+     * precomputed by {@link SVG#resolveStylesheets()}
+     */
+    public Style cssStyle = null;
     /**
      * contents of the 'class' attribute
      */
     public List<String> classNames = null;
+
+
+    /**
+     * Returns this element's baseStyle, ready to be modified. A new Style is created if the
+     * element doesn't have one, and a copy is made if the current one is shared with other elements.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Style getMutableBaseStyle() {
+        baseStyle = unshare(baseStyle);
+        return baseStyle;
+    }
+
+
+    /**
+     * Returns this element's style, ready to be modified. A new Style is created if the
+     * element doesn't have one, and a copy is made if the current one is shared with other elements.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Style getMutableStyle() {
+        style = unshare(style);
+        return style;
+    }
+
+
+    private static Style unshare(Style style) {
+        if (style == null) {
+            return new Style();
+        }
+        if (!style.shared) {
+            return style;
+        }
+        try {
+            return (Style) style.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,123 @@
+package com.caverock.androidsvg;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Hands out XMLReader instances to SVGParser.
+ * <p>
+ * Looking up a SAXParserFactory and creating a SAXParser is relatively expensive compared to
+ * parsing a small icon. So each thread keeps the reader it created for its first document and
+ * reuses it for later ones. There is one reader per thread for each parser profile.
+ * <p>
+ * The fast profile configures the reader for the way SVGParser works. It is namespace aware,
+ * because startElement() dispatches on namespace URI and local name. It does not validate,
+ * load external DTDs or resolve external entities, so parsing never touches the network or
+ * the file system.
+ */
+class XMLReaderCache {
+    static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+
+    private static final String FEATURE_NAMESPACES = "http://xml.org/sax/features/namespaces";
+    private static final String FEATURE_NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+    private static final String FEATURE_VALIDATION = "http://xml.org/sax/features/validation";
+    private static final String FEATURE_EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+    private static final String FEATURE_EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+    private static final String FEATURE_LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+    private static final ThreadLocal<XMLReader> standardReader = new ThreadLocal<>();
+    private static final ThreadLocal<XMLReader> fastReader = new ThreadLocal<>();
+
+    private static final DefaultHandler2 NO_OP_HANDLER = new DefaultHandler2();
+
+    // Resolves every external entity or DTD to an empty document
+    private static final EntityResolver NO_EXTERNAL_ENTITIES = new EntityResolver() {
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId) {
+            return new InputSource(new StringReader(""));
+        }
+    };
+
+    private static volatile boolean fastProfile = false;
+
+
+    static void setFastProfile(boolean enable) {
+        fastProfile = enable;
+    }
+
+
+    static boolean isFastProfile() {
+        return fastProfile;
+    }
+
+
+    /*
+     * Get the reader for the current thread, creating it on first use.
+     */
+    static XMLReader obtain() throws ParserConfigurationException, SAXException {
+        ThreadLocal<XMLReader> holder = fastProfile ? fastReader : standardReader;
+        XMLReader xr = holder.get();
+        if (xr == null) {
+            xr = fastProfile ? createFastReader() : createStandardReader();
+            holder.set(xr);
+        }
+        return xr;
+    }
+
+
+    /*
+     * Detach a reader from its handler once a parse has finished, so that the cached reader
+     * doesn't keep the last parser and its document alive.
+     */
+    static void release(XMLReader xr) {
+        xr.setContentHandler(NO_OP_HANDLER);
+        try {
+            xr.setProperty(LEXICAL_HANDLER_PROPERTY, NO_OP_HANDLER);
+        } catch (SAXException e) {
+            // The property was accepted when the parse started, so this should not happen.
+            // Drop the reader rather than risk leaking the handler.
+            standardReader.remove();
+            fastReader.remove();
+        }
+    }
+
+
+    private static XMLReader createStandardReader() throws ParserConfigurationException, SAXException {
+        return SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+    }
+
+
+    private static XMLReader createFastReader() throws ParserConfigurationException, SAXException {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        spf.setValidating(false);
+        XMLReader xr = spf.newSAXParser().getXMLReader();
+
+        // Not every SAX implementation recognises every feature, so each one is best effort
+        setFeature(xr, FEATURE_NAMESPACES, true);
+        setFeature(xr, FEATURE_NAMESPACE_PREFIXES, false);
+        setFeature(xr, FEATURE_VALIDATION, false);
+        setFeature(xr, FEATURE_EXTERNAL_GENERAL_ENTITIES, false);
+        setFeature(xr, FEATURE_EXTERNAL_PARAMETER_ENTITIES, false);
+        setFeature(xr, FEATURE_LOAD_EXTERNAL_DTD, false);
+        xr.setEntityResolver(NO_EXTERNAL_ENTITIES);
+        return xr;
+    }
+
+
+    private static void setFeature(XMLReader xr, String feature, boolean value) {
+        try {
+            xr.setFeature(feature, value);
+        } catch (SAXException e) {
+            // SAXNotRecognizedException or SAXNotSupportedException. Carry on without it.
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class BitmapPoolTest {
+    private static final long ONE_BUCKET = 4L * 64 * 64;
+
+    @Test
+    public void similarSizesShareABitmap() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap first = pool.acquire(50, 60);
+        assertThat(first.getWidth()).isEqualTo(64);
+        assertThat(first.getHeight()).isEqualTo(64);
+        pool.release(first);
+        assertThat(pool.getSize()).isEqualTo(ONE_BUCKET);
+
+        Bitmap second = pool.acquire(64, 1);
+        assertThat(second).isSameAs(first);
+        assertThat(pool.getSize()).isEqualTo(0L);
+    }
+
+    @Test
+    public void leastRecentlyUsedSizesAreRecycled() {
+        BitmapPool pool = new BitmapPool(2 * ONE_BUCKET);
+        Bitmap a = pool.acquire(10, 10);
+        Bitmap b = pool.acquire(10, 100);
+        Bitmap c = pool.acquire(100, 10);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+
+        // Each release that takes the pool over its capacity recycles the oldest size
+        assertThat(a.isRecycled()).isTrue();
+        assertThat(b.isRecycled()).isTrue();
+        assertThat(c.isRecycled()).isFalse();
+        assertThat(pool.getSize()).isEqualTo(2 * ONE_BUCKET);
+
+        pool.clear();
+        assertThat(c.isRecycled()).isTrue();
+        assertThat(pool.getSize()).isEqualTo(0L);
+    }
+
+    @Test
+    public void exactSizesAreKeptApart() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap exact = pool.acquireExact(50, 60);
+        assertThat(exact.getWidth()).isEqualTo(50);
+        assertThat(exact.getHeight()).isEqualTo(60);
+        pool.release(exact);
+
+        assertThat(pool.acquire(50, 60)).isNotSameAs(exact);
+        assertThat(pool.acquireExact(50, 60)).isSameAs(exact);
+    }
+
+    /*
+     * A display list compiled with a pool draws its pattern tile into a bitmap from the pool,
+     * so compiling again after releasing it doesn't create a new bitmap.
+     */
+    @Test
+    public void recompilingReusesPooledBitmaps() throws Exception {
+        SVG svg = SVG.getFromString(
+                "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">" +
+                "  <pattern id=\"p\" patternUnits=\"userSpaceOnUse\" width=\"10\" height=\"10\">" +
+                "    <circle cx=\"5\" cy=\"5\" r=\"4\"/>" +
+                "  </pattern>" +
+                "  <rect width=\"100\" height=\"100\" fill=\"url(#p)\"/>" +
+                "</svg>");
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        RenderOptions options = new RenderOptions().bitmapPool(pool);
+        RectF viewPort = new RectF(0, 0, 100, 100);
+        List<MockCanvas> created = MockCanvas.recordCreatedCanvases();
+
+        SVGDisplayList first = svg.compile(viewPort, 96f, options);
+        assertThat(created).hasSize(1);
+        Bitmap tile = created.get(0).getBitmap();
+        assertThat(pool.getSize()).isEqualTo(0L);
+        first.release();
+        assertThat(pool.getSize()).isEqualTo(4L * 10 * 10);
+
+        SVGDisplayList second = svg.compile(viewPort, 96f, options);
+        assertThat(created).hasSize(2);
+        assertThat(created.get(1).getBitmap()).isSameAs(tile);
+        assertThat(pool.getSize()).isEqualTo(0L);
+
+        second.release();
+        second.release();
+        assertThat(pool.getSize()).isEqualTo(4L * 10 * 10);
+    }
+}
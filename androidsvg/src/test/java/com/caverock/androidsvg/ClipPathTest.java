@@ -0,0 +1,127 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class ClipPathTest {
+    private static final String HEADER = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">";
+
+    @Test
+    public void rectangleClipUsesClipRect() throws Exception {
+        List<String> ops = clips(render(HEADER +
+                "<clipPath id=\"c\"><rect x=\"10\" y=\"10\" width=\"20\" height=\"20\"/></clipPath>" +
+                "<rect width=\"50\" height=\"50\" clip-path=\"url(#c)\"/>" +
+                "</svg>"));
+
+        assertThat(ops).containsExactly("clipRect(10, 10, 30, 30)");
+    }
+
+
+    @Test
+    public void otherShapeClipUsesClipPath() throws Exception {
+        List<String> ops = clips(render(HEADER +
+                "<clipPath id=\"c\"><polygon points=\"10,10 30,10 20,30\"/></clipPath>" +
+                "<rect width=\"50\" height=\"50\" clip-path=\"url(#c)\"/>" +
+                "</svg>"));
+
+        assertThat(ops).containsExactly("clipPath(M 10 10 L 30 10 L 20 30)");
+    }
+
+
+    /*
+     * Every element that references a clip path, in this render and later ones, gets the
+     * path built for the first one.
+     */
+    @Test
+    public void clipPathIsReused() throws Exception {
+        SVG svg = SVG.getFromString(HEADER +
+                "<clipPath id=\"c\"><rect x=\"10\" y=\"10\" width=\"20\" height=\"20\"/></clipPath>" +
+                "<rect width=\"50\" height=\"50\" clip-path=\"url(#c)\"/>" +
+                "<circle cx=\"20\" cy=\"20\" r=\"10\" clip-path=\"url(#c)\"/>" +
+                "</svg>");
+        SvgObject clipPath = svg.getElementBaseById("c");
+        Box viewPort = new Box(0, 0, 100, 100);
+
+        assertThat(ClipPathCache.get(clipPath, null, 96f, viewPort)).isNull();
+        assertThat(clips(render(svg))).containsExactly("clipRect(10, 10, 30, 30)", "clipRect(10, 10, 30, 30)");
+
+        ClipPathCache cached = ClipPathCache.get(clipPath, null, 96f, viewPort);
+        assertThat(cached).isNotNull();
+        render(svg);
+        assertThat(ClipPathCache.get(clipPath, null, 96f, viewPort)).isSameAs(cached);
+        // A different DPI changes real-world units, so it needs a path of its own
+        assertThat(ClipPathCache.get(clipPath, null, 72f, viewPort)).isNull();
+    }
+
+
+    /*
+     * Percentages in a clip path are relative to the viewport in user units, so two viewports
+     * of the same size with different viewBoxes can't share a path.
+     */
+    @Test
+    public void clipPathIsNotReusedAcrossViewBoxes() throws Exception {
+        List<String> ops = clips(render(HEADER +
+                "<clipPath id=\"c\"><rect width=\"50%\" height=\"10\"/></clipPath>" +
+                "<svg width=\"100\" height=\"100\" viewBox=\"0 0 100 100\"><rect width=\"10\" height=\"10\" clip-path=\"url(#c)\"/></svg>" +
+                "<svg width=\"100\" height=\"100\" viewBox=\"0 0 200 200\"><rect width=\"10\" height=\"10\" clip-path=\"url(#c)\"/></svg>" +
+                "</svg>"));
+
+        assertThat(ops).containsExactly("clipRect(0, 0, 50, 10)", "clipRect(0, 0, 100, 10)").inOrder();
+    }
+
+
+    private static List<String> render(String doc) throws SVGParseException {
+        return render(SVG.getFromString(doc));
+    }
+
+
+    private static List<String> render(SVG svg) {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        svg.renderToCanvas(canvas);
+        return ((MockCanvas) Shadow.extract(canvas)).getOperations();
+    }
+
+
+    // The clip operations made by clip paths, leaving out the clips to nested viewports
+    private static List<String> clips(List<String> ops) {
+        List<String> clips = new ArrayList<>();
+        for (String op : ops) {
+            if (op.startsWith("clipPath(") || (op.startsWith("clipRect(") && !op.equals("clipRect(0, 0, 100, 100)"))) {
+                clips.add(op);
+            }
+        }
+        return clips;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Matrix;
+import com.caverock.androidsvg.tag.Group;
+import com.caverock.androidsvg.tag.Path;
+import com.caverock.androidsvg.tag.PolyLine;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class ConcurrentParseTest {
+    private static final int THREADS = 8;
+    private static final int DOCUMENTS = 400;
+    private static final int GEOMETRY_ELEMENTS = 2000;
+
+    /*
+     * Parses the same set of documents on many threads at once and checks that every
+     * resulting tree matches the one produced by a plain sequential parse.
+     */
+    @Test
+    public void parallelParsesProduceIdenticalTrees() throws Exception {
+        final String[] docs = {
+                "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\" viewBox=\"0 0 20 20\">" +
+                "  <style>.a { fill: red } #b { stroke-width: 2 }</style>" +
+                "  <g id=\"b\" transform=\"rotate(45)\" class=\"a\">" +
+                "    <path d=\"M 1 1 L 10 10 Q 5 5 2 2 A 3 4 10 1 0 7 7 Z\" stroke=\"blue\" stroke-dasharray=\"1 2\"/>" +
+                "    <rect x=\"1\" y=\"2\" width=\"50%\" height=\"3em\" rx=\"1\" style=\"opacity: 0.5\"/>" +
+                "  </g>" +
+                "  <switch><circle cx=\"10\" cy=\"10\" r=\"5\" systemLanguage=\"en\"/></switch>" +
+                "</svg>",
+                "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" viewBox=\"0 0 10 10\">" +
+                "  <defs><linearGradient id=\"g\" x1=\"0\" x2=\"1\"><stop offset=\"0\" stop-color=\"#fff\"/></linearGradient></defs>" +
+                "  <polygon points=\"1,1 5,1 5,5\" fill=\"url(#g)\" fill-rule=\"evenodd\"/>" +
+                "  <polyline points=\"0 0 1 1 2 0\" clip-path=\"url(#c)\" unknown-attr=\"x\"/>" +
+                "  <use xlink:href=\"#g\" x=\"2\"/>" +
+                "  <unknownElement><ellipse rx=\"1\" ry=\"2\"/></unknownElement>" +
+                "  <text x=\"1\" y=\"2\" font-size=\"large\">Hello<tspan dx=\"1\">world</tspan></text>" +
+                "</svg>"
+        };
+
+        final String[] expected = new String[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            expected[i] = dumpTree(SVG.getFromString(docs[i]));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < DOCUMENTS; i++) {
+                final String doc = docs[i % docs.length];
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return dumpTree(SVG.getFromString(doc));
+                    }
+                }));
+            }
+            for (int i = 0; i < DOCUMENTS; i++) {
+                assertThat(results.get(i).get()).isEqualTo(expected[i % docs.length]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /*
+     * Parses a large document with its geometry attributes parsed on an executor, and checks
+     * that the tree is the same as the one from a sequential parse.
+     */
+    @Test
+    public void geometryStageMatchesSequentialParse() throws Exception {
+        StringBuilder doc = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 1000 1000\">");
+        for (int i = 0; i < GEOMETRY_ELEMENTS; i++) {
+            doc.append(String.format(Locale.US, "<g transform=\"translate(%d %d) rotate(%d)\">", i % 100, i / 10, i % 360));
+            doc.append(String.format(Locale.US, "<path d=\"M %d %d l 5 5 c 1 2 3 4 5 6 a 2 3 0 0 1 4 4 z\" transform=\"scale(%d)\"/>", i, i * 2, 1 + i % 3));
+            doc.append(String.format(Locale.US, "<polyline points=\"%d,%d %d,%d %d,0\"/>", i, i, i + 1, i * 3, i + 2));
+            doc.append(String.format(Locale.US, "<polygon points=\"0 0 %d 1 2 %d\" transform=\"skewX(%d)\"/>", i, i, i % 45));
+            doc.append("</g>");
+        }
+        doc.append("</svg>");
+
+        String sequential = dumpTree(SVG.getFromString(doc.toString()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            SVG.setGeometryParsingExecutor(executor);
+            assertThat(dumpTree(SVG.getFromString(doc.toString()))).isEqualTo(sequential);
+        } finally {
+            SVG.setGeometryParsingExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+
+    /*
+     * When there is more than one error, parsing the geometry on an executor must report the
+     * same one as a sequential parse: the first in the document.
+     */
+    @Test
+    public void geometryStageReportsFirstError() throws Exception {
+        StringBuilder doc = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\">");
+        for (int i = 0; i < GEOMETRY_ELEMENTS; i++) {
+            doc.append("<rect width=\"1\" height=\"1\" transform=\"translate(1)\"/>");
+            if (i == GEOMETRY_ELEMENTS / 2) {
+                doc.append("<polyline points=\"1 2 3\"/>");
+            }
+        }
+        doc.append("<rect transform=\"bad(1)\"/>");
+        doc.append("<path d=\"M 0 0\" pathLength=\"-1\"/>");
+        doc.append("</svg>");
+
+        String sequential = parseError(doc.toString());
+        assertThat(sequential).contains("<polyline> points");
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            SVG.setGeometryParsingExecutor(executor);
+            assertThat(parseError(doc.toString())).isEqualTo(sequential);
+        } finally {
+            SVG.setGeometryParsingExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+
+    /*
+     * An Error in a worker task has to reach the caller. The executor swallows it, like a pool
+     * thread that dies, so run() would wait forever if the failed chunk were never counted.
+     */
+    @Test(timeout = 10000)
+    public void geometryStageRethrowsErrors() throws Exception {
+        final AssertionError error = new AssertionError("Failed");
+        HasTransform good = new HasTransform() {
+            @Override
+            public void setTransform(Matrix matrix) {
+            }
+        };
+        HasTransform bad = new HasTransform() {
+            @Override
+            public void setTransform(Matrix matrix) {
+                throw error;
+            }
+        };
+        GeometryParseStage stage = new GeometryParseStage();
+        for (int i = 0; i < GEOMETRY_ELEMENTS; i++) {
+            stage.addTransform((i == GEOMETRY_ELEMENTS / 2) ? bad : good, "translate(1)");
+        }
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                try {
+                    command.run();
+                } catch (Error e) {
+                    // Lost, as it would be on a pool thread
+                }
+            }
+        };
+
+        Throwable thrown = null;
+        try {
+            stage.run(executor);
+        } catch (AssertionError e) {
+            thrown = e;
+        }
+        assertThat(thrown).isSameAs(error);
+    }
+
+
+    private static String parseError(String doc) {
+        try {
+            SVG.getFromString(doc);
+        } catch (SVGParseException e) {
+            return e.getMessage();
+        }
+        throw new AssertionError("Expected SVGParseException");
+    }
+
+
+    private static String dumpTree(SVG svg) {
+        StringBuilder sb = new StringBuilder();
+        dumpObject(svg.getRootElement(), 0, sb);
+        sb.append("css=").append(svg.hasCSSRules() ? svg.getCSSRules().size() : 0);
+        return sb.toString();
+    }
+
+    private static void dumpObject(SvgObject obj, int depth, StringBuilder sb) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        sb.append(obj.getClass().getSimpleName());
+        if (obj instanceof SvgElementBase) {
+            SvgElementBase elem = (SvgElementBase) obj;
+            sb.append(" id=").append(elem.id);
+            sb.append(" class=").append(elem.classNames);
+            if (elem.baseStyle != null) {
+                sb.append(" base=").append(Long.toHexString(elem.baseStyle.specifiedFlags));
+            }
+            if (elem.style != null) {
+                sb.append(" style=").append(Long.toHexString(elem.style.specifiedFlags));
+            }
+        }
+        if (obj instanceof Path && ((Path) obj).d != null) {
+            sb.append(" d=");
+            ((Path) obj).d.enumeratePath(new PathDumper(sb));
+        }
+        if (obj instanceof PolyLine) {
+            sb.append(" points=").append(Arrays.toString(((PolyLine) obj).points));
+        }
+        Matrix transform = (obj instanceof GraphicsElement) ? ((GraphicsElement) obj).transform
+                         : (obj instanceof Group) ? ((Group) obj).transform : null;
+        if (transform != null) {
+            float[] values = new float[9];
+            transform.getValues(values);
+            sb.append(" transform=").append(Arrays.toString(values));
+        }
+        sb.append('\n');
+        if (obj instanceof SvgContainer) {
+            for (SvgObject child : ((SvgContainer) obj).getChildren()) {
+                dumpObject(child, depth + 1, sb);
+            }
+        }
+    }
+
+    private static class PathDumper implements PathInterface {
+        private final StringBuilder sb;
+
+        PathDumper(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+            sb.append(String.format(Locale.US, "M%s,%s ", x, y));
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+            sb.append(String.format(Locale.US, "L%s,%s ", x, y));
+        }
+
+        @Override
+        public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+            sb.append(String.format(Locale.US, "C%s,%s,%s,%s,%s,%s ", x1, y1, x2, y2, x3, y3));
+        }
+
+        @Override
+        public void quadTo(float x1, float y1, float x2, float y2) {
+            sb.append(String.format(Locale.US, "Q%s,%s,%s,%s ", x1, y1, x2, y2));
+        }
+
+        @Override
+        public void arcTo(float rx, float ry, float xAxisRotation, boolean largeArcFlag, boolean sweepFlag, float x, float y) {
+            sb.append(String.format(Locale.US, "A%s,%s,%s,%s,%s,%s,%s ", rx, ry, xAxisRotation, largeArcFlag, sweepFlag, x, y));
+        }
+
+        @Override
+        public void close() {
+            sb.append("Z ");
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class GradientTest {
+    private static final String HEADER = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">";
+
+    /*
+     * An objectBoundingBox gradient is mapped onto the bounding box of the element it fills.
+     */
+    @Test
+    public void gradientFill() throws Exception {
+        SVG svg = SVG.getFromString(HEADER +
+                "<linearGradient id=\"g\"><stop offset=\"0\" stop-color=\"#f00\"/><stop offset=\"1\" stop-color=\"#00f\"/></linearGradient>" +
+                "<rect x=\"10\" y=\"20\" width=\"30\" height=\"40\" fill=\"url(#g)\"/>" +
+                "</svg>");
+
+        List<Shader> shaders = render(svg, null);
+        assertThat(shaders).hasSize(1);
+        assertThat(shaders.get(0)).isInstanceOf(LinearGradient.class);
+        assertThat(localMatrix(shaders.get(0))).isEqualTo(new float[] {30, 0, 10, 0, 40, 20, 0, 0, 1});
+
+        GradientStops stops = gradient(svg, "g").stops;
+        assertThat(stops.colours).isEqualTo(new int[] {0xffff0000, 0xff0000ff});
+        assertThat(stops.positions).isEqualTo(new float[] {0f, 1f});
+    }
+
+
+    /*
+     * A gradient without stops or units of its own takes them from the gradient it refers to,
+     * through each gradient in the chain.
+     */
+    @Test
+    public void hrefChainedGradient() throws Exception {
+        SVG svg = SVG.getFromString(HEADER +
+                "<linearGradient id=\"g1\" gradientUnits=\"userSpaceOnUse\"><stop offset=\"0\" stop-color=\"#f00\"/><stop offset=\"1\" stop-color=\"#00f\"/></linearGradient>" +
+                "<linearGradient id=\"g2\" href=\"#g1\"/>" +
+                "<linearGradient id=\"g3\" href=\"#g2\" spreadMethod=\"reflect\"/>" +
+                "<rect x=\"10\" y=\"20\" width=\"30\" height=\"40\" fill=\"url(#g3)\"/>" +
+                "</svg>");
+
+        List<Shader> shaders = render(svg, null);
+        assertThat(shaders).hasSize(1);
+        // userSpaceOnUse, so not mapped to the bounding box
+        assertThat(localMatrix(shaders.get(0))).isEqualTo(new float[] {1, 0, 0, 0, 1, 0, 0, 0, 1});
+
+        SvgLinearGradient g3 = (SvgLinearGradient) gradient(svg, "g3");
+        assertThat(g3.gradientUnitsAreUser).isTrue();
+        assertThat(g3.spreadMethod).isEqualTo(GradientSpread.reflect);
+        assertThat(g3.stops.colours).isEqualTo(new int[] {0xffff0000, 0xff0000ff});
+    }
+
+
+    /*
+     * A currentColor stop takes the color property of the gradient, not of the element being
+     * filled, and follows the currentColor of the render options.
+     */
+    @Test
+    public void currentColorStop() throws Exception {
+        SVG svg = SVG.getFromString(HEADER +
+                "<linearGradient id=\"g1\" color=\"#0f0\"><stop offset=\"0\" stop-color=\"currentColor\"/><stop offset=\"1\" stop-color=\"currentColor\" stop-opacity=\"0.5\"/></linearGradient>" +
+                "<linearGradient id=\"g2\"><stop offset=\"0\" stop-color=\"currentColor\"/><stop offset=\"1\" stop-color=\"#00f\"/></linearGradient>" +
+                "<rect color=\"#f00\" width=\"10\" height=\"10\" fill=\"url(#g1)\"/>" +
+                "<rect color=\"#f00\" width=\"10\" height=\"10\" fill=\"url(#g2)\"/>" +
+                "</svg>");
+
+        render(svg, null);
+        assertThat(gradient(svg, "g1").stops.colours).isEqualTo(new int[] {0xff00ff00, 0x8000ff00});
+        assertThat(gradient(svg, "g2").stops.colours).isEqualTo(new int[] {0xff000000, 0xff0000ff});
+
+        render(svg, new RenderOptions().currentColor(0xffffff00));
+        assertThat(gradient(svg, "g1").stops.colours).isEqualTo(new int[] {0xff00ff00, 0x8000ff00});
+        assertThat(gradient(svg, "g2").stops.colours).isEqualTo(new int[] {0xffffff00, 0xff0000ff});
+    }
+
+
+    /*
+     * Within a render, elements with the same bounding box share an objectBoundingBox shader,
+     * and elements with different ones get their own. A userSpaceOnUse shader is shared by all.
+     */
+    @Test
+    public void shaderReuse() throws Exception {
+        SVG svg = SVG.getFromString(HEADER +
+                "<linearGradient id=\"bbox\"><stop offset=\"0\" stop-color=\"#f00\"/><stop offset=\"1\" stop-color=\"#00f\"/></linearGradient>" +
+                "<linearGradient id=\"user\" gradientUnits=\"userSpaceOnUse\"><stop offset=\"0\" stop-color=\"#f00\"/><stop offset=\"1\" stop-color=\"#00f\"/></linearGradient>" +
+                "<rect x=\"0\" width=\"10\" height=\"10\" fill=\"url(#bbox)\"/>" +
+                "<rect x=\"0\" width=\"10\" height=\"10\" fill=\"url(#bbox)\"/>" +
+                "<rect x=\"20\" width=\"10\" height=\"10\" fill=\"url(#bbox)\"/>" +
+                "<rect x=\"0\" width=\"10\" height=\"10\" fill=\"url(#user)\"/>" +
+                "<rect x=\"20\" width=\"20\" height=\"10\" fill=\"url(#user)\"/>" +
+                "</svg>");
+
+        List<Shader> shaders = render(svg, null);
+        assertThat(shaders).hasSize(5);
+        assertThat(shaders.get(1)).isSameAs(shaders.get(0));
+        assertThat(shaders.get(2)).isNotSameAs(shaders.get(0));
+        assertThat(localMatrix(shaders.get(2))).isEqualTo(new float[] {10, 0, 20, 0, 10, 0, 0, 0, 1});
+        assertThat(shaders.get(4)).isSameAs(shaders.get(3));
+    }
+
+
+    private static List<Shader> render(SVG svg, RenderOptions options) {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        svg.renderToCanvas(canvas, new RectF(0, 0, 100, 100), options);
+        return ((MockCanvas) Shadow.extract(canvas)).getShaders();
+    }
+
+
+    private static GradientElement gradient(SVG svg, String id) {
+        return (GradientElement) svg.getElementBaseById(id);
+    }
+
+
+    private static float[] localMatrix(Shader shader) {
+        Matrix m = new Matrix();
+        shader.getLocalMatrix(m);
+        float[] values = new float[9];
+        m.getValues(values);
+        return values;
+    }
+}
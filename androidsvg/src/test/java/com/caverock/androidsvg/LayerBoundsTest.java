@@ -0,0 +1,72 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class LayerBoundsTest {
+    @Test
+    public void shapeLayerCoversStroke() throws SVGParseException {
+        // Half the stroke width, times the default miter limit of 4
+        List<String> ops = render("<rect x=\"10\" y=\"20\" width=\"30\" height=\"40\" fill=\"green\" stroke=\"black\" stroke-width=\"2\" opacity=\"0.5\"/>");
+        assertThat(ops).contains("saveLayerAlpha(RectF(6.0, 16.0, 44.0, 64.0), 128, 4)");
+    }
+
+    @Test
+    public void unstrokedShapeLayerIsBoundingBox() throws SVGParseException {
+        List<String> ops = render("<rect x=\"10\" y=\"20\" width=\"30\" height=\"40\" fill=\"green\" opacity=\"0.5\"/>");
+        assertThat(ops).contains("saveLayerAlpha(RectF(10.0, 20.0, 40.0, 60.0), 128, 4)");
+    }
+
+    @Test
+    public void groupLayerIsUnbounded() throws SVGParseException {
+        List<String> ops = render("<g opacity=\"0.5\"><rect x=\"10\" y=\"20\" width=\"30\" height=\"40\" fill=\"green\"/></g>");
+        assertThat(ops).contains("saveLayerAlpha(null, 128, 4)");
+    }
+
+    @Test
+    public void shapeWithMarkersIsUnbounded() throws SVGParseException {
+        List<String> ops = render("<defs><marker id=\"m\"><rect width=\"3\" height=\"3\"/></marker></defs>" +
+                                  "<path d=\"M10,10 L50,10\" stroke=\"black\" marker-end=\"url(#m)\" opacity=\"0.5\"/>");
+        assertThat(ops).contains("saveLayerAlpha(null, 128, 4)");
+    }
+
+
+    private static List<String> render(String content) throws SVGParseException {
+        SVG svg = SVG.getFromString("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">" + content + "</svg>");
+        Bitmap bm = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bm);
+        svg.renderToCanvas(canvas);
+        return ((MockCanvas) Shadow.extract(canvas)).getOperations();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class MaskCompositingBenchmarkTest {
+    private static final int SIZE = 2048;
+    private static final int MASKED_ELEMENTS = 4;
+
+    private static final String MASKED_RECT =
+            "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">" +
+            "  <mask id=\"m\">" +
+            "    <rect width=\"100\" height=\"50\" fill=\"#808080\"/>" +
+            "    <circle cx=\"50\" cy=\"50\" r=\"30\" fill=\"white\"/>" +
+            "  </mask>" +
+            "  <rect x=\"10\" y=\"10\" width=\"80\" height=\"80\" fill=\"blue\" mask=\"url(#m)\"/>" +
+            "</svg>";
+
+    /*
+     * Render a document with several masked elements at 2048x2048 with masks applied by
+     * layers. It must not allocate the two full-canvas bitmaps that the Java pixel loop
+     * needs for each masked element.
+     */
+    @Test
+    public void layerMasksAvoidFullCanvasBitmaps() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        SVG svg = document();
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        // Warm up, so that one-off allocations such as class initialisation aren't counted
+        render(svg, canvas, true);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        render(svg, canvas, true);
+        long layerBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        long oneCanvasBitmap = 4L * SIZE * SIZE;
+        assertThat(layerBytes).isLessThan(oneCanvasBitmap);
+    }
+
+
+    /*
+     * The content is drawn to a layer, then the mask to a second layer whose paint multiplies
+     * the content by the mask (DST_IN). The mask layer starts as opaque black.
+     */
+    @Test
+    public void layerMaskOperations() throws Exception {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        MockCanvas mock = (MockCanvas) Shadow.extract(canvas);
+        mock.setPaintDetails(true);
+        render(SVG.getFromString(MASKED_RECT), canvas, true);
+
+        List<String> ops = mock.getOperations();
+        List<Integer> layers = new ArrayList<>();
+        for (int i = 0; i < ops.size(); i++) {
+            if (ops.get(i).startsWith("saveLayer(")) {
+                layers.add(i);
+            }
+        }
+        assertThat(layers).hasSize(2);
+        assertThat(ops.get(layers.get(0))).startsWith("saveLayer(RectF(10.0, 10.0, 90.0, 90.0), ");
+        assertThat(ops.get(layers.get(0) + 1)).startsWith("drawPath(");
+        assertThat(ops.get(layers.get(1))).matches("saveLayer\\(null, Paint\\(#\\w+ DST_IN\\), 1f\\)");
+        assertThat(ops.get(layers.get(1) + 1)).isEqualTo("drawColor(#ff000000)");
+    }
+
+
+    /*
+     * Both ways of applying a mask give the same pixels. Only checked where the canvas
+     * really draws, as the Robolectric one doesn't.
+     */
+    @Test
+    public void layerMasksMatchBitmapMasks() throws Exception {
+        Bitmap probe = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        new Canvas(probe).drawColor(Color.RED);
+        Assume.assumeTrue(probe.getPixel(0, 0) == Color.RED);
+
+        SVG svg = SVG.getFromString(MASKED_RECT);
+        int[] layerPixels = renderPixels(svg, true);
+        int[] bitmapPixels = renderPixels(svg, false);
+        for (int i = 0; i < layerPixels.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int difference = ((layerPixels[i] >>> shift) & 0xff) - ((bitmapPixels[i] >>> shift) & 0xff);
+                // Allow for rounding in the luminance to alpha conversion
+                assertThat(Math.abs(difference)).isAtMost(2);
+            }
+        }
+    }
+
+
+    private static SVG document() throws SVGParseException {
+        StringBuilder sb = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + SIZE + "\" height=\"" + SIZE + "\">");
+        sb.append("<defs><mask id=\"m\"><circle cx=\"500\" cy=\"500\" r=\"400\" fill=\"white\"/></mask></defs>");
+        for (int i = 0; i < MASKED_ELEMENTS; i++) {
+            sb.append("<rect x=\"").append(i * 100).append("\" y=\"").append(i * 100)
+              .append("\" width=\"1000\" height=\"1000\" fill=\"blue\" mask=\"url(#m)\"/>");
+        }
+        sb.append("</svg>");
+        return SVG.getFromString(sb.toString());
+    }
+
+
+    private static int[] renderPixels(SVG svg, boolean layerMasks) {
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        render(svg, new Canvas(bitmap), layerMasks);
+        int[] pixels = new int[100 * 100];
+        bitmap.getPixels(pixels, 0, 100, 0, 0, 100, 100);
+        return pixels;
+    }
+
+
+    private static void render(SVG svg, Canvas canvas, boolean layerMasks) {
+        SVGAndroidRenderer renderer = new SVGAndroidRenderer(canvas, 96f);
+        renderer.setLayerMasks(layerMasks);
+        renderer.renderDocument(svg, new Box(0f, 0f, canvas.getWidth(), canvas.getHeight()), null, null, true);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class PatternTest {
+    private static final String DOCUMENT =
+            "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">" +
+            "  <pattern id=\"p\" patternUnits=\"userSpaceOnUse\" x=\"5\" y=\"5\" width=\"10\" height=\"10\"" +
+            "           patternTransform=\"scale(2)\" viewBox=\"0 0 1 1\">" +
+            "    <rect width=\"0.5\" height=\"1\"/>" +
+            "  </pattern>" +
+            "  <rect width=\"50\" height=\"50\" fill=\"url(#p)\"/>" +
+            "</svg>";
+
+    private List<MockCanvas> created;
+
+
+    @Before
+    public void setUp() {
+        PatternTileCache.clear();
+        created = MockCanvas.recordCreatedCanvases();
+    }
+
+
+    /*
+     * The tile is drawn at the device scale of the pattern, with its viewBox mapped onto it,
+     * and the shader maps the tile back to the pattern's position in user space.
+     */
+    @Test
+    public void tilePositioning() throws Exception {
+        Canvas canvas = render(SVG.getFromString(DOCUMENT), null);
+        List<Shader> shaders = ((MockCanvas) Shadow.extract(canvas)).getShaders();
+
+        assertThat(shaders).hasSize(1);
+        assertThat(shaders.get(0)).isInstanceOf(BitmapShader.class);
+        // scale(2), then translate(5, 5) to the tile position, then scale(10 / 20) from pixels
+        assertThat(localMatrix(shaders.get(0))).isEqualTo(new float[] {1, 0, 10, 0, 1, 10, 0, 0, 1});
+
+        assertThat(created).hasSize(2);
+        assertThat(created.get(1).getOperations()).containsExactly(
+                "scale(2, 2)",
+                "translate(-5, -5)",
+                "save()",
+                "clipRect(5, 5, 15, 15)",
+                "concat(Matrix(10 0 0 10 5 5))",
+                "save()",
+                "drawPath('M 0 0 L 0.5 0 L 0.5 1 L 0 1 L 0 0', Paint())",
+                "restore()",
+                "restore()").inOrder();
+    }
+
+
+    /*
+     * A tile is drawn once and reused, unless something that changes its content changes,
+     * such as the DPI that real-world units are converted with.
+     */
+    @Test
+    public void tileIsCachedPerDPI() throws Exception {
+        SVG svg = SVG.getFromString(DOCUMENT.replace("width=\"0.5\"", "width=\"0.005in\""));
+
+        render(svg, null);
+        render(svg, null);
+        assertThat(created).hasSize(3);
+
+        svg.setRenderDPI(192f);
+        render(svg, null);
+        assertThat(created).hasSize(5);
+        render(svg, null);
+        assertThat(created).hasSize(6);
+    }
+
+
+    /*
+     * The tiles of a document are removed once it has been garbage collected, without waiting
+     * for other tiles to push them out.
+     */
+    @Test
+    public void tilesOfDiscardedDocumentAreRemoved() throws Exception {
+        render(SVG.getFromString(DOCUMENT), new RenderOptions());
+        assertThat(PatternTileCache.size()).isEqualTo(1);
+
+        for (int i = 0; i < 50 && PatternTileCache.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(PatternTileCache.size()).isEqualTo(0);
+    }
+
+
+    @Test
+    public void highFidelityDrawsVectors() throws Exception {
+        Canvas canvas = render(SVG.getFromString(DOCUMENT), new RenderOptions().highFidelity(true));
+        assertVectors(canvas);
+    }
+
+
+    @Test
+    public void overflowDrawsVectors() throws Exception {
+        Canvas canvas = render(SVG.getFromString(DOCUMENT.replace("<pattern ", "<pattern overflow=\"visible\" ")), null);
+        assertVectors(canvas);
+    }
+
+
+    /*
+     * A Picture may be played back at any scale, so no tile bitmap is drawn.
+     */
+    @Test
+    public void pictureDrawsVectors() throws Exception {
+        SVG.getFromString(DOCUMENT).renderToPicture(100, 100);
+        assertThat(created).isEmpty();
+    }
+
+
+    private void assertVectors(Canvas canvas) {
+        MockCanvas mock = (MockCanvas) Shadow.extract(canvas);
+        assertThat(created).hasSize(1);
+        assertThat(mock.getShaders()).isEmpty();
+        assertThat(mock.getOperations()).contains("concat(Matrix(10 0 0 10 -5 -5))");
+    }
+
+
+    private static Canvas render(SVG svg, RenderOptions options) {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        svg.renderToCanvas(canvas, new RectF(0, 0, 100, 100), options);
+        return canvas;
+    }
+
+
+    private static float[] localMatrix(Shader shader) {
+        Matrix m = new Matrix();
+        shader.getLocalMatrix(m);
+        float[] values = new float[9];
+        m.getValues(values);
+        return values;
+    }
+}
@@ -20,13 +20,19 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import com.caverock.androidsvg.utils.MockCanvas;
 import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 import static com.google.common.truth.Truth.assertThat;
 
 @Config(manifest = Config.NONE,
@@ -71,4 +77,148 @@ public class RenderTest {
         int afterSaves = canvas.getSaveCount();
         assertThat(beforeSaves).isEqualTo(afterSaves);
     }
+
+
+    private static final String OPTIONS_TEST =
+            "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">" +
+            "  <style>.a { fill: red }</style>" +
+            "  <view id=\"v\" viewBox=\"0 0 100 100\"/>" +
+            "  <rect fill=\"currentColor\" width=\"10\" height=\"10\"/>" +
+            "  <rect color=\"#008000\" fill=\"currentColor\" width=\"10\" height=\"10\"/>" +
+            "  <rect class=\"a\" width=\"10\" height=\"10\"/>" +
+            "  <rect class=\"a\" style=\"fill: #008000\" width=\"10\" height=\"10\"/>" +
+            "  <rect id=\"r\" class=\"b\" style=\"fill: #008000\" width=\"10\" height=\"10\"/>" +
+            "</svg>";
+
+
+    @Test
+    public void renderOptionsCurrentColor() throws SVGParseException {
+        SVG svg = SVG.getFromString(OPTIONS_TEST);
+        RenderOptions options = new RenderOptions().currentColor(0xff0000ff);
+
+        List<String> fills = fills(render(svg, options));
+        // An element's own color property takes precedence
+        assertThat(fills.subList(0, 2)).containsExactly("Paint(#ff0000ff)", "Paint(#ff008000)").inOrder();
+        assertThat(fills(render(svg, null)).get(0)).isEqualTo("Paint(#ff000000)");
+    }
+
+
+    /*
+     * The options CSS comes after the document's stylesheets, but a style attribute still
+     * takes precedence over it.
+     */
+    @Test
+    public void renderOptionsCSS() throws SVGParseException {
+        SVG svg = SVG.getFromString(OPTIONS_TEST);
+        RenderOptions options = new RenderOptions().css(".a { fill: #0000ff } #r { fill: #0000ff }");
+
+        List<String> fills = fills(render(svg, options));
+        assertThat(fills.subList(2, 5)).containsExactly("Paint(#ff0000ff)", "Paint(#ff008000)", "Paint(#ff008000)").inOrder();
+    }
+
+
+    /*
+     * Class and id overrides take precedence over the style attribute, and an id override
+     * over a class override.
+     */
+    @Test
+    public void renderOptionsOverrides() throws SVGParseException {
+        SVG svg = SVG.getFromString(OPTIONS_TEST);
+        RenderOptions options = new RenderOptions().fillForClass("a", 0xff0000ff).fillForClass("b", 0xff0000ff);
+
+        List<String> fills = fills(render(svg, options));
+        assertThat(fills.subList(2, 5)).containsExactly("Paint(#ff0000ff)", "Paint(#ff0000ff)", "Paint(#ff0000ff)").inOrder();
+
+        options.fillForId("r", 0xffffff00);
+        assertThat(fills(render(svg, options)).get(4)).isEqualTo("Paint(#ffffff00)");
+    }
+
+
+    /*
+     * The compiled form of the options is rebuilt when they are changed after being used.
+     */
+    @Test
+    public void renderOptionsChangedAfterUse() throws SVGParseException {
+        SVG svg = SVG.getFromString(OPTIONS_TEST);
+        RenderOptions options = new RenderOptions().currentColor(0xff0000ff);
+        List<String> unchanged = fills(render(svg, null));
+
+        assertThat(fills(render(svg, options)).get(0)).isEqualTo("Paint(#ff0000ff)");
+        options.currentColor(0xffffff00);
+        assertThat(fills(render(svg, options)).get(0)).isEqualTo("Paint(#ffffff00)");
+        options.css(".a { fill: #ffff00 }");
+        assertThat(fills(render(svg, options)).get(2)).isEqualTo("Paint(#ffffff00)");
+        options.css(null);
+        assertThat(fills(render(svg, options)).get(2)).isEqualTo("Paint(#ffff0000)");
+        options.fillForId("r", 0xff0000ff);
+        assertThat(fills(render(svg, options)).get(4)).isEqualTo("Paint(#ff0000ff)");
+        options.clear();
+        assertThat(fills(render(svg, options))).isEqualTo(unchanged);
+    }
+
+
+    /*
+     * Every way of rendering a document to a canvas applies the options.
+     */
+    @Test
+    public void renderOptionsApplyToAllRenderMethods() throws SVGParseException {
+        SVG svg = SVG.getFromString(OPTIONS_TEST);
+        RenderOptions options = new RenderOptions().currentColor(0xff0000ff).fillForClass("a", 0xff0000ff);
+        List<String> expected = fills(render(svg, options));
+        RectF viewPort = new RectF(0, 0, 100, 100);
+
+        Canvas canvas = newCanvas();
+        svg.renderViewToCanvas("v", canvas, viewPort, options);
+        assertThat(fills(canvas)).isEqualTo(expected);
+
+        canvas = newCanvas();
+        svg.compile(viewPort, 96f, options).draw(canvas);
+        assertThat(fills(canvas)).isEqualTo(expected);
+
+        canvas = newCanvas();
+        SVG.renderStreamToCanvas(new ByteArrayInputStream(OPTIONS_TEST.getBytes()), canvas, viewPort, options);
+        assertThat(fills(canvas)).isEqualTo(expected);
+    }
+
+
+    /*
+     * A zero width stroke is a hairline, whatever the transform, so a non-scaling one is drawn
+     * like any other stroke. Its outline would be the path itself, which would fill the shape.
+     */
+    @Test
+    public void nonScalingHairline() throws SVGParseException {
+        SVG svg = SVG.getFromString("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">" +
+                "  <rect width=\"10\" height=\"10\" transform=\"scale(2)\" fill=\"none\" stroke=\"red\"" +
+                "        stroke-width=\"0\" vector-effect=\"non-scaling-stroke\"/>" +
+                "</svg>");
+
+        List<String> ops = ((MockCanvas) Shadow.extract(render(svg, null))).getOperations();
+        assertThat(ops).contains("drawPath('M 0 0 L 10 0 L 10 10 L 0 10 L 0 0', Paint(#ffff0000 STROKE))");
+    }
+
+
+    private static Canvas newCanvas() {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        ((MockCanvas) Shadow.extract(canvas)).setPaintDetails(true);
+        return canvas;
+    }
+
+
+    private static Canvas render(SVG svg, RenderOptions options) {
+        Canvas canvas = newCanvas();
+        svg.renderToCanvas(canvas, new RectF(0, 0, 100, 100), options);
+        return canvas;
+    }
+
+
+    // The paint of each drawPath() operation, in order
+    private static List<String> fills(Canvas canvas) {
+        List<String> fills = new ArrayList<>();
+        for (String op : ((MockCanvas) Shadow.extract(canvas)).getOperations()) {
+            if (op.startsWith("drawPath(")) {
+                fills.add(op.substring(op.lastIndexOf("Paint("), op.length() - 1));
+            }
+        }
+        return fills;
+    }
 }
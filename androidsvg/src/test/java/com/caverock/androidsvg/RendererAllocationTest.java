@@ -0,0 +1,159 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class RendererAllocationTest {
+    private static final int ELEMENTS = 1000;
+
+    /*
+     * A canvas that does nothing, so that the only allocations counted are the renderer's own.
+     */
+    private static class NullCanvas extends Canvas {
+        private final Matrix matrix = new Matrix();
+
+        @Override
+        public int getWidth() {
+            return 100;
+        }
+
+        @Override
+        public int getHeight() {
+            return 100;
+        }
+
+        @Override
+        public int save() {
+            return 1;
+        }
+
+        @Override
+        public int save(int saveFlags) {
+            return 1;
+        }
+
+        @Override
+        public void restore() {
+        }
+
+        @Override
+        public void concat(Matrix matrix) {
+        }
+
+        @Override
+        public Matrix getMatrix() {
+            return matrix;
+        }
+
+        @Override
+        public boolean clipRect(float left, float top, float right, float bottom) {
+            return true;
+        }
+
+        @Override
+        public void drawPath(Path path, Paint paint) {
+        }
+    }
+
+
+    /*
+     * Rendering an element that doesn't set any properties used to copy the whole Style and
+     * both Paints. Check that it now allocates at least ten times less than that copy did.
+     */
+    @Test
+    public void unstyledElementsDoNotCopyState() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Measure twice as many elements, so that the fixed cost of each render cancels out
+        long small = bytesToRender(threadBean, document(ELEMENTS));
+        long large = bytesToRender(threadBean, document(2 * ELEMENTS));
+        long perElement = (large - small) / ELEMENTS;
+
+        long perStateCopy = bytesToCopyState(threadBean);
+
+        assertThat(perElement * 10).isAtMost(perStateCopy);
+    }
+
+
+    private static SVG document(int numElements) throws SVGParseException {
+        StringBuilder sb = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">");
+        sb.append("<g fill=\"red\" stroke=\"blue\" stroke-width=\"2\">");
+        for (int i = 0; i < numElements; i++) {
+            sb.append("<g/>");
+        }
+        sb.append("</g></svg>");
+        return SVG.getFromString(sb.toString());
+    }
+
+
+    private static long bytesToRender(com.sun.management.ThreadMXBean threadBean, SVG svg) {
+        Canvas canvas = new NullCanvas();
+        // Warm up, so that one-off allocations such as class initialisation aren't counted
+        svg.renderToCanvas(canvas);
+        svg.renderToCanvas(canvas);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        svg.renderToCanvas(canvas);
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+
+    // What each state push used to allocate
+    private static long bytesToCopyState(com.sun.management.ThreadMXBean threadBean) throws Exception {
+        Style style = Style.getDefaultStyle();
+        Paint fillPaint = new Paint();
+        Paint strokePaint = new Paint();
+        Object[] copies = new Object[3 * ELEMENTS];
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ELEMENTS; i++) {
+            copies[3 * i] = style.clone();
+            copies[3 * i + 1] = new Paint(fillPaint);
+            copies[3 * i + 2] = new Paint(strokePaint);
+        }
+        long bytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertThat(copies[copies.length - 1]).isNotNull();
+        return bytes / ELEMENTS;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class ResolveStylesheetsTest {
+    private static final String DOCUMENT =
+            "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">" +
+            "  <style>" +
+            "    .a { font-size: 20px }" +
+            "    .b { stroke-width: 2em; stroke: black }" +
+            "    .c { fill: red; stroke-dasharray: 1 2 }" +
+            "    g > .c { opacity: 0.5 }" +
+            "    #d { fill: blue }" +
+            "  </style>" +
+            "  <g>" +
+            "    <rect id=\"r1\" class=\"a b\" width=\"10\" height=\"10\" opacity=\"0.5\"/>" +
+            "    <rect id=\"r2\" class=\"b c\" width=\"10\" height=\"10\"/>" +
+            "    <rect id=\"d\" class=\"c\" width=\"10\" height=\"10\"/>" +
+            "  </g>" +
+            "</svg>";
+
+    /*
+     * Rendering after resolveStylesheets() must give the same output as matching the rules
+     * while rendering. The layer for the opacity of r1 is sized to its stroke, so its bounds
+     * show whether the em stroke width was resolved against the right font size.
+     */
+    @Test
+    public void resolvedRenderMatchesUnresolved() throws Exception {
+        List<String> unresolved = render(SVG.getFromString(DOCUMENT));
+
+        SVG svg = SVG.getFromString(DOCUMENT);
+        svg.resolveStylesheets();
+        assertThat(render(svg)).isEqualTo(unresolved);
+    }
+
+
+    /*
+     * The renderer resolves the em stroke width as it applies each rule, so the font size
+     * from .a has to be applied first. Such rules are left to the renderer to match.
+     */
+    @Test
+    public void fontSizeAndRelativeLengthAreNotMerged() throws Exception {
+        SVG svg = SVG.getFromString(DOCUMENT);
+        svg.resolveStylesheets();
+
+        assertThat(svg.getElementBaseById("r1").cssStyle).isNull();
+        assertThat(svg.getElementBaseById("r2").cssStyle).isNotNull();
+        assertThat(svg.getElementBaseById("d").cssStyle).isNotNull();
+    }
+
+
+    @Test
+    public void mergeRefusesFontSizeWithRelativeLength() throws Exception {
+        Style fontSize = parseStyle("font-size: 20px");
+        Style emStroke = parseStyle("stroke-width: 2em");
+        Style pxStroke = parseStyle("stroke-width: 2px");
+        Style emDashes = parseStyle("stroke-dasharray: 1em 2");
+
+        assertThat(copy(fontSize).merge(emStroke)).isFalse();
+        assertThat(copy(emStroke).merge(fontSize)).isFalse();
+        assertThat(copy(fontSize).merge(emDashes)).isFalse();
+        assertThat(copy(fontSize).merge(pxStroke)).isTrue();
+        assertThat(copy(emStroke).merge(emDashes)).isTrue();
+    }
+
+
+    private static Style parseStyle(String css) throws Exception {
+        return new CSSParser(CSSParser.MediaType.screen).parse("* { " + css + " }").getRules().get(0).style;
+    }
+
+
+    private static Style copy(Style style) throws Exception {
+        Style copy = new Style();
+        copy.merge(style);
+        return copy;
+    }
+
+
+    private static List<String> render(SVG svg) {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        svg.renderToCanvas(canvas);
+        return ((MockCanvas) Shadow.extract(canvas)).getOperations();
+    }
+}
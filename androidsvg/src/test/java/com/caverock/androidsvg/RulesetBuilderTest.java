@@ -0,0 +1,161 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import com.caverock.androidsvg.CSSParser.MediaType;
+import com.caverock.androidsvg.CSSParser.Rule;
+import com.caverock.androidsvg.CSSParser.Ruleset;
+import com.caverock.androidsvg.CSSParser.RulesetBuilder;
+import com.caverock.androidsvg.CSSParser.Selector;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class RulesetBuilderTest {
+    private static final int LARGE_STYLESHEET_RULES = 10000;
+
+    /*
+     * The builder must give the same order as adding the rules one at a time, including
+     * when addAll() has left the list out of specificity order.
+     */
+    @Test
+    public void builderMatchesIncrementalAdd() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            Ruleset expected = new Ruleset();
+            RulesetBuilder builder = new RulesetBuilder();
+            int numOps = random.nextInt(60);
+            for (int i = 0; i < numOps; i++) {
+                if (random.nextInt(8) == 0) {
+                    Ruleset nested = new Ruleset();
+                    int numNested = random.nextInt(5);
+                    for (int j = 0; j < numNested; j++) {
+                        nested.add(randomRule(random));
+                    }
+                    expected.addAll(nested);
+                    builder.addAll(nested);
+                } else {
+                    Rule rule = randomRule(random);
+                    expected.add(rule);
+                    builder.add(rule);
+                }
+            }
+            assertSameRules(builder.build(), expected);
+        }
+    }
+
+
+    /*
+     * Rules inside @media are appended as a block, and later rules are inserted before the
+     * first rule of higher specificity wherever it is.
+     */
+    @Test
+    public void mediaRulesKeepExistingOrder() throws Exception {
+        String sheet = "#a { fill: red } @media screen { .b { fill: blue } } rect { fill: green } .c { fill: black }";
+        List<Rule> rules = new CSSParser(MediaType.screen).parse(sheet).getRules();
+
+        assertThat(rules).hasSize(4);
+        assertThat(rules.get(0).selector.toString()).isEqualTo("rect (1)");
+        assertThat(rules.get(1).selector.toString()).isEqualTo("*[class=c] (100)");
+        assertThat(rules.get(2).selector.toString()).isEqualTo("*[id=a] (10000)");
+        assertThat(rules.get(3).selector.toString()).isEqualTo("*[class=b] (100)");
+    }
+
+
+    /*
+     * Parses a machine-generated style sheet with 10k rules, and compares building its
+     * ruleset with the builder against adding the rules one at a time.
+     */
+    @Test
+    public void largeStylesheet() throws Exception {
+        StringBuilder sheet = new StringBuilder();
+        for (int i = 0; i < LARGE_STYLESHEET_RULES; i++) {
+            switch (i % 4) {
+                case 0:
+                    sheet.append(".c").append(i);
+                    break;
+                case 1:
+                    sheet.append("#id").append(i);
+                    break;
+                case 2:
+                    sheet.append("g .c").append(i).append(" rect");
+                    break;
+                default:
+                    sheet.append("circle");
+                    break;
+            }
+            sheet.append(" { fill: #").append(String.format(Locale.US, "%06x", i)).append(" }\n");
+        }
+
+        Ruleset parsed = new CSSParser(MediaType.screen).parse(sheet.toString());
+
+        assertThat(parsed.getRules()).hasSize(LARGE_STYLESHEET_RULES);
+
+        // Build from an unsorted list, as the parser would
+        List<Rule> rules = new ArrayList<>(parsed.getRules());
+        Collections.shuffle(rules, new Random(42));
+
+        RulesetBuilder builder = new RulesetBuilder();
+        for (Rule rule : rules) {
+            builder.add(rule);
+        }
+        Ruleset built = builder.build();
+
+        Ruleset added = new Ruleset();
+        for (Rule rule : rules) {
+            added.add(rule);
+        }
+
+        assertSameRules(built, added);
+    }
+
+
+    private static Rule randomRule(Random random) {
+        Selector selector = new Selector();
+        selector.specificity = random.nextInt(4) * 100 + random.nextInt(3);
+        return new Rule(selector, null);
+    }
+
+
+    private static void assertSameRules(Ruleset actual, Ruleset expected) {
+        if (expected.getRules() == null) {
+            assertThat(actual.isEmpty()).isTrue();
+            return;
+        }
+        List<Rule> actualRules = actual.getRules();
+        List<Rule> expectedRules = expected.getRules();
+        assertThat(actualRules).hasSize(expectedRules.size());
+        for (int i = 0; i < expectedRules.size(); i++) {
+            assertThat(actualRules.get(i)).isSameAs(expectedRules.get(i));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class SVGBinaryFormatTest {
+    private static final String DOCUMENT =
+            "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"100\" height=\"100\" viewBox=\"0 0 50 50\">" +
+            "  <title>Title</title><desc>Description</desc>" +
+            "  <style>.a { fill: red } .b { fill: blue } rect.a { stroke: green } #c { stroke-width: 3 }</style>" +
+            "  <defs>" +
+            "    <linearGradient id=\"g\" x2=\"1\"><stop offset=\"0\" stop-color=\"#fff\"/><stop offset=\"1\" stop-color=\"#000\"/></linearGradient>" +
+            "    <clipPath id=\"clip\"><circle cx=\"25\" cy=\"25\" r=\"20\"/></clipPath>" +
+            "  </defs>" +
+            "  <g id=\"c\" class=\"a b\" transform=\"rotate(10)\" clip-path=\"url(#clip)\">" +
+            "    <rect class=\"a\" x=\"1\" y=\"2\" width=\"20\" height=\"10\" rx=\"2\"/>" +
+            "    <path d=\"M 1 1 L 10 10 Q 5 5 2 2 A 3 4 10 1 0 7 7 Z\" stroke=\"black\" stroke-dasharray=\"1 2\"/>" +
+            "    <polygon points=\"1,1 5,1 5,5\" fill=\"url(#g)\" fill-rule=\"evenodd\"/>" +
+            "  </g>" +
+            "  <use xlink:href=\"#c\" x=\"10\" opacity=\"0.5\"/>" +
+            "  <text x=\"1\" y=\"40\" font-size=\"8\">Hello<tspan dx=\"1\" fill=\"green\">world</tspan></text>" +
+            "</svg>";
+
+    /*
+     * A document written and read back must render exactly the same as the parsed one,
+     * including the cascade order of its CSS rules.
+     */
+    @Test
+    public void roundTripRendersTheSame() throws Exception {
+        SVG parsed = SVG.getFromString(DOCUMENT);
+        SVG loaded = SVG.readCompiled(ByteBuffer.wrap(compile(parsed)));
+
+        assertThat(loaded.getDocumentTitle()).isEqualTo("Title");
+        assertThat(loaded.getDocumentDescription()).isEqualTo("Description");
+        assertThat(loaded.getCSSRules()).hasSize(parsed.getCSSRules().size());
+        for (int i = 0; i < parsed.getCSSRules().size(); i++) {
+            assertThat(loaded.getCSSRules().get(i).toString()).isEqualTo(parsed.getCSSRules().get(i).toString());
+        }
+        assertThat(render(loaded)).isEqualTo(render(parsed));
+    }
+
+
+    @Test
+    public void truncatedDataIsRejected() throws Exception {
+        byte[] data = compile(SVG.getFromString(DOCUMENT));
+        for (int length : new int[] {0, 4, 8, 12, data.length / 2, data.length - 1}) {
+            assertRejected(Arrays.copyOf(data, length));
+        }
+    }
+
+
+    /*
+     * A corrupt length must give an SVGParseException, not an attempt to allocate it.
+     */
+    @Test
+    public void corruptLengthIsRejected() throws Exception {
+        byte[] data = compile(SVG.getFromString(DOCUMENT));
+        // The title length follows the magic number and version
+        ByteBuffer.wrap(data).putInt(8, Integer.MAX_VALUE);
+        assertRejected(data);
+        ByteBuffer.wrap(data).putInt(8, -2);
+        assertRejected(data);
+    }
+
+
+    private static byte[] compile(SVG svg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        svg.writeCompiled(out);
+        return out.toByteArray();
+    }
+
+
+    private static void assertRejected(byte[] data) {
+        try {
+            SVG.readCompiled(ByteBuffer.wrap(data));
+            fail("Expected SVGParseException for " + data.length + " bytes");
+        } catch (SVGParseException e) {
+            // Expected
+        }
+    }
+
+
+    private static List<String> render(SVG svg) {
+        Bitmap bm = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bm);
+        svg.renderToCanvas(canvas);
+        return ((MockCanvas) Shadow.extract(canvas)).getOperations();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+   Copyright 2017 Paul LeBeau, Cave Rock Software Ltd.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import com.caverock.androidsvg.utils.MockCanvas;
+import com.caverock.androidsvg.utils.MockPath;
+import com.caverock.androidsvg.utils.Shadow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(manifest = Config.NONE,
+        sdk = 16,
+        shadows = {MockCanvas.class, MockPath.class})
+@RunWith(RobolectricTestRunner.class)
+public class StreamingRendererTest {
+    private static final String HEADER = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\">";
+
+    @Test
+    public void streamedOutputMatchesRenderToCanvas() throws Exception {
+        String doc = HEADER +
+                "<style>.a { stroke: blue }</style>" +
+                "<defs><linearGradient id=\"grad\"><stop offset=\"0\" stop-color=\"red\"/></linearGradient></defs>" +
+                "<g id=\"layer1\" transform=\"translate(5 5)\">" +
+                "  <rect id=\"r1\" class=\"a\" width=\"10\" height=\"10\" fill=\"url(#grad)\"/>" +
+                "  <circle cx=\"20\" cy=\"20\" r=\"5\" clip-path=\"url(#clip)\"/>" +
+                "</g>" +
+                "<clipPath id=\"clip\"><rect width=\"30\" height=\"30\"/></clipPath>" +
+                "<path id=\"p1\" d=\"M 0 0 L 50 50\" stroke=\"black\"/>" +
+                "</svg>";
+
+        assertThat(renderStreamed(doc)).isEqualTo(render(doc));
+    }
+
+
+    /*
+     * Drawn elements are dropped unless they, or their descendants, have ids that something
+     * that follows might refer to. Non-rendered elements with ids are kept too.
+     */
+    @Test
+    public void onlyElementsWithIdsAreRetained() throws Exception {
+        SVG svg = parseStreamed(HEADER +
+                "<defs><linearGradient id=\"grad\"/></defs>" +
+                "<g><rect width=\"10\" height=\"10\"/><rect id=\"r1\" width=\"10\" height=\"10\"/></g>" +
+                "<g><rect width=\"10\" height=\"10\"/></g>" +
+                "<rect width=\"10\" height=\"10\" fill=\"url(#grad)\"/>" +
+                "</svg>");
+
+        assertThat(childIds(svg.getRootElement())).containsExactly("null", "null").inOrder();
+        assertThat(svg.getElementBaseById("grad")).isNotNull();
+        assertThat(svg.getElementById("r1")).isNotNull();
+    }
+
+
+    /*
+     * A <use> can refer back to an element that has already been drawn.
+     */
+    @Test
+    public void drawnElementCanBeUsedLater() throws Exception {
+        String doc = HEADER +
+                "<path id=\"p\" d=\"M 0 0 L 10 10\" stroke=\"black\"/>" +
+                "<g id=\"g1\"><rect width=\"10\" height=\"10\"/></g>" +
+                "<use href=\"#p\" x=\"20\"/>" +
+                "<use href=\"#g1\" y=\"20\"/>" +
+                "</svg>";
+
+        assertThat(renderStreamed(doc)).isEqualTo(render(doc));
+        // The group's own children are kept too
+        assertThat(countOf(renderStreamed(doc), "drawPath('M 0 0 L 10 0 L 10 10 L 0 10 L 0 0', Paint())")).isEqualTo(2);
+    }
+
+
+    /*
+     * An element that something has referred to before it was parsed is kept. Here the <use>
+     * is a forward reference, so streaming stops and the rest of the tree is retained.
+     */
+    @Test
+    public void referencedElementIsRetained() throws Exception {
+        String doc = HEADER +
+                "<use href=\"#r1\" x=\"20\"/>" +
+                "<rect id=\"r1\" width=\"10\" height=\"10\"/>" +
+                "</svg>";
+        SVG svg = parseStreamed(doc);
+
+        assertThat(svg.getElementById("r1")).isNotNull();
+        assertThat(renderStreamed(doc)).isEqualTo(render(doc));
+    }
+
+
+    /*
+     * A <style> element after drawing has started stops streaming, so everything after it is
+     * kept and drawn with all of the document's rules.
+     */
+    @Test
+    public void lateStyleFallsBackToRetainedTree() throws Exception {
+        String doc = HEADER +
+                "<rect width=\"10\" height=\"10\"/>" +
+                "<style>.a { fill: red }</style>" +
+                "<rect id=\"r2\" class=\"a b\" width=\"10\" height=\"10\"/>" +
+                "<style>.b { fill: blue }</style>" +
+                "<rect id=\"r3\" class=\"a\" width=\"10\" height=\"10\"/>" +
+                "</svg>";
+        SVG svg = parseStreamed(doc);
+
+        assertThat(childIds(svg.getRootElement())).containsExactly("r2", "r3").inOrder();
+        assertThat(renderStreamed(doc)).isEqualTo(render(doc));
+    }
+
+
+    private static SVG parseStreamed(String doc) throws SVGParseException {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        StreamingRenderer streamer = new StreamingRenderer(canvas, new Box(0, 0, 100, 100), 96f);
+        SVG svg = new SVGParser(streamer).parse(new ByteArrayInputStream(doc.getBytes()));
+        streamer.finish();
+        return svg;
+    }
+
+
+    private static List<String> renderStreamed(String doc) throws SVGParseException {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        SVG.renderStreamToCanvas(new ByteArrayInputStream(doc.getBytes()), canvas);
+        return ((MockCanvas) Shadow.extract(canvas)).getOperations();
+    }
+
+
+    private static List<String> render(String doc) throws SVGParseException {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        canvas.save();
+        SVG.getFromString(doc).renderToCanvas(canvas);
+        return ((MockCanvas) Shadow.extract(canvas)).getOperations();
+    }
+
+
+    private static int countOf(List<String> ops, String op) {
+        int count = 0;
+        for (String o : ops) {
+            if (o.equals(op)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private static List<String> childIds(SvgContainer container) {
+        List<String> ids = new ArrayList<>();
+        for (SvgObject child : container.getChildren()) {
+            ids.add(String.valueOf(((SvgElementBase) child).id));
+        }
+        return ids;
+    }
+}
@@ -23,6 +23,8 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Shader;
+import android.graphics.Xfermode;
 import org.robolectric.annotation.Implementation;
 import org.robolectric.annotation.Implements;
 
@@ -48,6 +50,10 @@ public class MockCanvas {
     private Stack<Matrix> matrixStack = new Stack<>();
 
     private ArrayList<String> operations = new ArrayList<>();
+    private ArrayList<Shader> shaders = new ArrayList<>();
+    private boolean paintDetails = false;
+
+    private static List<MockCanvas> createdCanvases = null;
 
     /**
      * Save flags
@@ -62,6 +68,9 @@ public class MockCanvas {
 
     public void __constructor__(Bitmap bitmap) {
         this.bitmap = bitmap;
+        if (createdCanvases != null) {
+            createdCanvases.add(this);
+        }
         //this.operations.add(String.format(Locale.US, "new Canvas(%s)", bitmap));
     }
 
@@ -69,6 +78,34 @@ public class MockCanvas {
         return this.operations;
     }
 
+    public Bitmap getBitmap() {
+        return this.bitmap;
+    }
+
+    /**
+     * Keep every Canvas that is created for a Bitmap from now on, such as the ones that the
+     * renderer draws pattern tiles into. Returns the list that they are added to.
+     */
+    public static List<MockCanvas> recordCreatedCanvases() {
+        createdCanvases = new ArrayList<>();
+        return createdCanvases;
+    }
+
+    /**
+     * Returns the shaders of the paints that were drawn with, in the order they were drawn.
+     */
+    public List<Shader> getShaders() {
+        return this.shaders;
+    }
+
+    /**
+     * Describe each Paint in the operations by its colour, shader and transfer mode,
+     * instead of just "Paint()".
+     */
+    public void setPaintDetails(boolean paintDetails) {
+        this.paintDetails = paintDetails;
+    }
+
 
     @Implementation
     public boolean clipRect(int left, int top, int right, int bottom) {
@@ -77,6 +114,12 @@ public class MockCanvas {
         return right > left && bottom > top;
     }
 
+    @Implementation
+    public boolean clipRect(float left, float top, float right, float bottom) {
+        this.operations.add(String.format(Locale.US, "clipRect(%s, %s, %s, %s)", num(left), num(top), num(right), num(bottom)));
+        return right > left && bottom > top;
+    }
+
     @Implementation
     public void concat(Matrix matrix) {
         this.matrix.postConcat(matrix);
@@ -110,7 +153,7 @@ public class MockCanvas {
 
     @Implementation
     public void drawText(String text, float x, float y, Paint paint) {
-        this.operations.add(String.format(Locale.US, "drawText(\"%s\", %s, %s, %s)", text, num(x), num(y), paint));
+        this.operations.add(String.format(Locale.US, "drawText(\"%s\", %s, %s, %s)", text, num(x), num(y), paintToStr(paint)));
     }
 
     @Implementation
@@ -177,6 +220,12 @@ public class MockCanvas {
         return n;
     }
 
+    @Implementation
+    public int saveLayer(RectF bounds, Paint paint, int saveFlags) {
+        this.operations.add(String.format(Locale.US, "saveLayer(%s, %s, %x)", bounds, paintToStr(paint), saveFlags));
+        return internalSave(saveFlags);  // Not accurate, but enough for testing for now.
+    }
+
     @Implementation
     public int saveLayerAlpha(RectF bounds, int alpha, int saveFlags) {
         this.operations.add(String.format(Locale.US, "saveLayerAlpha(%s, %d, %x)", bounds, alpha, saveFlags));
@@ -212,8 +261,34 @@ public class MockCanvas {
         }
     }
 
-    private static String paintToStr(Paint paint) {
-        return "Paint()";
+    // Called for every paint that is drawn with, so also records its shader
+    private String paintToStr(Paint paint) {
+        if (paint != null && paint.getShader() != null) {
+            this.shaders.add(paint.getShader());
+        }
+        if (!this.paintDetails || paint == null) {
+            return "Paint()";
+        }
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "Paint(#%08x", paint.getColor()));
+        if (paint.getShader() != null) {
+            sb.append(' ').append(paint.getShader().getClass().getSimpleName());
+        }
+        if (paint.getXfermode() != null) {
+            sb.append(' ').append(xfermodeToStr(paint.getXfermode()));
+        }
+        if (paint.getStyle() != null && paint.getStyle() != Paint.Style.FILL) {
+            sb.append(' ').append(paint.getStyle());
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String xfermodeToStr(Xfermode xfermode) {
+        // PorterDuffXfermode keeps its mode in a hidden field
+        try {
+            return String.valueOf(xfermode.getClass().getField("mode").get(xfermode));
+        } catch (Exception e) {
+            return xfermode.getClass().getSimpleName();
+        }
     }
 }
 
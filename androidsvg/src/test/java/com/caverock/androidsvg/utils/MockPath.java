@@ -1,6 +1,8 @@
 package com.caverock.androidsvg.utils;
 
+import android.graphics.Matrix;
 import android.graphics.Path;
+import android.graphics.RectF;
 import org.robolectric.annotation.Implementation;
 import org.robolectric.annotation.Implements;
 
@@ -42,6 +44,66 @@ public class MockPath {
     public void close() {
     }
 
+    @Implementation
+    public void addPath(Path src) {
+        path.addAll(((MockPath) Shadow.extract(src)).path);
+    }
+
+    @Implementation
+    public void addPath(Path src, Matrix matrix) {
+        float[] m = new float[9];
+        matrix.getValues(m);
+        for (String pathSeg : ((MockPath) Shadow.extract(src)).path) {
+            String[] parts = pathSeg.split(" ");
+            StringBuilder sb = new StringBuilder(parts[0]);
+            for (int i = 1; i + 1 < parts.length; i += 2) {
+                float x = Float.parseFloat(parts[i]);
+                float y = Float.parseFloat(parts[i + 1]);
+                sb.append(' ').append(num(m[0] * x + m[1] * y + m[2]));
+                sb.append(' ').append(num(m[3] * x + m[4] * y + m[5]));
+            }
+            path.add(sb.toString());
+        }
+    }
+
+    /*
+     * True if the path is a move followed by lines around an axis-aligned rectangle,
+     * optionally ending back where it started.
+     */
+    @Implementation
+    public boolean isRect(RectF rect) {
+        int count = path.size();
+        if (count == 5 && path.get(4).substring(2).equals(path.get(0).substring(2))) {
+            count = 4;
+        }
+        if (count != 4 || !path.get(0).startsWith("M ")) {
+            return false;
+        }
+        float[] x = new float[4];
+        float[] y = new float[4];
+        for (int i = 0; i < 4; i++) {
+            String[] parts = path.get(i).split(" ");
+            if (i > 0 && !parts[0].equals("L")) {
+                return false;
+            }
+            x[i] = Float.parseFloat(parts[1]);
+            y[i] = Float.parseFloat(parts[2]);
+        }
+        // Each side must be horizontal or vertical, alternating between the two
+        boolean firstHorizontal = (y[0] == y[1]);
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            boolean horizontal = (i % 2 == 0) == firstHorizontal;
+            if (horizontal ? (y[i] != y[j] || x[i] == x[j]) : (x[i] != x[j] || y[i] == y[j])) {
+                return false;
+            }
+        }
+        if (rect != null) {
+            rect.set(Math.min(x[0], x[2]), Math.min(y[0], y[2]), Math.max(x[0], x[2]), Math.max(y[0], y[2]));
+        }
+        return true;
+    }
+
 
     String getPathDescription() {
         StringBuilder sb = new StringBuilder();